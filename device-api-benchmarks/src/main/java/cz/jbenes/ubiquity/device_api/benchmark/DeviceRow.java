@@ -0,0 +1,41 @@
+package cz.jbenes.ubiquity.device_api.benchmark;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.repository.DeviceSummaryView;
+import cz.jbenes.ubiquity.device_api.repository.DeviceTopologyView;
+
+/**
+ * Synthetic device, usable as a repository row and as a registration request.
+ *
+ * @param macAddress the canonical MAC address of the device
+ * @param uplinkMac the canonical MAC address of its uplink, or null for a root device
+ * @param deviceType the type of the device
+ */
+public record DeviceRow(String macAddress, String uplinkMac, DeviceType deviceType)
+        implements DeviceTopologyView, DeviceSummaryView {
+
+    @Override
+    public String getMacAddress() {
+        return macAddress;
+    }
+
+    @Override
+    public String getUplinkMac() {
+        return uplinkMac;
+    }
+
+    @Override
+    public DeviceType getDeviceType() {
+        return deviceType;
+    }
+
+    /**
+     * Returns the request registering this device.
+     *
+     * @return the registration request
+     */
+    public DeviceRequestDto toRequest() {
+        return new DeviceRequestDto(deviceType, macAddress, uplinkMac);
+    }
+}
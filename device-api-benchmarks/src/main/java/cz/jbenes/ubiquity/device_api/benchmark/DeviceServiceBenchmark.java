@@ -0,0 +1,164 @@
+package cz.jbenes.ubiquity.device_api.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import cz.jbenes.ubiquity.device_api.DeviceApiApplication;
+import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.service.DeviceLookupCache;
+import cz.jbenes.ubiquity.device_api.service.DeviceService;
+import cz.jbenes.ubiquity.device_api.service.DeviceServiceImpl;
+import cz.jbenes.ubiquity.device_api.service.TopologyIndex;
+import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+
+/**
+ * Measures the hot paths of {@link DeviceServiceImpl} on synthetic topologies.
+ * <p>
+ * Every combination of topology size, {@link TopologyShape shape}, {@link Backend backend} and
+ * topology index runs in its own fork. With the index enabled, the topology queries do not reach
+ * the repository, so only the listing and the registration depend on the backend.
+ * </p>
+ * <p>
+ * {@link #getTopologyFrom()} starts at device 0, which is the whole topology for
+ * {@link TopologyShape#WIDE}, one chain for {@link TopologyShape#DEEP} and one site for
+ * {@link TopologyShape#MIXED}. {@link #registerDevice()} registers a new device of the shape on
+ * every invocation, and {@link #getFullTopology(ChangedTopology)} is preceded by one, so that it
+ * builds the forest of a new topology version instead of returning the cached snapshot. The
+ * topology therefore grows by the registered devices over the iterations of these two.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class DeviceServiceBenchmark {
+
+    private static final int SEED_BATCH_SIZE = 10_000;
+
+    /**
+     * Where the service stores the devices.
+     */
+    public enum Backend {
+        /**
+         * {@link StubDeviceRepository}, measuring the service alone.
+         */
+        STUB,
+        /**
+         * The whole application context on an embedded H2 database.
+         */
+        H2
+    }
+
+    @Param({"1000", "100000", "1000000"})
+    private int devices;
+
+    @Param({"WIDE", "DEEP", "MIXED"})
+    private TopologyShape shape;
+
+    @Param({"STUB", "H2"})
+    private Backend backend;
+
+    @Param({"true", "false"})
+    private boolean topologyIndex;
+
+    private List<DeviceRow> rows;
+    private DeviceService deviceService;
+    private ConfigurableApplicationContext context;
+    private int nextDevice;
+
+    /**
+     * Registers a new device before every invocation, so that the topology version changes.
+     */
+    @State(Scope.Thread)
+    public static class ChangedTopology {
+
+        @Setup(Level.Invocation)
+        public void registerDevice(DeviceServiceBenchmark benchmark) {
+            benchmark.registerNewDevice();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        rows = shape.generate(devices);
+        nextDevice = devices;
+        if (backend == Backend.STUB) {
+            DeviceServiceImpl service = new DeviceServiceImpl(StubDeviceRepository.of(rows),
+                    new TopologyIndex(topologyIndex, 16), event -> { }, new DeviceLookupCache(0, 0, 0), 4, 1);
+            service.rebuildTopologyIndex();
+            deviceService = service;
+            return;
+        }
+        // command line arguments, as default properties would not override application.properties
+        context = new SpringApplicationBuilder(DeviceApiApplication.class)
+                .web(WebApplicationType.NONE)
+                .run(
+                        "--spring.datasource.url=jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1",
+                        "--device-api.topology.index-enabled=" + topologyIndex,
+                        "--spring.main.banner-mode=off",
+                        "--logging.level.root=warn");
+        deviceService = context.getBean(DeviceService.class);
+        // uplinks precede their children, so every batch refers to stored devices or to itself
+        for (int from = 0; from < rows.size(); from += SEED_BATCH_SIZE) {
+            List<DeviceRequestDto> batch = rows.subList(from, Math.min(from + SEED_BATCH_SIZE, rows.size()))
+                    .stream()
+                    .map(DeviceRow::toRequest)
+                    .toList();
+            deviceService.registerDevices(batch);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Benchmark
+    public List<DeviceResponseDto> getAllDevicesSorted() {
+        return deviceService.getAllDevicesSorted();
+    }
+
+    @Benchmark
+    public List<TopologyNode> getFullTopology(ChangedTopology changedTopology) {
+        return deviceService.getFullTopology();
+    }
+
+    @Benchmark
+    public TopologyNode getTopologyFrom() {
+        return deviceService.getTopologyFrom(rows.get(0).macAddress());
+    }
+
+    @Benchmark
+    public DeviceResponseDto registerDevice() {
+        return registerNewDevice();
+    }
+
+    /**
+     * Registers the device following the generated ones, with the uplink given by the shape.
+     */
+    private DeviceResponseDto registerNewDevice() {
+        return deviceService.registerDevice(shape.device(nextDevice++).toRequest());
+    }
+}
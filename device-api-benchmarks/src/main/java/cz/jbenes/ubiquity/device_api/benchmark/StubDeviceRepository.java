@@ -0,0 +1,104 @@
+package cz.jbenes.ubiquity.device_api.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.repository.DeviceRepository;
+import cz.jbenes.ubiquity.device_api.repository.DeviceRepositoryCustom.UpsertResult;
+import cz.jbenes.ubiquity.device_api.repository.DeviceTopologyView;
+
+/**
+ * In-memory {@link DeviceRepository} answering the queries of the benchmarked service methods,
+ * so that the service can be measured without a database.
+ * <p>
+ * Every query returns a new list, as a database would. Other repository methods throw
+ * {@link UnsupportedOperationException}.
+ * </p>
+ */
+final class StubDeviceRepository implements InvocationHandler {
+
+    private final Map<String, DeviceRow> devices = new LinkedHashMap<>();
+    private final Map<String, List<String>> childrenByMac = new HashMap<>();
+
+    private StubDeviceRepository(List<DeviceRow> rows) {
+        rows.forEach(this::store);
+    }
+
+    /**
+     * Creates a repository holding the given devices.
+     *
+     * @param rows the devices, uplinks first
+     * @return the repository
+     */
+    static DeviceRepository of(List<DeviceRow> rows) {
+        return (DeviceRepository) Proxy.newProxyInstance(DeviceRepository.class.getClassLoader(),
+                new Class<?>[] {DeviceRepository.class}, new StubDeviceRepository(rows));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        return switch (method.getName()) {
+            case "findAllSummaries", "findAllTopologyViews" -> new ArrayList<>(devices.values());
+            case "findSubtree" -> findSubtree((String) args[0]);
+            case "upsert" -> upsert((String) args[0], (DeviceType) args[1], (String) args[2]);
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "equals" -> proxy == args[0];
+            case "toString" -> "StubDeviceRepository[" + devices.size() + " devices]";
+            default -> throw new UnsupportedOperationException(method.getName());
+        };
+    }
+
+    private List<DeviceTopologyView> findSubtree(String macAddress) {
+        List<DeviceTopologyView> rows = new ArrayList<>();
+        if (!devices.containsKey(macAddress)) {
+            return rows;
+        }
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(macAddress);
+        while (!pending.isEmpty()) {
+            String mac = pending.poll();
+            rows.add(devices.get(mac));
+            pending.addAll(childrenByMac.getOrDefault(mac, List.of()));
+        }
+        return rows;
+    }
+
+    private UpsertResult upsert(String macAddress, DeviceType deviceType, String uplinkMacAddress) {
+        if (uplinkMacAddress != null && !devices.containsKey(uplinkMacAddress)) {
+            return UpsertResult.UPLINK_NOT_FOUND;
+        }
+        DeviceRow previous = devices.put(macAddress, new DeviceRow(macAddress, uplinkMacAddress, deviceType));
+        if (previous == null) {
+            link(macAddress, uplinkMacAddress);
+            return UpsertResult.CREATED;
+        }
+        if (!Objects.equals(previous.uplinkMac(), uplinkMacAddress)) {
+            if (previous.uplinkMac() != null) {
+                childrenByMac.get(previous.uplinkMac()).remove(macAddress);
+            }
+            link(macAddress, uplinkMacAddress);
+        }
+        return UpsertResult.UPDATED;
+    }
+
+    private void store(DeviceRow row) {
+        devices.put(row.macAddress(), row);
+        link(row.macAddress(), row.uplinkMac());
+    }
+
+    private void link(String macAddress, String uplinkMacAddress) {
+        if (uplinkMacAddress != null) {
+            childrenByMac.computeIfAbsent(uplinkMacAddress, k -> new ArrayList<>()).add(macAddress);
+        }
+    }
+}
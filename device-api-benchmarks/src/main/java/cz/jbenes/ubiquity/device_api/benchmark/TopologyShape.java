@@ -0,0 +1,95 @@
+package cz.jbenes.ubiquity.device_api.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.util.MacAddress;
+
+/**
+ * Shapes of synthetic topologies.
+ * <p>
+ * Devices are numbered from 0 and every uplink has a lower number than its children, so the
+ * generated devices can be registered in order. Device 0 is always a root.
+ * </p>
+ */
+public enum TopologyShape {
+
+    /**
+     * One gateway with all other devices connected directly to it.
+     */
+    WIDE {
+        @Override
+        DeviceRow device(int device) {
+            return device == 0
+                    ? new DeviceRow(mac(device), null, DeviceType.GATEWAY)
+                    : new DeviceRow(mac(device), mac(0), DeviceType.ACCESS_POINT);
+        }
+    },
+
+    /**
+     * Daisy chains of {@value #CHAIN_LENGTH} devices, a gateway followed by switches.
+     */
+    DEEP {
+        @Override
+        DeviceRow device(int device) {
+            return device % CHAIN_LENGTH == 0
+                    ? new DeviceRow(mac(device), null, DeviceType.GATEWAY)
+                    : new DeviceRow(mac(device), mac(device - 1), DeviceType.SWITCH);
+        }
+    },
+
+    /**
+     * Sites of {@value #SITE_SIZE} devices, each a gateway with {@value #SWITCHES_PER_SITE}
+     * switches and the remaining devices as access points spread evenly over the switches.
+     */
+    MIXED {
+        @Override
+        DeviceRow device(int device) {
+            int site = device - device % SITE_SIZE;
+            int position = device - site;
+            if (position == 0) {
+                return new DeviceRow(mac(device), null, DeviceType.GATEWAY);
+            }
+            if (position <= SWITCHES_PER_SITE) {
+                return new DeviceRow(mac(device), mac(site), DeviceType.SWITCH);
+            }
+            return new DeviceRow(mac(device), mac(site + 1 + position % SWITCHES_PER_SITE), DeviceType.ACCESS_POINT);
+        }
+    };
+
+    static final int CHAIN_LENGTH = 1000;
+    static final int SITE_SIZE = 1000;
+    static final int SWITCHES_PER_SITE = 10;
+
+    private static final long LOCALLY_ADMINISTERED = 0x02_00_00_00_00_00L;
+
+    /**
+     * Generates a topology of the given number of devices, uplinks first.
+     *
+     * @param devices the number of devices
+     * @return the devices in registration order
+     */
+    public List<DeviceRow> generate(int devices) {
+        List<DeviceRow> rows = new ArrayList<>(devices);
+        for (int device = 0; device < devices; device++) {
+            rows.add(device(device));
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the device with the given number.
+     */
+    abstract DeviceRow device(int device);
+
+    /**
+     * Returns the canonical MAC address of the device with the given number.
+     *
+     * @param device the device number
+     * @return the locally administered MAC address
+     */
+    public static String mac(int device) {
+        return MacAddress.format(LOCALLY_ADMINISTERED | device);
+    }
+}
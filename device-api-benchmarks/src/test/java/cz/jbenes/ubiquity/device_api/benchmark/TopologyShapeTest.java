@@ -0,0 +1,58 @@
+package cz.jbenes.ubiquity.device_api.benchmark;
+
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TopologyShapeTest {
+
+    @ParameterizedTest
+    @EnumSource(TopologyShape.class)
+    void generate_shouldListUplinksBeforeTheirChildren(TopologyShape shape) {
+        List<DeviceRow> rows = shape.generate(2500);
+
+        Set<String> registered = new HashSet<>();
+        for (DeviceRow row : rows) {
+            assertThat(row.uplinkMac() == null || registered.contains(row.uplinkMac())).isTrue();
+            assertThat(registered.add(row.macAddress())).isTrue();
+        }
+        assertThat(rows).hasSize(2500);
+        assertThat(rows.get(0).uplinkMac()).isNull();
+    }
+
+    @Test
+    void generate_shouldBuildSitesOfGatewaySwitchesAndAccessPoints() {
+        List<DeviceRow> rows = TopologyShape.MIXED.generate(2000);
+
+        assertThat(countByType(rows)).containsExactlyInAnyOrderEntriesOf(Map.of(
+                DeviceType.GATEWAY, 2L, DeviceType.SWITCH, 20L, DeviceType.ACCESS_POINT, 1978L));
+        assertThat(rows.get(1011).uplinkMac()).isEqualTo(TopologyShape.mac(1002));
+    }
+
+    @Test
+    void generate_shouldChainDevicesOfDeepTopology() {
+        List<DeviceRow> rows = TopologyShape.DEEP.generate(2000);
+
+        assertThat(countByType(rows)).containsEntry(DeviceType.GATEWAY, 2L);
+        assertThat(rows.get(999).uplinkMac()).isEqualTo(TopologyShape.mac(998));
+        assertThat(rows.get(1000).uplinkMac()).isNull();
+    }
+
+    @Test
+    void mac_shouldFormatCanonicalMacAddress() {
+        assertThat(TopologyShape.mac(0x0f4240)).isEqualTo("02:00:00:0f:42:40");
+    }
+
+    private static Map<DeviceType, Long> countByType(List<DeviceRow> rows) {
+        return rows.stream().collect(Collectors.groupingBy(DeviceRow::deviceType, Collectors.counting()));
+    }
+}
@@ -1,36 +1,123 @@
 package cz.jbenes.ubiquity.device_api.controller;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.util.List;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyEncoding;
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyEventBroadcaster;
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyResponseCache;
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyResponseCache.EncodedTopology;
+import cz.jbenes.ubiquity.device_api.dto.DeviceLookupCacheStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePageDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePathDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.RegistrationStatusDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangesDto;
 import cz.jbenes.ubiquity.device_api.service.DeviceService;
-import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+import cz.jbenes.ubiquity.device_api.service.RegistrationPipeline;
 import jakarta.validation.Valid;
 
 @RestController
 @RequestMapping("/devices")
 public class DeviceController {
+
+    /**
+     * Media type of the flat topology format, parallel arrays of MAC addresses, device types and uplink indices.
+     */
+    public static final String FLAT_TOPOLOGY_VALUE = "application/vnd.device-api.topology-flat+json";
+    public static final MediaType FLAT_TOPOLOGY = MediaType.parseMediaType(FLAT_TOPOLOGY_VALUE);
+
+    public static final String SMILE_VALUE = "application/x-jackson-smile";
+
+    private static final String PREFER = "Prefer";
+    private static final String PREFERENCE_APPLIED = "Preference-Applied";
+    private static final String RESPOND_ASYNC = "respond-async";
+    private static final String GZIP_ETAG_SUFFIX = "-gzip";
+
     private final DeviceService deviceService;
+    private final ObjectMapper objectMapper;
+    private final TopologyResponseCache topologyResponseCache;
+    private final TopologyEventBroadcaster topologyEventBroadcaster;
+    private final RegistrationPipeline registrationPipeline;
 
-    public DeviceController(DeviceService deviceService) {
+    public DeviceController(DeviceService deviceService, ObjectMapper objectMapper,
+            TopologyResponseCache topologyResponseCache, TopologyEventBroadcaster topologyEventBroadcaster,
+            RegistrationPipeline registrationPipeline) {
         this.deviceService = deviceService;
+        this.objectMapper = objectMapper;
+        this.topologyResponseCache = topologyResponseCache;
+        this.topologyEventBroadcaster = topologyEventBroadcaster;
+        this.registrationPipeline = registrationPipeline;
     }
 
     /**
      * Register a new network device.
+     * <p>
+     * With the asynchronous registration mode enabled, the registration is committed together
+     * with other concurrent registrations; the response is sent once it is committed.
+     * </p>
+     * <p>
+     * Answers 201 Created if the device was not registered before, 200 OK otherwise. With
+     * {@code Prefer: respond-async}, the registration is not waited for and 202 Accepted is
+     * answered with a status token; the status is available at the returned location.
+     * </p>
      */
     @PutMapping
-    public ResponseEntity<DeviceResponseDto> registerDevice(@Valid @RequestBody DeviceRequestDto request) {
-        return ResponseEntity.ok(deviceService.registerDevice(request));
+    public ResponseEntity<?> registerDevice(@Valid @RequestBody DeviceRequestDto request,
+            @RequestHeader HttpHeaders headers) {
+        if (prefersRespondAsync(headers)) {
+            return submitDevice(request);
+        }
+        DeviceResponseDto device = registrationPipeline.register(request);
+        return ResponseEntity.status(device.isCreated() ? HttpStatus.CREATED : HttpStatus.OK).body(device);
+    }
+
+    private ResponseEntity<RegistrationStatusDto> submitDevice(DeviceRequestDto request) {
+        RegistrationStatusDto status = registrationPipeline.submit(request);
+        return ResponseEntity.accepted()
+                .location(URI.create("/devices/registrations/" + status.getToken()))
+                .header(PREFERENCE_APPLIED, RESPOND_ASYNC)
+                .body(status);
+    }
+
+    /**
+     * Get the status of a registration accepted with {@code Prefer: respond-async}.
+     */
+    @GetMapping("/registrations/{token}")
+    public ResponseEntity<RegistrationStatusDto> getRegistrationStatus(@PathVariable String token) {
+        return ResponseEntity.ok(registrationPipeline.getStatus(token));
+    }
+
+    /**
+     * Register multiple network devices at once, uplinks may point to devices in the same batch.
+     */
+    @PutMapping("/batch")
+    public ResponseEntity<List<DeviceResponseDto>> registerDevices(@RequestBody List<@Valid DeviceRequestDto> requests) {
+        return ResponseEntity.ok(deviceService.registerDevices(requests));
     }
 
     /**
@@ -41,6 +128,46 @@ public class DeviceController {
         return ResponseEntity.ok(deviceService.getAllDevicesSorted());
     }
 
+    /**
+     * Get one page of registered devices, sorted by type: Gateway > Switch > Access Point.
+     * The next page is requested with the returned cursor as {@code after}.
+     */
+    @GetMapping(params = "limit")
+    public ResponseEntity<DevicePageDto> getDevicesPage(@RequestParam int limit,
+            @RequestParam(required = false) String after) {
+        return ResponseEntity.ok(deviceService.getDevicesPage(limit, after));
+    }
+
+    /**
+     * Stream all registered devices as newline delimited JSON, sorted by type: Gateway > Switch > Access Point.
+     * <p>
+     * Devices are read through a database cursor and written as they arrive, so memory use
+     * does not depend on the number of devices.
+     * </p>
+     */
+    @GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamAllDevices() {
+        ObjectWriter writer = objectMapper.writerFor(DeviceResponseDto.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        StreamingResponseBody body = out -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+                generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                generator.setRootValueSeparator(null);
+                deviceService.forEachDeviceSorted(device -> {
+                    try {
+                        writer.writeValue(generator, device);
+                        generator.writeRaw('\n');
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
     /**
      * Get a single device by its MAC address.
      */
@@ -49,20 +176,213 @@ public class DeviceController {
         return ResponseEntity.ok(deviceService.getDeviceByMac(macAddress));
     }
 
+    /**
+     * Get the hit, miss and eviction counters of the cache in front of single device lookups.
+     */
+    @GetMapping("/lookup-cache/stats")
+    public ResponseEntity<DeviceLookupCacheStatsDto> getLookupCacheStats() {
+        return ResponseEntity.ok(deviceService.getLookupCacheStats());
+    }
+
+    /**
+     * Get the hop path between two devices through the deepest uplink they share.
+     */
+    @GetMapping("/path")
+    public ResponseEntity<DevicePathDto> getPath(@RequestParam String from, @RequestParam String to) {
+        return ResponseEntity.ok(deviceService.getPath(from, to));
+    }
+
+    /**
+     * Tell whether a device is connected below another device, directly or through other devices.
+     */
+    @GetMapping("/{macAddress}/is-under/{ancestorMacAddress}")
+    public ResponseEntity<Boolean> isUnder(@PathVariable String macAddress, @PathVariable String ancestorMacAddress) {
+        return ResponseEntity.ok(deviceService.isUnder(macAddress, ancestorMacAddress));
+    }
+
+    /**
+     * Get the MAC addresses from a device up to the root of its topology.
+     */
+    @GetMapping("/{macAddress}/path-to-root")
+    public ResponseEntity<List<String>> getPathToRoot(@PathVariable String macAddress) {
+        return ResponseEntity.ok(deviceService.getPathToRoot(macAddress));
+    }
+
+    /**
+     * Get the number of devices connected below a device, per device type.
+     */
+    @GetMapping("/{macAddress}/stats")
+    public ResponseEntity<DeviceStatsDto> getDeviceStats(@PathVariable String macAddress) {
+        return ResponseEntity.ok(deviceService.getDeviceStats(macAddress));
+    }
+
     /**
      * Get the full network topology as a tree.
+     * <p>
+     * The topology is written straight into JSON while it is walked, and served pre-serialized
+     * (and gzip-compressed when accepted) from {@link TopologyResponseCache} while it is unchanged.
+     * </p>
+     * <p>
+     * {@code format=flat} or {@code Accept: application/vnd.device-api.topology-flat+json} selects
+     * the flat format instead: parallel arrays of MAC addresses, device types and uplink indices
+     * in pre-order, which is smaller and decodes in a single pass.
+     * </p>
+     * <p>
+     * Both formats are also available in CBOR and Smile, negotiated by {@code Accept}.
+     * </p>
      */
-    @GetMapping("/topology")
-    public ResponseEntity<List<TopologyNode>> getFullTopology() {
-        return ResponseEntity.ok(deviceService.getFullTopology());
+    @GetMapping(value = "/topology", produces = { MediaType.APPLICATION_JSON_VALUE, FLAT_TOPOLOGY_VALUE,
+            MediaType.APPLICATION_CBOR_VALUE, SMILE_VALUE })
+    public ResponseEntity<byte[]> getFullTopology(@RequestParam(required = false) String format,
+            @RequestHeader HttpHeaders headers) {
+        boolean flatAccepted = headers.getAccept().stream().anyMatch(FLAT_TOPOLOGY::equalsTypeAndSubtype);
+        boolean flat;
+        if (format == null) {
+            flat = flatAccepted;
+        } else if (format.equals("flat") || format.equals("nested")) {
+            flat = format.equals("flat");
+        } else {
+            throw new IllegalArgumentException("Unknown topology format: " + format);
+        }
+        TopologyEncoding encoding = TopologyEncoding.negotiate(headers.getAccept());
+        boolean gzip = acceptsGzip(headers);
+        String suffix = (flat ? "-flat" : "") + encoding.getETagSuffix();
+        // the compressed body is a different representation and needs its own strong tag
+        String codingSuffix = gzip ? GZIP_ETAG_SUFFIX : "";
+
+        // answer conditional polls from the version alone, without touching the topology
+        long version = deviceService.getTopologyVersion();
+        if (matchesETag(headers.getIfNoneMatch(), version, suffix)) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(topologyETag(version, suffix + codingSuffix))
+                    .build();
+        }
+        EncodedTopology topology = flat
+                ? topologyResponseCache.getFlatTopology(version, encoding, deviceService::writeFlatTopology)
+                : topologyResponseCache.getFullTopology(version, encoding, deviceService::writeFullTopology);
+        MediaType contentType = flat && flatAccepted && encoding == TopologyEncoding.JSON
+                ? FLAT_TOPOLOGY
+                : encoding.getMediaType();
+        return encodedResponse(topology, contentType, gzip, ResponseEntity.ok()
+                .eTag(topologyETag(topology.version(), suffix + codingSuffix))
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT));
+    }
+
+    /**
+     * Get the devices added or re-parented since the given topology version.
+     * Answers 410 Gone when the version is too old and the full topology has to be fetched again.
+     */
+    @GetMapping("/topology/changes")
+    public ResponseEntity<TopologyChangesDto> getTopologyChanges(@RequestParam long since) {
+        TopologyChangesDto changes = deviceService.getTopologyChanges(since);
+        HttpStatus status = changes.isResyncRequired() ? HttpStatus.GONE : HttpStatus.OK;
+        return ResponseEntity.status(status).body(changes);
+    }
+
+    /**
+     * Subscribe to topology changes as Server-Sent Events.
+     * <p>
+     * Every committed registration is pushed as a {@code change} event; a {@code resync}
+     * event tells a subscriber that fell behind to refetch the full topology.
+     * </p>
+     */
+    @GetMapping(value = "/topology/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter subscribeTopologyEvents() {
+        return topologyEventBroadcaster.subscribe();
     }
 
     /**
      * Get the network topology starting from a specific MAC address.
+     * <p>
+     * {@code maxDepth} and {@code childLimit} bound the returned tree; truncated nodes carry
+     * {@code childCount} and {@code childCursor}, which is passed back as {@code childCursor}
+     * when querying that node to load its next children. The cursor resumes after the last
+     * returned child, so that children added or moved away in between do not shift the pages.
+     * </p>
+     * <p>
+     * The subtree is also available in CBOR and Smile, negotiated by {@code Accept}.
+     * </p>
      */
-    @GetMapping("/topology/{macAddress}")
-    public ResponseEntity<TopologyNode> getTopologyFrom(@PathVariable String macAddress) {
-        return ResponseEntity.ok(deviceService.getTopologyFrom(macAddress));
+    @GetMapping(value = "/topology/{macAddress}", produces = { MediaType.APPLICATION_JSON_VALUE,
+            MediaType.APPLICATION_CBOR_VALUE, SMILE_VALUE })
+    public ResponseEntity<byte[]> getTopologyFrom(@PathVariable String macAddress,
+            @RequestParam(required = false) Integer maxDepth,
+            @RequestParam(required = false) Integer childLimit,
+            @RequestParam(required = false) String childCursor,
+            @RequestHeader HttpHeaders headers) {
+        String cacheKey = macAddress + '|' + maxDepth + '|' + childLimit + '|' + childCursor;
+        TopologyEncoding encoding = TopologyEncoding.negotiate(headers.getAccept());
+        EncodedTopology topology = topologyResponseCache.getSubtree(deviceService.getTopologyVersion(), cacheKey,
+                encoding,
+                generator -> deviceService.writeTopologyFrom(generator, macAddress, maxDepth, childLimit, childCursor));
+        return encodedResponse(topology, encoding.getMediaType(), acceptsGzip(headers),
+                ResponseEntity.ok().header(HttpHeaders.VARY, HttpHeaders.ACCEPT));
     }
-}
 
+    /**
+     * Completes a response with the gzip variant of the topology if the client accepts it, uncompressed otherwise.
+     */
+    private static ResponseEntity<byte[]> encodedResponse(EncodedTopology topology, MediaType contentType,
+            boolean gzip, ResponseEntity.BodyBuilder builder) {
+        builder.contentType(contentType).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            return builder.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(topology.gzip());
+        }
+        return builder.body(topology.content());
+    }
+
+    /**
+     * Checks whether {@code Accept-Encoding} allows gzip.
+     */
+    private static boolean acceptsGzip(HttpHeaders headers) {
+        for (String value : headers.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+            for (String coding : value.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                    return parts.length == 1 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether {@code Prefer} asks for an asynchronous response, among any other preferences.
+     */
+    private static boolean prefersRespondAsync(HttpHeaders headers) {
+        for (String value : headers.getOrEmpty(PREFER)) {
+            for (String preference : value.split(",")) {
+                // a preference may carry a value and parameters, which respond-async does not use
+                String token = preference.split("[=;]", 2)[0].trim();
+                if (token.equalsIgnoreCase(RESPOND_ASYNC)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Strong entity tag of the given topology version and representation.
+     */
+    private static String topologyETag(long version, String representation) {
+        return "\"topology-" + version + representation + "\"";
+    }
+
+    /**
+     * Weak comparison of {@code If-None-Match} values with the entity tags of the given topology
+     * version and representation, either uncompressed or gzip-compressed, as a client holding
+     * either body has the current topology.
+     */
+    private static boolean matchesETag(List<String> ifNoneMatch, long version, String representation) {
+        String eTag = topologyETag(version, representation);
+        String gzipETag = topologyETag(version, representation + GZIP_ETAG_SUFFIX);
+        for (String candidate : ifNoneMatch) {
+            String opaqueTag = candidate.startsWith("W/") ? candidate.substring(2) : candidate;
+            if (candidate.equals("*") || opaqueTag.equals(eTag) || opaqueTag.equals(gzipETag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
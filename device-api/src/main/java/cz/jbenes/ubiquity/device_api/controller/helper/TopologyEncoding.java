@@ -0,0 +1,55 @@
+package cz.jbenes.ubiquity.device_api.controller.helper;
+
+import java.util.List;
+
+import org.springframework.http.MediaType;
+
+/**
+ * Wire encodings of the pre-serialized topology responses.
+ */
+public enum TopologyEncoding {
+
+    JSON(MediaType.APPLICATION_JSON, ""),
+    CBOR(MediaType.APPLICATION_CBOR, "-cbor"),
+    SMILE(MediaType.parseMediaType("application/x-jackson-smile"), "-smile");
+
+    private final MediaType mediaType;
+    private final String eTagSuffix;
+
+    TopologyEncoding(MediaType mediaType, String eTagSuffix) {
+        this.mediaType = mediaType;
+        this.eTagSuffix = eTagSuffix;
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    /**
+     * Suffix distinguishing entity tags of this encoding from those of other encodings.
+     */
+    public String getETagSuffix() {
+        return eTagSuffix;
+    }
+
+    /**
+     * Picks the encoding with the highest quality among the explicitly accepted media types,
+     * JSON if none of them is accepted explicitly.
+     *
+     * @param accepted the media types of the {@code Accept} header
+     * @return the negotiated encoding
+     */
+    public static TopologyEncoding negotiate(List<MediaType> accepted) {
+        TopologyEncoding best = JSON;
+        double bestQuality = -1;
+        for (MediaType mediaType : accepted) {
+            for (TopologyEncoding encoding : values()) {
+                if (encoding.mediaType.equalsTypeAndSubtype(mediaType) && mediaType.getQualityValue() > bestQuality) {
+                    best = encoding;
+                    bestQuality = mediaType.getQualityValue();
+                }
+            }
+        }
+        return best;
+    }
+}
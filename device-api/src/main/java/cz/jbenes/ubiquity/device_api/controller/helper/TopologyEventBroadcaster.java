@@ -0,0 +1,194 @@
+package cz.jbenes.ubiquity.device_api.controller.helper;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangeDto;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Pushes topology changes to Server-Sent Events subscribers.
+ * <p>
+ * Each subscriber has a bounded buffer. Publishing only offers the change to the buffers
+ * and never blocks; buffers are drained and written on virtual threads of the broadcaster's
+ * own, at most one drain per subscriber at a time, so that subscribers blocked on slow
+ * connections never hold threads of the shared task executor. When a buffer overflows, its
+ * pending changes are dropped and the subscriber receives a single {@code resync} event
+ * carrying the latest version, after which it should refetch the full topology.
+ * </p>
+ * <p>
+ * Every {@code device-api.topology.events.heartbeat-ms} each subscriber receives a comment,
+ * so that dead connections are detected by the failing write, and subscriptions expire after
+ * {@code device-api.topology.events.timeout-ms}, after which clients reconnect.
+ * </p>
+ */
+@Component
+public class TopologyEventBroadcaster {
+
+    static final String CHANGE_EVENT = "change";
+    static final String RESYNC_EVENT = "resync";
+    static final String HEARTBEAT_COMMENT = "heartbeat";
+
+    private final Executor executor;
+    private final int bufferSize;
+    private final long timeout;
+    private final ScheduledExecutorService heartbeats;
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final AtomicLong latestVersion = new AtomicLong();
+
+    @Autowired
+    public TopologyEventBroadcaster(@Value("${device-api.topology.events.buffer-size:256}") int bufferSize,
+            @Value("${device-api.topology.events.timeout-ms:600000}") long timeout,
+            @Value("${device-api.topology.events.heartbeat-ms:15000}") long heartbeatMs) {
+        this(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("topology-events-", 0).factory()),
+                bufferSize, timeout);
+        if (heartbeatMs > 0) {
+            heartbeats.scheduleAtFixedRate(this::sendHeartbeats, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    TopologyEventBroadcaster(Executor executor, int bufferSize, long timeout) {
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        this.timeout = timeout;
+        this.heartbeats = Executors.newSingleThreadScheduledExecutor(
+                Thread.ofPlatform().daemon().name("topology-events-heartbeat").factory());
+    }
+
+    /**
+     * Stops the heartbeats and the drains in progress, completing all subscriptions.
+     */
+    @PreDestroy
+    public void shutdown() {
+        heartbeats.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            subscriber.emitter.complete();
+        }
+        subscribers.clear();
+        if (executor instanceof ExecutorService executorService) {
+            executorService.shutdownNow();
+        }
+    }
+
+    /**
+     * Registers a new subscriber.
+     *
+     * @return the emitter streaming changes to the subscriber
+     */
+    public SseEmitter subscribe() {
+        return subscribe(new SseEmitter(timeout));
+    }
+
+    SseEmitter subscribe(SseEmitter emitter) {
+        Subscriber subscriber = new Subscriber(emitter, new ArrayBlockingQueue<>(bufferSize));
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        return emitter;
+    }
+
+    /**
+     * Returns the number of active subscribers.
+     *
+     * @return the subscriber count
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Offers a committed topology change to all subscribers without blocking. Changes are
+     * published while the topology index is locked, and so arrive in version order.
+     *
+     * @param change the topology change
+     */
+    @EventListener
+    public void onTopologyChange(TopologyChangeDto change) {
+        latestVersion.accumulateAndGet(change.getVersion(), Math::max);
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.buffer.offer(change)) {
+                subscriber.overflowed.set(true);
+                subscriber.buffer.clear();
+            }
+            scheduleDrain(subscriber);
+        }
+    }
+
+    /**
+     * Asks every subscriber's drain to send a heartbeat comment.
+     */
+    void sendHeartbeats() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.heartbeatDue.set(true);
+            scheduleDrain(subscriber);
+        }
+    }
+
+    private void scheduleDrain(Subscriber subscriber) {
+        if (subscriber.draining.compareAndSet(false, true)) {
+            executor.execute(() -> drain(subscriber));
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        try {
+            while (true) {
+                if (subscriber.heartbeatDue.getAndSet(false)) {
+                    subscriber.emitter.send(SseEmitter.event().comment(HEARTBEAT_COMMENT));
+                }
+                if (subscriber.overflowed.getAndSet(false)) {
+                    subscriber.buffer.clear();
+                    subscriber.emitter.send(SseEmitter.event()
+                            .name(RESYNC_EVENT)
+                            .data(latestVersion.get()));
+                }
+                TopologyChangeDto change = subscriber.buffer.poll();
+                if (change == null) {
+                    break;
+                }
+                subscriber.emitter.send(SseEmitter.event()
+                        .name(CHANGE_EVENT)
+                        .id(String.valueOf(change.getVersion()))
+                        .data(change, MediaType.APPLICATION_JSON));
+            }
+        } catch (IOException | IllegalStateException e) {
+            subscribers.remove(subscriber);
+            subscriber.emitter.completeWithError(e);
+            return;
+        } finally {
+            subscriber.draining.set(false);
+        }
+
+        // a change may have arrived between the last poll and releasing the drain flag
+        if (!subscriber.buffer.isEmpty() || subscriber.overflowed.get() || subscriber.heartbeatDue.get()) {
+            scheduleDrain(subscriber);
+        }
+    }
+
+    private record Subscriber(SseEmitter emitter, Queue<TopologyChangeDto> buffer,
+            AtomicBoolean overflowed, AtomicBoolean heartbeatDue, AtomicBoolean draining) {
+
+        Subscriber(SseEmitter emitter, Queue<TopologyChangeDto> buffer) {
+            this(emitter, buffer, new AtomicBoolean(), new AtomicBoolean(), new AtomicBoolean());
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package cz.jbenes.ubiquity.device_api.controller.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteConstraints;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import cz.jbenes.ubiquity.device_api.util.SingleFlight;
+
+/**
+ * Cache of serialized topology responses, keyed by topology version.
+ * <p>
+ * Holds the bytes of the full topology, in both the nested and the flat format, and of
+ * the most recently requested subtrees, in every requested {@link TopologyEncoding}
+ * and each together with a gzip variant, so that repeated requests for an unchanged topology
+ * are answered without serialization or compression. Any version change invalidates
+ * all entries. Concurrent misses for the same entry and version share one encoding.
+ * </p>
+ * <p>
+ * Entries are encoded by a {@link TopologyWriter} streaming tokens into a generator of the
+ * requested encoding, which has no nesting limit so that arbitrarily deep daisy chains can be written.
+ * </p>
+ */
+@Component
+public class TopologyResponseCache {
+
+    /**
+     * Serialized topology response.
+     *
+     * @param version the topology version the content was built from
+     * @param content the encoded bytes
+     * @param gzip the gzip-compressed encoded bytes
+     */
+    public record EncodedTopology(long version, byte[] content, byte[] gzip) {
+    }
+
+    /**
+     * Writes a topology into a generator.
+     */
+    @FunctionalInterface
+    public interface TopologyWriter {
+
+        /**
+         * Writes the topology.
+         *
+         * @param generator the generator to write to
+         * @return the topology version the written content reflects
+         * @throws IOException if writing fails
+         */
+        long write(JsonGenerator generator) throws IOException;
+    }
+
+    private final Map<TopologyEncoding, JsonFactory> factories = new EnumMap<>(TopologyEncoding.class);
+    private final int maxSubtrees;
+
+    // full topologies keyed by format and encoding
+    private final Map<String, EncodedTopology> forests = new ConcurrentHashMap<>();
+
+    // encodings in progress keyed by entry and version
+    private final SingleFlight<String, EncodedTopology> encodings = new SingleFlight<>();
+
+    private final Lock subtreeLock = new ReentrantLock();
+    private final Map<String, EncodedTopology> subtrees;
+    private long subtreeVersion;
+
+    public TopologyResponseCache(ObjectMapper objectMapper,
+            @Value("${device-api.topology.response-cache.max-subtrees:256}") int maxSubtrees) {
+        StreamWriteConstraints unlimitedNesting = StreamWriteConstraints.builder().maxNestingDepth(Integer.MAX_VALUE).build();
+        factories.put(TopologyEncoding.JSON,
+                objectMapper.getFactory().rebuild().streamWriteConstraints(unlimitedNesting).build());
+        factories.put(TopologyEncoding.CBOR, CBORFactory.builder().streamWriteConstraints(unlimitedNesting).build());
+        factories.put(TopologyEncoding.SMILE, SmileFactory.builder().streamWriteConstraints(unlimitedNesting).build());
+        this.maxSubtrees = maxSubtrees;
+        this.subtrees = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, EncodedTopology> eldest) {
+                return size() > TopologyResponseCache.this.maxSubtrees;
+            }
+        };
+    }
+
+    /**
+     * Returns the serialized full topology of the given version, loading and encoding it on a miss.
+     *
+     * @param version the current topology version
+     * @param encoding the requested encoding
+     * @param writer writes the full topology on a miss
+     * @return the serialized full topology
+     */
+    public EncodedTopology getFullTopology(long version, TopologyEncoding encoding, TopologyWriter writer) {
+        return getForest("nested/" + encoding, version, encoding, writer);
+    }
+
+    /**
+     * Returns the full topology of the given version serialized in the flat format, loading and encoding it on a miss.
+     *
+     * @param version the current topology version
+     * @param encoding the requested encoding
+     * @param writer writes the flat topology on a miss
+     * @return the serialized flat topology
+     */
+    public EncodedTopology getFlatTopology(long version, TopologyEncoding encoding, TopologyWriter writer) {
+        return getForest("flat/" + encoding, version, encoding, writer);
+    }
+
+    private EncodedTopology getForest(String key, long version, TopologyEncoding encoding, TopologyWriter writer) {
+        EncodedTopology current = forests.get(key);
+        if (current != null && current.version() == version) {
+            return current;
+        }
+        current = encodings.execute(key + '@' + version, () -> encode(encoding, writer));
+        // a slow encoding of an older version must not replace a newer one stored meanwhile
+        forests.merge(key, current, (stored, encoded) -> encoded.version() >= stored.version() ? encoded : stored);
+        return current;
+    }
+
+    /**
+     * Returns the serialized subtree of the given key and version, loading and encoding it on a miss.
+     *
+     * @param version the current topology version
+     * @param key identifies the subtree root and query bounds
+     * @param encoding the requested encoding
+     * @param writer writes the subtree on a miss
+     * @return the serialized subtree
+     */
+    public EncodedTopology getSubtree(long version, String key, TopologyEncoding encoding, TopologyWriter writer) {
+        key = encoding + "|" + key;
+        subtreeLock.lock();
+        try {
+            if (subtreeVersion != version) {
+                subtrees.clear();
+                subtreeVersion = version;
+            }
+            EncodedTopology cached = subtrees.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        } finally {
+            subtreeLock.unlock();
+        }
+
+        // encode outside of the lock, concurrent misses for the same subtree wait for one encoding
+        EncodedTopology encoded = encodings.execute("subtree/" + key + '@' + version, () -> encode(encoding, writer));
+        subtreeLock.lock();
+        try {
+            // a subtree written after a concurrent change must not be cached under the older version
+            if (subtreeVersion == version && encoded.version() == version) {
+                subtrees.put(key, encoded);
+            }
+        } finally {
+            subtreeLock.unlock();
+        }
+        return encoded;
+    }
+
+    private EncodedTopology encode(TopologyEncoding encoding, TopologyWriter writer) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long version;
+            try (JsonGenerator generator = factories.get(encoding).createGenerator(out)) {
+                version = writer.write(generator);
+            }
+            byte[] content = out.toByteArray();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(content);
+            }
+            return new EncodedTopology(version, content, compressed.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package cz.jbenes.ubiquity.device_api.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Counters of the cache in front of single device lookups, accumulated since startup.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DeviceLookupCacheStatsDto {
+
+    /**
+     * Lookups answered with a cached device.
+     */
+    private long hits;
+
+    /**
+     * Lookups answered with a cached absence of the device.
+     */
+    private long negativeHits;
+
+    /**
+     * Lookups that went to the database.
+     */
+    private long misses;
+
+    /**
+     * Entries dropped to keep the cache within its size.
+     */
+    private long evictions;
+
+    /**
+     * Entries dropped because their time to live elapsed.
+     */
+    private long expirations;
+
+    private int size;
+}
@@ -0,0 +1,19 @@
+package cz.jbenes.ubiquity.device_api.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DevicePageDto {
+    private List<DeviceResponseDto> devices;
+
+    /**
+     * Opaque cursor for the next page, null on the last page.
+     */
+    private String nextCursor;
+}
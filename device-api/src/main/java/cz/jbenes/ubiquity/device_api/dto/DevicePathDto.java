@@ -0,0 +1,28 @@
+package cz.jbenes.ubiquity.device_api.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Hop path between two devices through their lowest common ancestor.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DevicePathDto {
+
+    /**
+     * Deepest device both devices are connected through, which may be one of the two devices
+     * itself; null if they belong to different topologies.
+     */
+    private String commonAncestorMacAddress;
+
+    /**
+     * MAC addresses from the source device up to the common ancestor and down to the target
+     * device, empty if the devices are not connected.
+     */
+    private List<String> path;
+}
@@ -1,9 +1,12 @@
 package cz.jbenes.ubiquity.device_api.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import cz.jbenes.ubiquity.device_api.model.DeviceType;
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 @Data
 @AllArgsConstructor
@@ -11,4 +14,18 @@ import lombok.NoArgsConstructor;
 public class DeviceResponseDto {
     private String macAddress;
     private DeviceType deviceType;
+
+    /**
+     * Set by a registration that stored the device for the first time, which is answered with
+     * 201 Created instead of 200 OK. Not part of the response body.
+     */
+    @JsonIgnore
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private boolean created;
+
+    public DeviceResponseDto(String macAddress, DeviceType deviceType) {
+        this.macAddress = macAddress;
+        this.deviceType = deviceType;
+    }
 }
@@ -0,0 +1,25 @@
+package cz.jbenes.ubiquity.device_api.dto;
+
+import java.util.Map;
+
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Aggregates of the devices connected below a device, directly or through other devices.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class DeviceStatsDto {
+    private String macAddress;
+
+    private int descendantCount;
+
+    /**
+     * Number of descendants of every device type, zero counts included.
+     */
+    private Map<DeviceType, Integer> descendantCountsByType;
+}
@@ -0,0 +1,35 @@
+package cz.jbenes.ubiquity.device_api.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Progress of a registration accepted for background processing.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class RegistrationStatusDto {
+
+    public enum State {
+        PENDING, COMPLETED, FAILED
+    }
+
+    /**
+     * Opaque token under which the status can be queried.
+     */
+    private String token;
+
+    private State state;
+
+    /**
+     * The registered device once the registration is completed, null otherwise.
+     */
+    private DeviceResponseDto device;
+
+    /**
+     * The reason of a failed registration, null otherwise.
+     */
+    private String error;
+}
@@ -0,0 +1,23 @@
+package cz.jbenes.ubiquity.device_api.dto;
+
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Device added to or re-parented in the topology by a committed registration.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TopologyChangeDto {
+    private String macAddress;
+    private DeviceType deviceType;
+    private String uplinkMacAddress;
+
+    /**
+     * Topology version that includes this change.
+     */
+    private long version;
+}
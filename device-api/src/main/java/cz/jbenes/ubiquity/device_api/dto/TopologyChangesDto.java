@@ -0,0 +1,29 @@
+package cz.jbenes.ubiquity.device_api.dto;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Topology changes since a version known to the client.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class TopologyChangesDto {
+
+    /**
+     * Current topology version, to be passed as {@code since} on the next request.
+     */
+    private long version;
+
+    /**
+     * True if the requested version is no longer covered by the change log and the client
+     * has to fetch the full topology.
+     */
+    private boolean resyncRequired;
+
+    private List<TopologyChangeDto> changes;
+}
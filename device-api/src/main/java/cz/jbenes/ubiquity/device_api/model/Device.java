@@ -1,24 +1,57 @@
 package cz.jbenes.ubiquity.device_api.model;
 
+import cz.jbenes.ubiquity.device_api.util.MacAddress;
+import jakarta.persistence.Column;
 import jakarta.persistence.Entity;
 import jakarta.persistence.EnumType;
 import jakarta.persistence.Enumerated;
+import jakarta.persistence.FetchType;
 import jakarta.persistence.Id;
+import jakarta.persistence.Index;
 import jakarta.persistence.JoinColumn;
 import jakarta.persistence.ManyToOne;
+import jakarta.persistence.PrePersist;
+import jakarta.persistence.PreUpdate;
+import jakarta.persistence.Table;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Setter;
 
 @Entity
+@Table(indexes = @Index(name = "idx_device_type_rank_mac", columnList = "type_rank, mac_address"))
 @Data
 public class Device {
 
     @Id
     private String macAddress;
 
+    /**
+     * 48-bit value of {@link #macAddress}, null if the identifier is not a MAC address. Unique,
+     * so that no two notations of one MAC address can be stored as separate devices.
+     */
+    @Column(name = "mac_key", unique = true)
+    @Setter(AccessLevel.NONE)
+    private Long macKey;
+
     @Enumerated(EnumType.STRING)
     private DeviceType deviceType;
 
-    @ManyToOne
+    /**
+     * Sort order of {@link #deviceType}, stored so that sorted listings can be paged by index.
+     */
+    @Column(name = "type_rank", nullable = false)
+    @Setter(AccessLevel.NONE)
+    private int typeRank;
+
+    @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "uplink_mac")
     private Device uplink;
+
+    @PrePersist
+    @PreUpdate
+    void updateDerivedColumns() {
+        typeRank = deviceType != null ? deviceType.getSortOrder() : Integer.MAX_VALUE;
+        long key = MacAddress.tryParse(macAddress);
+        macKey = key != MacAddress.INVALID ? key : null;
+    }
 }
@@ -1,5 +1,16 @@
 package cz.jbenes.ubiquity.device_api.model;
 
 public enum DeviceType {
-    GATEWAY, SWITCH, ACCESS_POINT
+    GATEWAY, SWITCH, ACCESS_POINT;
+
+    /**
+     * Determines sort order by device type: Gateway > Switch > Access Point.
+     */
+    public int getSortOrder() {
+        return switch (this) {
+            case GATEWAY -> 0;
+            case SWITCH -> 1;
+            case ACCESS_POINT -> 2;
+        };
+    }
 }
@@ -1,9 +1,136 @@
 package cz.jbenes.ubiquity.device_api.repository;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import org.hibernate.jpa.HibernateHints;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
 import cz.jbenes.ubiquity.device_api.model.Device;
+import jakarta.persistence.QueryHint;
+
+public interface DeviceRepository extends JpaRepository<Device, String>, DeviceRepositoryCustom {
+
+    /**
+     * Returns which of the given MAC addresses belong to stored devices, in a single query.
+     *
+     * @param macAddresses the MAC addresses to check
+     * @return the MAC addresses that exist
+     */
+    @Query("SELECT d.macAddress FROM Device d WHERE d.macAddress IN :macAddresses")
+    List<String> findExistingMacAddresses(@Param("macAddresses") Collection<String> macAddresses);
+
+    /**
+     * Loads the device with the given 48-bit MAC address value through the unique {@code mac_key}
+     * index, whichever notation its MAC address is stored in.
+     *
+     * @param macKey the value of the MAC address
+     * @return the device, empty if there is none
+     */
+    Optional<Device> findByMacKey(Long macKey);
+
+    /**
+     * Loads MAC address and type of all devices in a single query, without touching uplinks.
+     *
+     * @return the device summaries in storage order
+     */
+    @Query("SELECT d.macAddress AS macAddress, d.deviceType AS deviceType FROM Device d")
+    List<DeviceSummaryView> findAllSummaries();
+
+    /**
+     * Streams MAC address and type of all devices through a database cursor, ordered
+     * Gateway > Switch > Access Point and then by MAC address.
+     * <p>
+     * Must be consumed inside a transaction and closed afterwards.
+     * </p>
+     *
+     * @return the sorted device summaries
+     */
+    @QueryHints(@QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"))
+    @Query("SELECT d.macAddress AS macAddress, d.deviceType AS deviceType FROM Device d "
+            + "ORDER BY d.typeRank, d.macAddress")
+    Stream<DeviceSummaryView> streamAllSummariesSorted();
+
+    /**
+     * Loads the first page of devices ordered Gateway > Switch > Access Point and then by MAC address.
+     *
+     * @param limit the maximum number of devices
+     * @return the sorted device summaries
+     */
+    @Query("SELECT d.macAddress AS macAddress, d.deviceType AS deviceType FROM Device d "
+            + "ORDER BY d.typeRank, d.macAddress")
+    List<DeviceSummaryView> findSummariesSorted(Limit limit);
+
+    /**
+     * Loads the page of devices following the given position in the order of
+     * {@link #findSummariesSorted(Limit)}, seeking through the {@code (type_rank, mac_address)} index.
+     *
+     * @param typeRank the type sort order of the last device of the previous page
+     * @param macAddress the MAC address of the last device of the previous page
+     * @param limit the maximum number of devices
+     * @return the sorted device summaries
+     */
+    @Query("SELECT d.macAddress AS macAddress, d.deviceType AS deviceType FROM Device d "
+            + "WHERE (d.typeRank, d.macAddress) > (:typeRank, :macAddress) "
+            + "ORDER BY d.typeRank, d.macAddress")
+    List<DeviceSummaryView> findSummariesSortedAfter(@Param("typeRank") int typeRank,
+            @Param("macAddress") String macAddress, Limit limit);
+
+    /**
+     * Loads the uplink relation of all devices in a single query, reading the uplink MAC
+     * from the foreign key column instead of fetching the uplink entities.
+     *
+     * @return the flat topology rows in storage order
+     */
+    @Query("SELECT d.macAddress AS macAddress, u.macAddress AS uplinkMac, d.deviceType AS deviceType "
+            + "FROM Device d LEFT JOIN d.uplink u")
+    List<DeviceTopologyView> findAllTopologyViews();
+
+    /**
+     * Loads the device with the given MAC address and all of its descendants in a single query.
+     *
+     * @param macAddress the MAC address of the subtree root
+     * @return the flat subtree rows, empty if the root does not exist
+     */
+    @Query(value = """
+            WITH RECURSIVE subtree(mac_address, uplink_mac, device_type) AS (
+                SELECT d.mac_address, d.uplink_mac, d.device_type
+                FROM device d
+                WHERE d.mac_address = :macAddress
+                UNION
+                SELECT d.mac_address, d.uplink_mac, d.device_type
+                FROM device d
+                JOIN subtree s ON d.uplink_mac = s.mac_address
+            )
+            SELECT mac_address AS "macAddress", uplink_mac AS "uplinkMac", device_type AS "deviceType"
+            FROM subtree
+            """, nativeQuery = true)
+    List<DeviceTopologyView> findSubtree(@Param("macAddress") String macAddress);
 
-public interface DeviceRepository extends JpaRepository<Device, String> {
-    
+    /**
+     * Loads the device with the given MAC address and all of its ancestors in a single query.
+     *
+     * @param macAddress the MAC address of the device
+     * @return the flat rows of the uplink chain in no particular order, empty if the device does not exist
+     */
+    @Query(value = """
+            WITH RECURSIVE ancestors(mac_address, uplink_mac, device_type) AS (
+                SELECT d.mac_address, d.uplink_mac, d.device_type
+                FROM device d
+                WHERE d.mac_address = :macAddress
+                UNION
+                SELECT d.mac_address, d.uplink_mac, d.device_type
+                FROM device d
+                JOIN ancestors a ON d.mac_address = a.uplink_mac
+            )
+            SELECT mac_address AS "macAddress", uplink_mac AS "uplinkMac", device_type AS "deviceType"
+            FROM ancestors
+            """, nativeQuery = true)
+    List<DeviceTopologyView> findAncestors(@Param("macAddress") String macAddress);
 }
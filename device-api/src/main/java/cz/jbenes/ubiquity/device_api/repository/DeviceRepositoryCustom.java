@@ -0,0 +1,51 @@
+package cz.jbenes.ubiquity.device_api.repository;
+
+import java.util.List;
+
+import cz.jbenes.ubiquity.device_api.model.Device;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+
+/**
+ * Bulk and single-statement operations on devices that bypass the per-entity merge of {@code save()}.
+ */
+public interface DeviceRepositoryCustom {
+
+    /**
+     * Outcome of {@link #upsert(String, DeviceType, String)}.
+     */
+    enum UpsertResult {
+        CREATED,
+        UPDATED,
+        /**
+         * Nothing was written because the uplink does not exist.
+         */
+        UPLINK_NOT_FOUND
+    }
+
+    /**
+     * Inserts devices that are known not to exist yet, using JDBC batching.
+     * <p>
+     * Devices must be ordered so that every uplink is either already stored or precedes
+     * its children in the list. Uplinks are resolved by MAC address as references, so no
+     * select is issued for them.
+     * </p>
+     *
+     * @param devices the new devices, uplinks first
+     */
+    void insertAll(List<Device> devices);
+
+    /**
+     * Inserts a device or updates the stored one in a single MERGE statement, in which the
+     * foreign key validates the uplink.
+     * <p>
+     * Concurrent upserts of the same device do not race between a lookup and the write,
+     * one of them inserts the row and the others update it.
+     * </p>
+     *
+     * @param macAddress the MAC address of the device
+     * @param deviceType the type of the device
+     * @param uplinkMacAddress the MAC address of its uplink, or null for a root device
+     * @return whether the device was created or updated, or that its uplink does not exist
+     */
+    UpsertResult upsert(String macAddress, DeviceType deviceType, String uplinkMacAddress);
+}
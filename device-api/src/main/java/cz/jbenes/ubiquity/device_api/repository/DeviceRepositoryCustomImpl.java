@@ -0,0 +1,127 @@
+package cz.jbenes.ubiquity.device_api.repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Types;
+import java.util.List;
+
+import org.hibernate.Session;
+import org.springframework.beans.factory.annotation.Value;
+
+import cz.jbenes.ubiquity.device_api.model.Device;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.util.MacAddress;
+import jakarta.persistence.EntityManager;
+
+/**
+ * {@inheritDoc}
+ */
+public class DeviceRepositoryCustomImpl implements DeviceRepositoryCustom {
+
+    // reported by H2 when a foreign key refers to a missing row
+    private static final String PARENT_MISSING_SQL_STATE = "23506";
+    private static final String DUPLICATE_KEY_SQL_STATE = "23505";
+
+    // the old-table delta of a MERGE holds the previous row of an update and nothing for an insert
+    private static final String UPSERT = """
+            SELECT COUNT(*) FROM OLD TABLE (
+                MERGE INTO device d
+                USING (SELECT CAST(? AS VARCHAR(255)) AS mac_address,
+                              CAST(? AS VARCHAR(255)) AS device_type,
+                              CAST(? AS INTEGER) AS type_rank,
+                              CAST(? AS VARCHAR(255)) AS uplink_mac,
+                              CAST(? AS BIGINT) AS mac_key) s
+                ON d.mac_address = s.mac_address
+                WHEN MATCHED THEN UPDATE SET
+                    device_type = s.device_type, type_rank = s.type_rank, uplink_mac = s.uplink_mac
+                WHEN NOT MATCHED THEN INSERT (mac_address, device_type, type_rank, uplink_mac, mac_key)
+                    VALUES (s.mac_address, s.device_type, s.type_rank, s.uplink_mac, s.mac_key)
+            )
+            """;
+
+    private final EntityManager entityManager;
+    private final int batchSize;
+
+    public DeviceRepositoryCustomImpl(EntityManager entityManager,
+            @Value("${spring.jpa.properties.hibernate.jdbc.batch_size:500}") int batchSize) {
+        this.entityManager = entityManager;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void insertAll(List<Device> devices) {
+        for (int i = 0; i < devices.size(); i++) {
+            Device device = devices.get(i);
+            if (device.getUplink() != null) {
+                device.setUplink(entityManager.getReference(Device.class, device.getUplink().getMacAddress()));
+            }
+            entityManager.persist(device);
+
+            // keep the persistence context small, flushed uplinks are then resolved as proxies
+            if ((i + 1) % batchSize == 0) {
+                entityManager.flush();
+                entityManager.clear();
+            }
+        }
+        entityManager.flush();
+        entityManager.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Runs on the JDBC connection of the current session within a savepoint, so that a violated
+     * constraint fails only the statement and not the transaction. A concurrent transaction that
+     * inserted the same device first makes the insert fail on the duplicate key, the statement is
+     * then repeated as an update.
+     * </p>
+     */
+    @Override
+    public UpsertResult upsert(String macAddress, DeviceType deviceType, String uplinkMacAddress) {
+        entityManager.flush();
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try {
+                return merge(connection, macAddress, deviceType, uplinkMacAddress);
+            } catch (SQLException e) {
+                if (DUPLICATE_KEY_SQL_STATE.equals(e.getSQLState())) {
+                    return merge(connection, macAddress, deviceType, uplinkMacAddress);
+                }
+                throw e;
+            }
+        });
+    }
+
+    private static UpsertResult merge(Connection connection, String macAddress, DeviceType deviceType,
+            String uplinkMacAddress) throws SQLException {
+        long macKey = MacAddress.tryParse(macAddress);
+        // H2 keeps the rows of a failed MERGE inside a data change delta table, so undo them explicitly
+        Savepoint savepoint = connection.setSavepoint();
+        try (PreparedStatement statement = connection.prepareStatement(UPSERT)) {
+            statement.setString(1, macAddress);
+            statement.setString(2, deviceType.name());
+            statement.setInt(3, deviceType.getSortOrder());
+            statement.setString(4, uplinkMacAddress);
+            if (macKey != MacAddress.INVALID) {
+                statement.setLong(5, macKey);
+            } else {
+                statement.setNull(5, Types.BIGINT);
+            }
+            try (ResultSet result = statement.executeQuery()) {
+                result.next();
+                return result.getInt(1) > 0 ? UpsertResult.UPDATED : UpsertResult.CREATED;
+            }
+        } catch (SQLException e) {
+            connection.rollback(savepoint);
+            if (PARENT_MISSING_SQL_STATE.equals(e.getSQLState())) {
+                return UpsertResult.UPLINK_NOT_FOUND;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package cz.jbenes.ubiquity.device_api.repository;
+
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+
+/**
+ * Projection of a device without its uplink.
+ */
+public interface DeviceSummaryView {
+
+    String getMacAddress();
+
+    DeviceType getDeviceType();
+}
@@ -0,0 +1,15 @@
+package cz.jbenes.ubiquity.device_api.repository;
+
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+
+/**
+ * Flat projection of a device and the MAC address of its uplink.
+ */
+public interface DeviceTopologyView {
+
+    String getMacAddress();
+
+    String getUplinkMac();
+
+    DeviceType getDeviceType();
+}
@@ -0,0 +1,212 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceLookupCacheStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+
+/**
+ * Bounded cache of single device lookups by MAC address.
+ * <p>
+ * Holds found devices for {@code device-api.device-cache.ttl-ms} and the absence of unknown
+ * devices for {@code device-api.device-cache.negative-ttl-ms}, so that pollers asking for
+ * devices that do not exist do not reach the database either. Beyond
+ * {@code device-api.device-cache.max-entries} the least recently used of a few sampled entries
+ * is evicted, 0 disables the cache.
+ * </p>
+ * <p>
+ * Lookups do not lock. Registrations invalidate the entry of their device: a lookup marks its
+ * key while loading and stores its result only if the mark is still there, so a result that may
+ * predate an overlapping registration of the same device is dropped.
+ * </p>
+ */
+@Component
+public class DeviceLookupCache {
+
+    // entries inspected per eviction, walked round-robin across the map
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final LongSupplier clock;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Lock evictionLock = new ReentrantLock();
+    // guarded by evictionLock
+    private Iterator<Map.Entry<String, Entry>> evictionHand = entries.entrySet().iterator();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    @Autowired
+    public DeviceLookupCache(@Value("${device-api.device-cache.max-entries:10000}") int maxEntries,
+            @Value("${device-api.device-cache.ttl-ms:60000}") long ttlMs,
+            @Value("${device-api.device-cache.negative-ttl-ms:5000}") long negativeTtlMs) {
+        this(maxEntries, ttlMs, negativeTtlMs, System::nanoTime);
+    }
+
+    DeviceLookupCache(int maxEntries, long ttlMs, long negativeTtlMs, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMs);
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the device of the given MAC address, loading it on a miss.
+     *
+     * @param macAddress the canonical MAC address
+     * @param loader loads the device from the database
+     * @return the device, or empty if it does not exist
+     */
+    public Optional<DeviceResponseDto> get(String macAddress, Function<String, Optional<DeviceResponseDto>> loader) {
+        if (maxEntries == 0) {
+            misses.increment();
+            return loader.apply(macAddress);
+        }
+        long now = clock.getAsLong();
+        Entry entry = entries.get(macAddress);
+        if (entry != null && !entry.loading) {
+            if (now - entry.expiresAt < 0) {
+                entry.accessedAt = now;
+                if (entry.deviceType == null) {
+                    negativeHits.increment();
+                    return Optional.empty();
+                }
+                hits.increment();
+                return Optional.of(new DeviceResponseDto(macAddress, entry.deviceType));
+            }
+            if (entries.remove(macAddress, entry)) {
+                expirations.increment();
+            }
+        }
+
+        misses.increment();
+        Entry loading = new Entry(null, now, now, true);
+        entries.put(macAddress, loading);
+        try {
+            Optional<DeviceResponseDto> device = loader.apply(macAddress);
+            DeviceType deviceType = device.map(DeviceResponseDto::getDeviceType).orElse(null);
+            long loadedAt = clock.getAsLong();
+            Entry loaded = new Entry(deviceType, loadedAt + (deviceType != null ? ttlNanos : negativeTtlNanos),
+                    loadedAt, false);
+            if (entries.replace(macAddress, loading, loaded)) {
+                evictBeyondMaxEntries();
+            }
+            return device;
+        } finally {
+            entries.remove(macAddress, loading);
+        }
+    }
+
+    /**
+     * Drops the entry of a device whose registration was committed, including the mark of a
+     * lookup of the device still loading.
+     *
+     * @param macAddress the canonical MAC address
+     */
+    public void invalidate(String macAddress) {
+        entries.remove(macAddress);
+    }
+
+    /**
+     * Returns the counters accumulated since startup.
+     *
+     * @return the cache statistics
+     */
+    public DeviceLookupCacheStatsDto getStats() {
+        return new DeviceLookupCacheStatsDto(hits.sum(), negativeHits.sum(), misses.sum(), evictions.sum(),
+                expirations.sum(), entries.size());
+    }
+
+    /**
+     * Evicts entries until the cache is within its size. Only one thread evicts at a time,
+     * others skip the work and leave the cache over its size until that thread catches up.
+     */
+    private void evictBeyondMaxEntries() {
+        while (entries.size() > maxEntries && evictionLock.tryLock()) {
+            try {
+                if (!evictSampled()) {
+                    return;
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes an expired entry, or the least recently used one, among the next sampled entries.
+     *
+     * @return whether an entry was removed
+     */
+    private boolean evictSampled() {
+        long now = clock.getAsLong();
+        String victimKey = null;
+        Entry victim = null;
+        for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+            if (!evictionHand.hasNext()) {
+                evictionHand = entries.entrySet().iterator();
+                if (!evictionHand.hasNext()) {
+                    break;
+                }
+            }
+            Map.Entry<String, Entry> candidate = evictionHand.next();
+            Entry entry = candidate.getValue();
+            if (entry.loading) {
+                continue;
+            }
+            if (now - entry.expiresAt >= 0) {
+                if (entries.remove(candidate.getKey(), entry)) {
+                    expirations.increment();
+                    return true;
+                }
+            } else if (victim == null || entry.accessedAt - victim.accessedAt < 0) {
+                victimKey = candidate.getKey();
+                victim = entry;
+            }
+        }
+        if (victim == null || !entries.remove(victimKey, victim)) {
+            return false;
+        }
+        evictions.increment();
+        return true;
+    }
+
+    /**
+     * Cached lookup result, a null device type records that the device does not exist. A loading
+     * entry marks a lookup in progress and is replaced by its result.
+     */
+    private static final class Entry {
+
+        private final DeviceType deviceType;
+        private final long expiresAt;
+        private final boolean loading;
+        private volatile long accessedAt;
+
+        private Entry(DeviceType deviceType, long expiresAt, long accessedAt, boolean loading) {
+            this.deviceType = deviceType;
+            this.expiresAt = expiresAt;
+            this.accessedAt = accessedAt;
+            this.loading = loading;
+        }
+    }
+}
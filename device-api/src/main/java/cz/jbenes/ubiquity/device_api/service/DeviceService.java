@@ -1,10 +1,20 @@
 package cz.jbenes.ubiquity.device_api.service;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.function.Consumer;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceLookupCacheStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePageDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePathDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangesDto;
 import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+import cz.jbenes.ubiquity.device_api.util.TopologySnapshot;
 
 /**
  * Service interface for managing devices and their network topology.
@@ -19,9 +29,22 @@ public interface DeviceService {
      *
      * @param request the device registration request data
      * @return the response DTO containing registered device information
+     * @throws IllegalArgumentException if the uplink is the device itself or connected below it
      */
     DeviceResponseDto registerDevice(DeviceRequestDto request);
 
+    /**
+     * Registers multiple devices in a single transaction.
+     * <p>
+     * Uplinks may refer to stored devices or to other devices in the same batch.
+     * </p>
+     *
+     * @param requests the device registration requests
+     * @return the response DTOs in the order of the requests
+     * @throws IllegalArgumentException if the uplinks would form a cycle, within the batch or through stored devices
+     */
+    List<DeviceResponseDto> registerDevices(List<DeviceRequestDto> requests);
+
     /**
      * Retrieves all registered devices sorted by a predefined order.
      *
@@ -29,6 +52,23 @@ public interface DeviceService {
      */
     List<DeviceResponseDto> getAllDevicesSorted();
 
+    /**
+     * Retrieves one page of registered devices sorted by a predefined order.
+     *
+     * @param limit the maximum number of devices on the page
+     * @param after the cursor returned with the previous page, or null for the first page
+     * @return the page of devices with the cursor of the next page
+     */
+    DevicePageDto getDevicesPage(int limit, String after);
+
+    /**
+     * Passes all registered devices, sorted by a predefined order, to the given action
+     * one by one without loading them all into memory.
+     *
+     * @param action the action invoked for each device
+     */
+    void forEachDeviceSorted(Consumer<DeviceResponseDto> action);
+
     /**
      * Retrieves a device by its MAC address.
      *
@@ -37,6 +77,13 @@ public interface DeviceService {
      */
     DeviceResponseDto getDeviceByMac(String macAddress);
 
+    /**
+     * Retrieves the counters of the cache in front of {@link #getDeviceByMac(String)}.
+     *
+     * @return the cache statistics
+     */
+    DeviceLookupCacheStatsDto getLookupCacheStats();
+
     /**
      * Retrieves the full network topology of all devices.
      *
@@ -44,6 +91,49 @@ public interface DeviceService {
      */
     List<TopologyNode> getFullTopology();
 
+    /**
+     * Returns the current topology version, which changes with every committed registration.
+     *
+     * @return the topology version
+     */
+    long getTopologyVersion();
+
+    /**
+     * Retrieves the topology changes committed after the given version.
+     *
+     * @param since the topology version known to the caller
+     * @return the changes, or a resync marker if they are no longer available
+     */
+    TopologyChangesDto getTopologyChanges(long since);
+
+    /**
+     * Retrieves the full network topology together with the version it was built from.
+     *
+     * @return the topology snapshot
+     */
+    TopologySnapshot getTopologySnapshot();
+
+    /**
+     * Writes the full network topology as a JSON array of nested nodes while walking it,
+     * without materializing the tree.
+     *
+     * @param generator the generator to write to
+     * @return the topology version the written content reflects
+     * @throws IOException if writing fails
+     */
+    long writeFullTopology(JsonGenerator generator) throws IOException;
+
+    /**
+     * Writes the full network topology in the flat format: a JSON object with the topology
+     * version and parallel arrays of MAC addresses, device types and uplink indices in pre-order,
+     * where roots have the uplink index -1.
+     *
+     * @param generator the generator to write to
+     * @return the topology version the written content reflects
+     * @throws IOException if writing fails
+     */
+    long writeFlatTopology(JsonGenerator generator) throws IOException;
+
     /**
      * Retrieves the network topology starting from the specified device.
      *
@@ -51,5 +141,71 @@ public interface DeviceService {
      * @return the topology node representing the device and its connections
      */
     TopologyNode getTopologyFrom(String macAddress);
-    
+
+    /**
+     * Retrieves a bounded part of the network topology starting from the specified device.
+     * <p>
+     * Nodes whose children are cut off carry the total child count, and a cursor if more
+     * children follow; the remaining children of such a node are fetched by querying the
+     * node itself with that cursor.
+     * </p>
+     *
+     * @param macAddress the MAC address of the root device for the topology
+     * @param maxDepth the maximum depth below the root, or null for unlimited
+     * @param childLimit the maximum number of children returned per node, or null for unlimited
+     * @param childCursor the cursor of the first child of the root to return, or null for the first child
+     * @return the topology node representing the device and its connections
+     */
+    TopologyNode getTopologyFrom(String macAddress, Integer maxDepth, Integer childLimit, String childCursor);
+
+    /**
+     * Writes a bounded part of the network topology as a nested JSON object while walking it,
+     * in the same shape as {@link #getTopologyFrom(String, Integer, Integer, String)} but without
+     * materializing the tree. Nothing is written if the device does not exist.
+     *
+     * @param generator the generator to write to
+     * @param macAddress the MAC address of the root device for the topology
+     * @param maxDepth the maximum depth below the root, or null for unlimited
+     * @param childLimit the maximum number of children written per node, or null for unlimited
+     * @param childCursor the cursor of the first child of the root to write, or null for the first child
+     * @return the topology version the written content reflects
+     * @throws IOException if writing fails
+     */
+    long writeTopologyFrom(JsonGenerator generator, String macAddress, Integer maxDepth, Integer childLimit,
+            String childCursor) throws IOException;
+
+    /**
+     * Tells whether a device is connected below another device, directly or through other devices.
+     *
+     * @param macAddress the MAC address of the device
+     * @param ancestorMacAddress the MAC address of the presumed ancestor
+     * @return true if the ancestor is a proper ancestor of the device
+     */
+    boolean isUnder(String macAddress, String ancestorMacAddress);
+
+    /**
+     * Retrieves the uplink chain of a device.
+     *
+     * @param macAddress the MAC address of the device
+     * @return the MAC addresses from the device itself up to the root of its topology
+     */
+    List<String> getPathToRoot(String macAddress);
+
+    /**
+     * Finds the hop path between two devices through their lowest common ancestor.
+     *
+     * @param fromMacAddress the MAC address of the source device
+     * @param toMacAddress the MAC address of the target device
+     * @return the common ancestor and the hop path, both empty if the devices are not connected
+     */
+    DevicePathDto getPath(String fromMacAddress, String toMacAddress);
+
+    /**
+     * Retrieves the number of devices connected below a device, per device type.
+     *
+     * @param macAddress the MAC address of the device
+     * @return the descendant aggregates
+     */
+    DeviceStatsDto getDeviceStats(String macAddress);
+
 }
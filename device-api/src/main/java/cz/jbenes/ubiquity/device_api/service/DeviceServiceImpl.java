@@ -1,32 +1,110 @@
 package cz.jbenes.ubiquity.device_api.service;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Limit;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceLookupCacheStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePageDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePathDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangeDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangesDto;
 import cz.jbenes.ubiquity.device_api.model.Device;
 import cz.jbenes.ubiquity.device_api.model.DeviceType;
 import cz.jbenes.ubiquity.device_api.repository.DeviceRepository;
+import cz.jbenes.ubiquity.device_api.repository.DeviceRepositoryCustom.UpsertResult;
+import cz.jbenes.ubiquity.device_api.repository.DeviceSummaryView;
+import cz.jbenes.ubiquity.device_api.repository.DeviceTopologyView;
+import cz.jbenes.ubiquity.device_api.service.TopologyTrees.Forest;
+import cz.jbenes.ubiquity.device_api.util.MacAddress;
+import cz.jbenes.ubiquity.device_api.util.SingleFlight;
 import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+import cz.jbenes.ubiquity.device_api.util.TopologySnapshot;
 import jakarta.persistence.EntityNotFoundException;
 import jakarta.transaction.Transactional;
 
 /**
  * {@inheritDoc}
+ * <p>
+ * Concurrent requests for the same topology of the same version share one computation. Walks
+ * of the full topology in the database, and builds of a topology snapshot, are limited to
+ * {@code device-api.topology.max-concurrent-full-builds} at a time, further ones are refused
+ * with {@link ServiceOverloadedException} instead of queueing. Streaming the full topology from
+ * the index and serving an already built snapshot take no permit.
+ * </p>
  */
 @Service
 public class DeviceServiceImpl implements DeviceService {
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
     private final DeviceRepository deviceRepository;
+    private final TopologyIndex topologyIndex;
+    private final ApplicationEventPublisher eventPublisher;
+    private final DeviceLookupCache deviceLookupCache;
+
+    private final Semaphore fullTopologyBuilds;
+    private final Duration retryAfter;
+    private final SingleFlight<Long, TopologySnapshot> snapshotFlights = new SingleFlight<>();
+    private final SingleFlight<SubtreeKey, TopologyNode> subtreeFlights = new SingleFlight<>();
+    // orders the committed registrations of a device, see applyTopologyChange
+    private final AtomicLong commitSequence = new AtomicLong();
+    // held from an uplink change of a stored device until its transaction completes
+    private final Lock uplinkChanges = new ReentrantLock();
 
-    public DeviceServiceImpl(DeviceRepository deviceRepository) {
+    public DeviceServiceImpl(DeviceRepository deviceRepository, TopologyIndex topologyIndex,
+            ApplicationEventPublisher eventPublisher, DeviceLookupCache deviceLookupCache,
+            @Value("${device-api.topology.max-concurrent-full-builds:4}") int maxConcurrentFullBuilds,
+            @Value("${device-api.topology.retry-after-seconds:1}") long retryAfterSeconds) {
         this.deviceRepository = deviceRepository;
+        this.topologyIndex = topologyIndex;
+        this.eventPublisher = eventPublisher;
+        this.deviceLookupCache = deviceLookupCache;
+        this.fullTopologyBuilds = new Semaphore(maxConcurrentFullBuilds);
+        this.retryAfter = Duration.ofSeconds(retryAfterSeconds);
+    }
+
+    /**
+     * Rebuilds the in-memory topology index from the repository.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildTopologyIndex() {
+        if (!topologyIndex.isEnabled()) {
+            return;
+        }
+        topologyIndex.rebuild(deviceRepository.findAllTopologyViews());
     }
 
     /**
@@ -35,26 +113,109 @@ public class DeviceServiceImpl implements DeviceService {
     @Override
     @Transactional
     public DeviceResponseDto registerDevice(DeviceRequestDto request) {
-        if (request.getMacAddress() == null || request.getMacAddress().isBlank()) {
-            throw new IllegalArgumentException("MAC address must not be null or blank");
+        validate(request);
+        DeviceRequestDto registration = canonical(request);
+        requireNotOwnUplink(registration);
+        String macAddress = registration.getMacAddress();
+        String uplinkMac = registration.getUplinkMacAddress();
+        if (uplinkMac != null && topologyIndex.isEnabled() && topologyIndex.isUnder(uplinkMac, macAddress)) {
+            throw new IllegalArgumentException("Uplink " + uplinkMac + " is connected below device " + macAddress);
         }
-        if (request.getDeviceType() == null) {
-            throw new IllegalArgumentException("Device type must not be null");
+
+        // a single MERGE, validating the uplink through the foreign key
+        UpsertResult result = deviceRepository.upsert(macAddress, registration.getDeviceType(), uplinkMac);
+        if (result == UpsertResult.UPLINK_NOT_FOUND) {
+            throw new EntityNotFoundException("Uplink device not found: " + uplinkMac);
         }
+        if (result == UpsertResult.UPDATED && uplinkMac != null) {
+            // only a device that was already stored can have descendants, checked again once
+            // concurrent uplink changes are complete, the transaction rolls back
+            lockUplinkChanges();
+            if (storedAncestorIn(uplinkMac, Set.of(macAddress)) != null) {
+                throw new IllegalArgumentException("Uplink " + uplinkMac + " is connected below device " + macAddress);
+            }
+        }
+        long sequence = commitSequence.incrementAndGet();
+        afterCommit(() -> applyTopologyChange(registration, sequence));
+        return new DeviceResponseDto(macAddress, registration.getDeviceType(), result == UpsertResult.CREATED);
+    }
 
-        Device uplink = null;
-        if (request.getUplinkMacAddress() != null) {
-            uplink = deviceRepository.findById(request.getUplinkMacAddress())
-                    .orElseThrow(() -> new EntityNotFoundException("Uplink device not found: " + request.getUplinkMacAddress()));
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Transactional
+    public List<DeviceResponseDto> registerDevices(List<DeviceRequestDto> requests) {
+        requests.forEach(this::validate);
+        requests = requests.stream().map(DeviceServiceImpl::canonical).toList();
+        Map<String, DeviceRequestDto> requestsByMac = new HashMap<>();
+        for (DeviceRequestDto request : requests) {
+            requireNotOwnUplink(request);
+            if (requestsByMac.put(request.getMacAddress(), request) != null) {
+                throw new IllegalArgumentException("Duplicate MAC address in batch: " + request.getMacAddress());
+            }
+        }
+        List<DeviceRequestDto> ordered = sortUplinksFirst(requests, requestsByMac);
+
+        // one query for both re-registered devices and uplinks outside of the batch
+        Set<String> lookup = new HashSet<>(requestsByMac.keySet());
+        for (DeviceRequestDto request : requests) {
+            if (request.getUplinkMacAddress() != null) {
+                lookup.add(request.getUplinkMacAddress());
+            }
         }
+        Set<String> existing = new HashSet<>(deviceRepository.findExistingMacAddresses(lookup));
+        requireNoStoredUplinkCycles(requestsByMac, existing);
 
-        Device device = new Device();
-        device.setMacAddress(request.getMacAddress());
-        device.setDeviceType(request.getDeviceType());
-        device.setUplink(uplink);
+        List<Device> newDevices = new ArrayList<>();
+        List<String> existingMacs = new ArrayList<>();
+        Map<String, Device> batchDevices = new HashMap<>();
+        for (DeviceRequestDto request : ordered) {
+            String uplinkMac = request.getUplinkMacAddress();
+            if (uplinkMac != null && !requestsByMac.containsKey(uplinkMac) && !existing.contains(uplinkMac)) {
+                throw new EntityNotFoundException("Uplink device not found: " + uplinkMac);
+            }
+            if (existing.contains(request.getMacAddress())) {
+                existingMacs.add(request.getMacAddress());
+                continue;
+            }
+            Device device = new Device();
+            device.setMacAddress(request.getMacAddress());
+            device.setDeviceType(request.getDeviceType());
+            if (uplinkMac != null) {
+                Device uplink = batchDevices.get(uplinkMac);
+                if (uplink == null) {
+                    uplink = new Device();
+                    uplink.setMacAddress(uplinkMac);
+                }
+                device.setUplink(uplink);
+            }
+            batchDevices.put(device.getMacAddress(), device);
+            newDevices.add(device);
+        }
 
-        deviceRepository.save(device);
-        return new DeviceResponseDto(device.getMacAddress(), device.getDeviceType());
+        deviceRepository.insertAll(newDevices);
+        for (Device device : deviceRepository.findAllById(existingMacs)) {
+            DeviceRequestDto request = requestsByMac.get(device.getMacAddress());
+            device.setDeviceType(request.getDeviceType());
+            device.setUplink(request.getUplinkMacAddress() != null
+                    ? deviceRepository.getReferenceById(request.getUplinkMacAddress())
+                    : null);
+        }
+
+        // lock the updated rows before taking the sequence, see applyTopologyChange
+        deviceRepository.flush();
+        if (!existingMacs.isEmpty()) {
+            // again once concurrent uplink changes are complete, see lockUplinkChanges
+            lockUplinkChanges();
+            requireNoStoredUplinkCycles(requestsByMac, existing);
+        }
+        long sequence = commitSequence.incrementAndGet();
+        afterCommit(() -> ordered.forEach(request -> applyTopologyChange(request, sequence)));
+        return requests.stream()
+                .map(r -> new DeviceResponseDto(r.getMacAddress(), r.getDeviceType(),
+                        !existing.contains(r.getMacAddress())))
+                .toList();
     }
 
     /**
@@ -62,20 +223,76 @@ public class DeviceServiceImpl implements DeviceService {
      */
     @Override
     public List<DeviceResponseDto> getAllDevicesSorted() {
-        return deviceRepository.findAll().stream()
-                .sorted(Comparator.comparingInt(d -> deviceTypeOrder(d.getDeviceType())))
+        return deviceRepository.findAllSummaries().stream()
+                .sorted(Comparator.comparingInt(d -> d.getDeviceType().getSortOrder()))
                 .map(d -> new DeviceResponseDto(d.getMacAddress(), d.getDeviceType()))
                 .toList();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DevicePageDto getDevicesPage(int limit, String after) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE);
+        }
+
+        // one extra row tells whether another page follows
+        Limit fetchLimit = Limit.of(limit + 1);
+        List<DeviceSummaryView> rows;
+        if (after == null || after.isBlank()) {
+            rows = deviceRepository.findSummariesSorted(fetchLimit);
+        } else {
+            PageCursor cursor = PageCursor.decode(after);
+            rows = deviceRepository.findSummariesSortedAfter(cursor.typeRank(), cursor.macAddress(), fetchLimit);
+        }
+
+        boolean hasNext = rows.size() > limit;
+        List<DeviceResponseDto> devices = rows.stream()
+                .limit(limit)
+                .map(d -> new DeviceResponseDto(d.getMacAddress(), d.getDeviceType()))
+                .toList();
+        String nextCursor = null;
+        if (hasNext) {
+            DeviceResponseDto last = devices.get(devices.size() - 1);
+            nextCursor = new PageCursor(last.getDeviceType().getSortOrder(), last.getMacAddress()).encode();
+        }
+        return new DevicePageDto(devices, nextCursor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @Transactional
+    public void forEachDeviceSorted(Consumer<DeviceResponseDto> action) {
+        try (Stream<DeviceSummaryView> devices = deviceRepository.streamAllSummariesSorted()) {
+            devices.map(d -> new DeviceResponseDto(d.getMacAddress(), d.getDeviceType()))
+                    .forEach(action);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public DeviceResponseDto getDeviceByMac(String macAddress) {
-        Device device = deviceRepository.findById(macAddress)
-                .orElseThrow(() -> new EntityNotFoundException("Device not found: " + macAddress));
-        return new DeviceResponseDto(device.getMacAddress(), device.getDeviceType());
+        long macKey = MacAddress.tryParse(macAddress);
+        String canonicalMac = macKey != MacAddress.INVALID ? MacAddress.format(macKey) : macAddress;
+        // by value, so that devices stored in another notation of their MAC address are found too
+        return deviceLookupCache.get(canonicalMac, mac -> (macKey != MacAddress.INVALID
+                        ? deviceRepository.findByMacKey(macKey) : deviceRepository.findById(mac))
+                        .map(device -> new DeviceResponseDto(device.getMacAddress(), device.getDeviceType())))
+                .orElseThrow(() -> new EntityNotFoundException("Device not found: " + canonicalMac));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DeviceLookupCacheStatsDto getLookupCacheStats() {
+        return deviceLookupCache.getStats();
     }
 
     /**
@@ -83,27 +300,215 @@ public class DeviceServiceImpl implements DeviceService {
      */
     @Override
     public List<TopologyNode> getFullTopology() {
-        List<Device> allDevices = deviceRepository.findAll();
+        return getTopologySnapshot().roots();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getTopologyVersion() {
+        return topologyIndex.getVersion();
+    }
 
-        Map<String, TopologyNode> nodeMap = new HashMap<>();
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TopologyChangesDto getTopologyChanges(long since) {
+        return topologyIndex.getChangesSince(since);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TopologySnapshot getTopologySnapshot() {
+        // only building a snapshot walks the full topology and takes a permit
+        TopologySnapshot cached = topologyIndex.isEnabled() ? topologyIndex.getCachedSnapshot() : null;
+        if (cached != null) {
+            return cached;
+        }
+        // read the version first, so that a concurrent change can only make the tag stale, never the body
+        long version = topologyIndex.getVersion();
+        return snapshotFlights.execute(version, () -> {
+            acquireFullTopologyBuild();
+            try {
+                if (topologyIndex.isEnabled()) {
+                    return topologyIndex.getSnapshot();
+                }
+                return new TopologySnapshot(version, buildForest(deviceRepository.findAllTopologyViews()));
+            } finally {
+                fullTopologyBuilds.release();
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long writeFullTopology(JsonGenerator generator) throws IOException {
+        // streaming from the index does not reach the database and takes no permit
+        if (topologyIndex.isEnabled()) {
+            return topologyIndex.writeForest(generator);
+        }
+        acquireFullTopologyBuild();
+        try {
+            long version = topologyIndex.getVersion();
+            List<DeviceTopologyView> allDevices = deviceRepository.findAllTopologyViews();
+            TopologyTrees.writeForest(generator, forestOf(allDevices, null), rootsOf(allDevices));
+            return version;
+        } finally {
+            fullTopologyBuilds.release();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long writeFlatTopology(JsonGenerator generator) throws IOException {
+        // streaming from the index does not reach the database and takes no permit
+        if (topologyIndex.isEnabled()) {
+            return topologyIndex.writeFlatForest(generator);
+        }
+        acquireFullTopologyBuild();
+        try {
+            long version = topologyIndex.getVersion();
+            List<DeviceTopologyView> allDevices = deviceRepository.findAllTopologyViews();
+            TopologyTrees.writeFlat(generator, version, forestOf(allDevices, null), rootsOf(allDevices));
+            return version;
+        } finally {
+            fullTopologyBuilds.release();
+        }
+    }
+
+    /**
+     * Takes one of the permits for walking the full topology, without waiting.
+     *
+     * @throws ServiceOverloadedException if all permits are taken
+     */
+    private void acquireFullTopologyBuild() {
+        if (!fullTopologyBuilds.tryAcquire()) {
+            throw new ServiceOverloadedException("Too many concurrent full topology builds", retryAfter);
+        }
+    }
+
+    /**
+     * Assembles the topology forest from the flat rows of all devices.
+     *
+     * @param allDevices the rows of all devices
+     * @return the root nodes with their subtrees
+     */
+    private List<TopologyNode> buildForest(List<DeviceTopologyView> allDevices) {
+        Forest<String> forest = forestOf(allDevices, null);
         List<TopologyNode> roots = new ArrayList<>();
+        for (String root : rootsOf(allDevices)) {
+            roots.add(TopologyTrees.build(forest, root, TopologyTrees.UNLIMITED, TopologyTrees.UNLIMITED, null));
+        }
+        return roots;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TopologyNode getTopologyFrom(String macAddress) {
+        return getTopologyFrom(macAddress, null, null, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TopologyNode getTopologyFrom(String macAddress, Integer maxDepth, Integer childLimit, String childCursor) {
+        String rootMac = MacAddress.canonicalize(macAddress);
+        SubtreeBounds bounds = SubtreeBounds.of(maxDepth, childLimit, childCursor);
+        SubtreeKey key = new SubtreeKey(topologyIndex.getVersion(), rootMac, bounds);
+        TopologyNode root = subtreeFlights.execute(key, () -> topologyIndex.isEnabled()
+                ? topologyIndex.getTopologyFrom(rootMac, bounds.maxDepth(), bounds.childLimit(), bounds.rootChildAfter())
+                : buildSubtree(rootMac, deviceRepository.findSubtree(rootMac), bounds));
+        if (root == null) {
+            throw new EntityNotFoundException("Device not found: " + rootMac);
+        }
+        return root;
+    }
 
-        // create nodes
-        for (Device device : allDevices) {
-            nodeMap.put(device.getMacAddress(), new TopologyNode(device.getMacAddress()));
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long writeTopologyFrom(JsonGenerator generator, String macAddress, Integer maxDepth, Integer childLimit,
+            String childCursor) throws IOException {
+        String rootMac = MacAddress.canonicalize(macAddress);
+        SubtreeBounds bounds = SubtreeBounds.of(maxDepth, childLimit, childCursor);
+        if (topologyIndex.isEnabled()) {
+            // devices are never removed, so the device cannot disappear before it is written
+            requireIndexed(rootMac);
+            return topologyIndex.writeTopologyFrom(generator, rootMac, bounds.maxDepth(), bounds.childLimit(),
+                    bounds.rootChildAfter());
+        }
+        long version = topologyIndex.getVersion();
+        List<DeviceTopologyView> rows = deviceRepository.findSubtree(rootMac);
+        if (rows.stream().noneMatch(row -> row.getMacAddress().equals(rootMac))) {
+            throw new EntityNotFoundException("Device not found: " + rootMac);
         }
+        TopologyTrees.write(generator, forestOf(rows, rootMac), rootMac, bounds.maxDepth(), bounds.childLimit(),
+                bounds.rootChildAfter());
+        return version;
+    }
 
-        // assign children or mark as roots
-        for (Device device : allDevices) {
-            TopologyNode currentNode = nodeMap.get(device.getMacAddress());
-            if (device.getUplink() != null) {
-                TopologyNode parentNode = nodeMap.get(device.getUplink().getMacAddress());
-                parentNode.addChild(currentNode);
-            } else {
-                roots.add(currentNode);
+    /**
+     * Assembles a subtree from the flat rows returned by {@link DeviceRepository#findSubtree(String)}.
+     *
+     * @param rootMac the MAC address of the subtree root
+     * @param rows the subtree rows
+     * @param bounds the depth and child bounds
+     * @return the topology node representing the subtree, or null if the root is missing
+     */
+    private TopologyNode buildSubtree(String rootMac, List<DeviceTopologyView> rows, SubtreeBounds bounds) {
+        if (rows.stream().noneMatch(row -> row.getMacAddress().equals(rootMac))) {
+            return null;
+        }
+        return TopologyTrees.build(forestOf(rows, rootMac), rootMac, bounds.maxDepth(), bounds.childLimit(),
+                bounds.rootChildAfter());
+    }
+
+    /**
+     * Groups the rows by uplink, keeping their order. Children in a subtree are ordered by MAC
+     * address instead, as the repository returns them in no defined order and child cursors
+     * resume after the MAC address of the last returned child.
+     *
+     * @param rows the topology rows
+     * @param rootMac the MAC address of a subtree root whose own uplink is ignored, or null
+     * @return the forest of the rows
+     */
+    private static Forest<String> forestOf(List<DeviceTopologyView> rows, String rootMac) {
+        Map<String, List<String>> childrenByMac = new HashMap<>();
+        Map<String, DeviceType> typeByMac = new HashMap<>();
+        for (DeviceTopologyView row : rows) {
+            typeByMac.put(row.getMacAddress(), row.getDeviceType());
+            if (row.getUplinkMac() != null && !row.getMacAddress().equals(rootMac)) {
+                childrenByMac.computeIfAbsent(row.getUplinkMac(), k -> new ArrayList<>()).add(row.getMacAddress());
             }
         }
+        if (rootMac != null) {
+            childrenByMac.values().forEach(Collections::sort);
+        }
+        return TopologyTrees.forestOf(childrenByMac::get, typeByMac::get);
+    }
 
+    /**
+     * Returns the MAC addresses of the rows without an uplink, keeping their order.
+     */
+    private static List<String> rootsOf(List<DeviceTopologyView> rows) {
+        List<String> roots = new ArrayList<>();
+        for (DeviceTopologyView row : rows) {
+            if (row.getUplinkMac() == null) {
+                roots.add(row.getMacAddress());
+            }
+        }
         return roots;
     }
 
@@ -111,41 +516,364 @@ public class DeviceServiceImpl implements DeviceService {
      * {@inheritDoc}
      */
     @Override
-    public TopologyNode getTopologyFrom(String macAddress) {
-        Device rootDevice = deviceRepository.findById(macAddress)
-                .orElseThrow(() -> new EntityNotFoundException("Device not found: " + macAddress));
+    public boolean isUnder(String macAddress, String ancestorMacAddress) {
+        macAddress = MacAddress.canonicalize(macAddress);
+        ancestorMacAddress = MacAddress.canonicalize(ancestorMacAddress);
+        if (topologyIndex.isEnabled()) {
+            requireIndexed(macAddress);
+            requireIndexed(ancestorMacAddress);
+            return topologyIndex.isUnder(macAddress, ancestorMacAddress);
+        }
+        List<String> path = getPathToRoot(macAddress);
+        if (!path.contains(ancestorMacAddress) && !deviceRepository.existsById(ancestorMacAddress)) {
+            throw new EntityNotFoundException("Device not found: " + ancestorMacAddress);
+        }
+        return path.indexOf(ancestorMacAddress) > 0;
+    }
 
-        return buildSubtree(rootDevice);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getPathToRoot(String macAddress) {
+        macAddress = MacAddress.canonicalize(macAddress);
+        if (topologyIndex.isEnabled()) {
+            requireIndexed(macAddress);
+            return topologyIndex.getPathToRoot(macAddress);
+        }
+        Map<String, String> uplinkByMac = new HashMap<>();
+        for (DeviceTopologyView row : deviceRepository.findAncestors(macAddress)) {
+            uplinkByMac.put(row.getMacAddress(), row.getUplinkMac());
+        }
+        if (!uplinkByMac.containsKey(macAddress)) {
+            throw new EntityNotFoundException("Device not found: " + macAddress);
+        }
+        List<String> path = new ArrayList<>();
+        // bounded by the row count in case the stored uplinks form a cycle
+        for (String current = macAddress; current != null && path.size() < uplinkByMac.size();
+                current = uplinkByMac.get(current)) {
+            path.add(current);
+        }
+        return path;
     }
-    
+
     /**
-     * Recursively builds a subtree of devices starting from the given root device.
+     * {@inheritDoc}
+     */
+    @Override
+    public DevicePathDto getPath(String fromMacAddress, String toMacAddress) {
+        fromMacAddress = MacAddress.canonicalize(fromMacAddress);
+        toMacAddress = MacAddress.canonicalize(toMacAddress);
+        if (topologyIndex.isEnabled()) {
+            requireIndexed(fromMacAddress);
+            requireIndexed(toMacAddress);
+            return topologyIndex.getPath(fromMacAddress, toMacAddress);
+        }
+        List<String> up = getPathToRoot(fromMacAddress);
+        List<String> down = getPathToRoot(toMacAddress);
+        Set<String> downSet = new HashSet<>(down);
+        for (int i = 0; i < up.size(); i++) {
+            String ancestor = up.get(i);
+            if (downSet.contains(ancestor)) {
+                List<String> path = new ArrayList<>(up.subList(0, i + 1));
+                path.addAll(down.subList(0, down.indexOf(ancestor)).reversed());
+                return new DevicePathDto(ancestor, path);
+            }
+        }
+        return new DevicePathDto(null, List.of());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DeviceStatsDto getDeviceStats(String macAddress) {
+        macAddress = MacAddress.canonicalize(macAddress);
+        if (topologyIndex.isEnabled()) {
+            requireIndexed(macAddress);
+            return topologyIndex.getStats(macAddress);
+        }
+        List<DeviceTopologyView> rows = deviceRepository.findSubtree(macAddress);
+        if (rows.isEmpty()) {
+            throw new EntityNotFoundException("Device not found: " + macAddress);
+        }
+        Map<DeviceType, Integer> countsByType = new EnumMap<>(DeviceType.class);
+        for (DeviceType type : DeviceType.values()) {
+            countsByType.put(type, 0);
+        }
+        for (DeviceTopologyView row : rows) {
+            if (!row.getMacAddress().equals(macAddress)) {
+                countsByType.merge(row.getDeviceType(), 1, Integer::sum);
+            }
+        }
+        return new DeviceStatsDto(macAddress, rows.size() - 1, countsByType);
+    }
+
+    /**
+     * Throws {@link EntityNotFoundException} unless the device is in the topology index.
+     */
+    private void requireIndexed(String macAddress) {
+        if (!topologyIndex.contains(macAddress)) {
+            throw new EntityNotFoundException("Device not found: " + macAddress);
+        }
+    }
+
+    /**
+     * Applies a committed registration to the topology index and the lookup cache and announces
+     * it as a {@link TopologyChangeDto} event.
+     * <p>
+     * Registrations of one device commit one after another, as the database locks its row from
+     * the write until the commit, but their after-commit callbacks can run in any order. The
+     * sequence is therefore taken while the row is locked, and the index ignores a registration
+     * of a device whose later committed registration it has already applied, so that it keeps
+     * the uplink stored last.
+     * </p>
+     * <p>
+     * The event is published while the index is locked, which the only listener, offering the
+     * change to the buffers of the event subscribers, does not block.
+     * </p>
+     */
+    private void applyTopologyChange(DeviceRequestDto request, long sequence) {
+        deviceLookupCache.invalidate(request.getMacAddress());
+        // announced by the index, so that subscribers receive the changes in version order
+        topologyIndex.put(request.getMacAddress(), request.getUplinkMacAddress(), request.getDeviceType(), sequence,
+                eventPublisher::publishEvent);
+    }
+
+    /**
+     * Runs the action once the current transaction commits, or immediately when no transaction is active.
+     */
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Serializes uplink changes of stored devices until the current transaction completes.
+     * <p>
+     * A cycle check sees neither uncommitted uplink changes in the database nor committed ones
+     * not yet applied to the index, so two concurrent moves of devices under each other would
+     * both pass it. Under the lock, the check sees every earlier uplink change committed and
+     * applied, as the index is updated after the commit and before the lock is released. The
+     * lock is taken only once the rows of the registration are locked and no row is locked
+     * afterwards, so it cannot deadlock with the database locks. Without a transaction the write
+     * is already committed and nothing is locked.
+     * </p>
+     */
+    private void lockUplinkChanges() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        uplinkChanges.lock();
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                uplinkChanges.unlock();
+            }
+        });
+    }
+
+    /**
+     * Validates the mandatory fields of a registration request.
+     */
+    private void validate(DeviceRequestDto request) {
+        if (request.getMacAddress() == null || request.getMacAddress().isBlank()) {
+            throw new IllegalArgumentException("MAC address must not be null or blank");
+        }
+        if (request.getDeviceType() == null) {
+            throw new IllegalArgumentException("Device type must not be null");
+        }
+    }
+
+    private static void requireNotOwnUplink(DeviceRequestDto request) {
+        if (request.getMacAddress().equals(request.getUplinkMacAddress())) {
+            throw new IllegalArgumentException("Device cannot be its own uplink: " + request.getMacAddress());
+        }
+    }
+
+    /**
+     * Rejects a batch whose uplinks would form a cycle through stored devices once applied.
+     * <p>
+     * Cycles within the batch are rejected by {@link #sortUplinksFirst}. Any other cycle passes
+     * through a stored device re-registered by the batch, as only such a device can already
+     * have stored descendants. The chain of every request is therefore followed to the next
+     * re-registered device, through the batch or through the stored uplinks, and the resulting
+     * links between re-registered devices must not form a cycle.
+     * </p>
      *
-     * @param root the root device
-     * @return the topology node representing the subtree
+     * @param requestsByMac the batch requests keyed by MAC address
+     * @param existing the stored devices among the batch devices and their uplinks
      */
-    private TopologyNode buildSubtree(Device root) {
-        TopologyNode rootNode = new TopologyNode(root.getMacAddress());
+    private void requireNoStoredUplinkCycles(Map<String, DeviceRequestDto> requestsByMac, Set<String> existing) {
+        Set<String> reRegistered = new HashSet<>();
+        for (String macAddress : requestsByMac.keySet()) {
+            if (existing.contains(macAddress)) {
+                reRegistered.add(macAddress);
+            }
+        }
+        if (reRegistered.isEmpty()) {
+            return;
+        }
+        Map<String, String> storedAncestors = new HashMap<>();
+        Map<String, String> nextReRegistered = new HashMap<>();
+        for (String macAddress : reRegistered) {
+            String current = requestsByMac.get(macAddress).getUplinkMacAddress();
+            // through the batch first, new devices cannot be uplinks of stored ones
+            while (current != null && requestsByMac.containsKey(current) && !reRegistered.contains(current)) {
+                current = requestsByMac.get(current).getUplinkMacAddress();
+            }
+            if (current != null && !reRegistered.contains(current)) {
+                current = storedAncestors.computeIfAbsent(current, uplink -> {
+                    String ancestor = storedAncestorIn(uplink, reRegistered);
+                    return ancestor != null ? ancestor : "";
+                });
+            }
+            if (current != null && !current.isEmpty()) {
+                nextReRegistered.put(macAddress, current);
+            }
+        }
+        Set<String> acyclic = new HashSet<>();
+        for (String start : nextReRegistered.keySet()) {
+            Set<String> path = new HashSet<>();
+            for (String current = start; current != null && !acyclic.contains(current);
+                    current = nextReRegistered.get(current)) {
+                if (!path.add(current)) {
+                    throw new IllegalArgumentException("Uplink cycle through stored devices at: " + current);
+                }
+            }
+            acyclic.addAll(path);
+        }
+    }
 
-        List<Device> children = deviceRepository.findAll().stream()
-                .filter(d -> d.getUplink() != null && d.getUplink().getMacAddress().equals(root.getMacAddress()))
-                .toList();
+    /**
+     * Returns the nearest stored proper ancestor of a stored device that is one of the given devices.
+     *
+     * @param macAddress the MAC address of the stored device
+     * @param macAddresses the devices to look for
+     * @return the MAC address of the nearest such ancestor, or null if there is none
+     */
+    private String storedAncestorIn(String macAddress, Set<String> macAddresses) {
+        if (topologyIndex.isEnabled()) {
+            if (macAddresses.size() == 1) {
+                String candidate = macAddresses.iterator().next();
+                return topologyIndex.isUnder(macAddress, candidate) ? candidate : null;
+            }
+            List<String> path = topologyIndex.getPathToRoot(macAddress);
+            for (int i = 1; i < path.size(); i++) {
+                if (macAddresses.contains(path.get(i))) {
+                    return path.get(i);
+                }
+            }
+            return null;
+        }
+        Map<String, String> uplinkByMac = new HashMap<>();
+        for (DeviceTopologyView row : deviceRepository.findAncestors(macAddress)) {
+            uplinkByMac.put(row.getMacAddress(), row.getUplinkMac());
+        }
+        // bounded by the row count in case the stored uplinks already form a cycle
+        String current = uplinkByMac.get(macAddress);
+        for (int steps = 0; current != null && steps < uplinkByMac.size(); steps++) {
+            if (macAddresses.contains(current)) {
+                return current;
+            }
+            current = uplinkByMac.get(current);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a copy of a validated request with its MAC addresses in canonical notation.
+     */
+    static DeviceRequestDto canonical(DeviceRequestDto request) {
+        return new DeviceRequestDto(request.getDeviceType(), MacAddress.canonicalize(request.getMacAddress()),
+                MacAddress.canonicalize(request.getUplinkMacAddress()));
+    }
+
+    /**
+     * Orders batch requests so that every uplink contained in the batch precedes its children.
+     *
+     * @param requests the batch requests
+     * @param requestsByMac the batch requests keyed by MAC address
+     * @return the requests ordered uplinks first
+     * @throws IllegalArgumentException if the uplinks within the batch form a cycle
+     */
+    static List<DeviceRequestDto> sortUplinksFirst(List<DeviceRequestDto> requests, Map<String, DeviceRequestDto> requestsByMac) {
+        List<DeviceRequestDto> ordered = new ArrayList<>(requests.size());
+        Set<String> done = new HashSet<>();
+        Set<String> inPath = new HashSet<>();
+        Deque<DeviceRequestDto> path = new ArrayDeque<>();
+
+        for (DeviceRequestDto request : requests) {
+            // walk up the uplink chain until a device outside the batch or an already ordered one
+            DeviceRequestDto current = request;
+            while (current != null && !done.contains(current.getMacAddress())) {
+                if (!inPath.add(current.getMacAddress())) {
+                    throw new IllegalArgumentException("Uplink cycle in batch at: " + current.getMacAddress());
+                }
+                path.push(current);
+                current = current.getUplinkMacAddress() != null ? requestsByMac.get(current.getUplinkMacAddress()) : null;
+            }
+            while (!path.isEmpty()) {
+                DeviceRequestDto next = path.pop();
+                inPath.remove(next.getMacAddress());
+                done.add(next.getMacAddress());
+                ordered.add(next);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Validated bounds of a subtree query, with unlimited values for absent parameters.
+     */
+    private record SubtreeBounds(int maxDepth, int childLimit, String rootChildAfter) {
 
-        for (Device child : children) {
-            rootNode.addChild(buildSubtree(child));
+        static SubtreeBounds of(Integer maxDepth, Integer childLimit, String childCursor) {
+            if (maxDepth != null && maxDepth < 0) {
+                throw new IllegalArgumentException("Max depth must not be negative");
+            }
+            if (childLimit != null && childLimit < 1) {
+                throw new IllegalArgumentException("Child limit must be positive");
+            }
+            return new SubtreeBounds(
+                    maxDepth != null ? maxDepth : TopologyTrees.UNLIMITED,
+                    childLimit != null ? childLimit : TopologyTrees.UNLIMITED,
+                    TopologyTrees.decodeChildCursor(childCursor));
         }
+    }
 
-        return rootNode;
+    /**
+     * Identifies concurrent subtree queries that can share one result.
+     */
+    private record SubtreeKey(long version, String macAddress, SubtreeBounds bounds) {
     }
-    
+
     /**
-     * Determines sort order by device type.
+     * Position in the sorted device listing, exchanged with clients as an opaque token.
      */
-    private int deviceTypeOrder(DeviceType type) {
-        return switch (type) {
-            case GATEWAY -> 0;
-            case SWITCH -> 1;
-            case ACCESS_POINT -> 2;
-        };
+    private record PageCursor(int typeRank, String macAddress) {
+
+        String encode() {
+            String raw = typeRank + ":" + macAddress;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        static PageCursor decode(String token) {
+            try {
+                String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+                int separator = raw.indexOf(':');
+                return new PageCursor(Integer.parseInt(raw.substring(0, separator)), raw.substring(separator + 1));
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid page cursor: " + token);
+            }
+        }
     }
 }
@@ -0,0 +1,359 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.dto.RegistrationStatusDto;
+import cz.jbenes.ubiquity.device_api.dto.RegistrationStatusDto.State;
+import cz.jbenes.ubiquity.device_api.util.MacAddress;
+import jakarta.persistence.EntityNotFoundException;
+
+/**
+ * Write-behind pipeline for device registrations.
+ * <p>
+ * When enabled with {@code device-api.registration.async.enabled=true}, registrations are put
+ * into a bounded queue and a single writer thread commits them in batches: every batch takes
+ * whatever accumulated while the previous one was committed, up to
+ * {@code device-api.registration.async.batch-size}, so that a burst of re-registrations costs
+ * a few transactions instead of one per device while a lone registration is not delayed.
+ * Within a batch, repeated registrations of a device are coalesced into the last one and
+ * uplinks are written before their children. If a batch fails, its registrations are retried
+ * one by one so that an invalid registration fails alone.
+ * </p>
+ * <p>
+ * When the queue is full, registrations wait up to
+ * {@code device-api.registration.async.enqueue-timeout-ms} for space and are then refused with
+ * {@link ServiceOverloadedException}. When the pipeline is disabled, registrations are written
+ * in the calling thread.
+ * </p>
+ * <p>
+ * The writer runs on a virtual thread when {@code spring.threads.virtual.enabled=true}.
+ * </p>
+ */
+@Component
+public class RegistrationPipeline implements SmartLifecycle {
+
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private final DeviceService deviceService;
+    private final boolean enabled;
+    private final int batchSize;
+    private final long enqueueTimeoutMs;
+    private final Duration retryAfter;
+    private final int statusCapacity;
+    private final boolean virtualThreads;
+
+    private final BlockingQueue<Registration> queue;
+    // registrations submitted with a status token, the oldest are forgotten first
+    private final Map<String, Registration> registrationsByToken = new ConcurrentHashMap<>();
+    private final Queue<String> tokens = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running;
+    private volatile boolean stopped;
+    private Thread writer;
+
+    public RegistrationPipeline(DeviceService deviceService,
+            @Value("${device-api.registration.async.enabled:false}") boolean enabled,
+            @Value("${device-api.registration.async.queue-capacity:10000}") int queueCapacity,
+            @Value("${device-api.registration.async.batch-size:500}") int batchSize,
+            @Value("${device-api.registration.async.enqueue-timeout-ms:50}") long enqueueTimeoutMs,
+            @Value("${device-api.registration.async.retry-after-seconds:1}") long retryAfterSeconds,
+            @Value("${device-api.registration.async.status-capacity:100000}") int statusCapacity,
+            @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.deviceService = deviceService;
+        this.enabled = enabled;
+        this.batchSize = batchSize;
+        this.enqueueTimeoutMs = enqueueTimeoutMs;
+        this.retryAfter = Duration.ofSeconds(retryAfterSeconds);
+        this.statusCapacity = statusCapacity;
+        this.virtualThreads = virtualThreads;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Tells whether registrations are written behind by the writer thread.
+     *
+     * @return true if the pipeline is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Registers a device and waits until the registration is committed.
+     *
+     * @param request the device registration request data
+     * @return the registered device
+     * @throws ServiceOverloadedException if the queue stays full
+     */
+    public DeviceResponseDto register(DeviceRequestDto request) {
+        if (!enabled) {
+            return deviceService.registerDevice(request);
+        }
+        try {
+            return enqueue(request).result().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Accepts a device registration without waiting for it to be committed.
+     * <p>
+     * When the pipeline is disabled, the registration is written before returning and its
+     * status is already completed.
+     * </p>
+     *
+     * @param request the device registration request data
+     * @return the status of the registration with the token to query it later
+     * @throws ServiceOverloadedException if the queue stays full
+     */
+    public RegistrationStatusDto submit(DeviceRequestDto request) {
+        Registration registration = enabled
+                ? enqueue(request)
+                : new Registration(request, CompletableFuture.completedFuture(deviceService.registerDevice(request)));
+        String token = UUID.randomUUID().toString();
+        registrationsByToken.put(token, registration);
+        tokens.add(token);
+        while (registrationsByToken.size() > statusCapacity) {
+            String oldest = tokens.poll();
+            if (oldest == null) {
+                break;
+            }
+            registrationsByToken.remove(oldest);
+        }
+        return statusOf(token, registration);
+    }
+
+    /**
+     * Returns the status of a submitted registration.
+     *
+     * @param token the token returned by {@link #submit(DeviceRequestDto)}
+     * @return the status of the registration
+     * @throws EntityNotFoundException if the token is unknown or its status was already forgotten
+     */
+    public RegistrationStatusDto getStatus(String token) {
+        Registration registration = registrationsByToken.get(token);
+        if (registration == null) {
+            throw new EntityNotFoundException("Registration not found: " + token);
+        }
+        return statusOf(token, registration);
+    }
+
+    /**
+     * Returns the number of registrations waiting for the writer.
+     *
+     * @return the queue length
+     */
+    public int getQueueLength() {
+        return queue.size();
+    }
+
+    private Registration enqueue(DeviceRequestDto request) {
+        Registration registration = new Registration(request, new CompletableFuture<>());
+        boolean accepted;
+        try {
+            accepted = !stopped && queue.offer(registration, enqueueTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accepted = false;
+        }
+        if (!accepted) {
+            throw new ServiceOverloadedException("Registration queue is full", retryAfter);
+        }
+        return registration;
+    }
+
+    private static RegistrationStatusDto statusOf(String token, Registration registration) {
+        CompletableFuture<DeviceResponseDto> result = registration.result();
+        if (!result.isDone()) {
+            return new RegistrationStatusDto(token, State.PENDING, null, null);
+        }
+        if (result.isCompletedExceptionally()) {
+            return new RegistrationStatusDto(token, State.FAILED, null, result.exceptionNow().getMessage());
+        }
+        return new RegistrationStatusDto(token, State.COMPLETED, result.resultNow(), null);
+    }
+
+    /**
+     * Takes batches off the queue until the pipeline is stopped and the queue is drained.
+     */
+    private void runWriter() {
+        List<Registration> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            Registration first;
+            try {
+                first = queue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // stop() waits for the remaining registrations, keep writing them
+                continue;
+            }
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch, batchSize - 1);
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Commits a batch in a single transaction, or one registration at a time if that fails.
+     */
+    private void write(List<Registration> batch) {
+        // the last registration of a device wins, like it would when written in sequence
+        Map<String, Registration> latestByMac = new LinkedHashMap<>();
+        for (Registration registration : batch) {
+            latestByMac.put(MacAddress.canonicalize(registration.request().getMacAddress()), registration);
+        }
+        List<DeviceRequestDto> requests = latestByMac.values().stream().map(Registration::request).toList();
+        List<DeviceResponseDto> responses;
+        try {
+            // ordered uplinks first by the service
+            responses = deviceService.registerDevices(requests);
+        } catch (RuntimeException e) {
+            writeOneByOne(batch, latestByMac);
+            return;
+        }
+        Map<String, DeviceResponseDto> responsesByMac = new LinkedHashMap<>();
+        int i = 0;
+        for (String macAddress : latestByMac.keySet()) {
+            responsesByMac.put(macAddress, responses.get(i++));
+        }
+        for (Registration registration : batch) {
+            registration.result().complete(
+                    responsesByMac.get(MacAddress.canonicalize(registration.request().getMacAddress())));
+        }
+    }
+
+    /**
+     * Commits the registrations of a failed batch one at a time, so that an invalid registration
+     * fails alone.
+     * <p>
+     * Like in the batch, uplinks are written before their children and repeated registrations
+     * of a device are written once, the earlier ones sharing the outcome of the last one.
+     * </p>
+     */
+    private void writeOneByOne(List<Registration> batch, Map<String, Registration> latestByMac) {
+        List<DeviceRequestDto> requests = new ArrayList<>(latestByMac.size());
+        Map<String, DeviceRequestDto> requestsByMac = new HashMap<>();
+        Map<DeviceRequestDto, Registration> registrations = new IdentityHashMap<>();
+        for (Registration registration : latestByMac.values()) {
+            DeviceRequestDto request = DeviceServiceImpl.canonical(registration.request());
+            requests.add(request);
+            requestsByMac.put(request.getMacAddress(), request);
+            registrations.put(request, registration);
+        }
+        List<DeviceRequestDto> ordered;
+        try {
+            ordered = DeviceServiceImpl.sortUplinksFirst(requests, requestsByMac);
+        } catch (IllegalArgumentException cycle) {
+            // in submission order then, the service rejects the registrations closing the cycle
+            ordered = requests;
+        }
+        for (DeviceRequestDto request : ordered) {
+            Registration registration = registrations.get(request);
+            try {
+                registration.result().complete(deviceService.registerDevice(registration.request()));
+            } catch (RuntimeException registrationFailure) {
+                registration.result().completeExceptionally(registrationFailure);
+            }
+        }
+        for (Registration registration : batch) {
+            Registration latest = latestByMac.get(MacAddress.canonicalize(registration.request().getMacAddress()));
+            if (latest != registration) {
+                latest.result().whenComplete((response, failure) -> {
+                    if (failure != null) {
+                        registration.result().completeExceptionally(failure);
+                    } else {
+                        registration.result().complete(response);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void start() {
+        if (!enabled || running) {
+            return;
+        }
+        running = true;
+        Thread.Builder builder = virtualThreads ? Thread.ofVirtual() : Thread.ofPlatform().daemon();
+        writer = builder.name("registration-writer").start(this::runWriter);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Waits until the writer has committed the registrations accepted so far.
+     * </p>
+     */
+    @Override
+    public void stop() {
+        stopped = true;
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // accepted while the writer was finishing
+        for (Registration registration; (registration = queue.poll()) != null;) {
+            registration.result().completeExceptionally(
+                    new ServiceOverloadedException("Registration pipeline is stopped", retryAfter));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Starts before and stops after the web server, so that accepted registrations are still written.
+     */
+    @Override
+    public int getPhase() {
+        return DEFAULT_PHASE - 4096;
+    }
+
+    /**
+     * Registration waiting for the writer, with the future completed once it is committed.
+     */
+    private record Registration(DeviceRequestDto request, CompletableFuture<DeviceResponseDto> result) {
+    }
+}
@@ -0,0 +1,21 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import java.time.Duration;
+
+/**
+ * Thrown when a request is refused because the service is at its capacity, the request may
+ * be retried after the given delay.
+ */
+public class ServiceOverloadedException extends RuntimeException {
+
+    private final Duration retryAfter;
+
+    public ServiceOverloadedException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,1085 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import cz.jbenes.ubiquity.device_api.dto.DevicePathDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangeDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangesDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.repository.DeviceTopologyView;
+import cz.jbenes.ubiquity.device_api.service.TopologyTrees.Forest;
+import cz.jbenes.ubiquity.device_api.util.MacAddress;
+import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+import cz.jbenes.ubiquity.device_api.util.TopologySnapshot;
+
+/**
+ * In-memory adjacency index of the device topology.
+ * <p>
+ * Keeps a node per device, linked to its uplink and children, so that topology
+ * queries cost O(subtree size) and never touch the database. Insertion order of
+ * roots and children is preserved.
+ * </p>
+ * <p>
+ * Nodes are looked up by the 48-bit value of the MAC address in a primitive-keyed map, so
+ * that every notation of a MAC address resolves to the same device and lookups hash no strings.
+ * Identifiers that are not MAC addresses get keys above the 48-bit range.
+ * </p>
+ * <p>
+ * Every change bumps the topology version, and the full forest is cached as an immutable
+ * {@link TopologySnapshot} until the next change. Versions are seeded from the startup time,
+ * so they are not reused after a restart.
+ * </p>
+ * <p>
+ * Devices reachable from a root carry pre/post-order interval labels, so that ancestor checks
+ * are a comparison of two intervals. Labels are spaced apart, so that a new leaf takes a slice
+ * of the free space inside its uplink's interval. When that space runs out, the labels of the
+ * smallest enclosing subtree with enough room are spread again; only when no such subtree
+ * exists, or when a device moves under another uplink, are all labels reassigned.
+ * </p>
+ * <p>
+ * The same devices also keep their depth and binary-lifting jumps to the 2<sup>k</sup>-th
+ * ancestors, so that the lowest common ancestor of two devices is found in O(log depth).
+ * </p>
+ * <p>
+ * They are also kept in a treap ordered by pre-order label, whose nodes count the devices of
+ * their treap subtree per type. The descendants of a device are the devices labeled within
+ * its interval, so that counting them, as well as adding a device, is O(log n) regardless of
+ * the depth of the topology. Spreading labels keeps their order, so the treap is only rebuilt
+ * along with a full relabeling.
+ * </p>
+ * <p>
+ * The most recent changes are kept in a bounded change log with contiguous versions, so that
+ * clients can catch up from a known version without downloading the full topology.
+ * </p>
+ * <p>
+ * The index can be disabled with {@code device-api.topology.index-enabled=false} for deployments
+ * where the topology does not fit in memory; only the version is tracked then.
+ * </p>
+ */
+@Component
+public class TopologyIndex {
+
+    // distance between consecutive labels after a full relabeling
+    private static final long LABEL_GAP = 1L << 32;
+    // maximum width taken by a new leaf, leaving room for many siblings
+    private static final long LEAF_LABEL_STEP = 1L << 16;
+    // minimum interval width per device of a subtree that is relabeled on its own
+    private static final long LOCAL_RELABEL_WIDTH = 16 * LEAF_LABEL_STEP;
+    // index of the count of all devices after the counts per device type
+    private static final int TOTAL_COUNT = DeviceType.values().length;
+    // first key of identifiers that are not MAC addresses, just above the 48-bit range
+    private static final long IDENTIFIER_KEY_BASE = 1L << 48;
+
+    private static final Forest<Node> FOREST = new Forest<>() {
+        @Override
+        public List<Node> children(Node node) {
+            return node.children;
+        }
+
+        @Override
+        public String macAddress(Node node) {
+            return node.macAddress;
+        }
+
+        @Override
+        public DeviceType deviceType(Node node) {
+            return node.type;
+        }
+
+        @Override
+        public String childKey(Node node) {
+            return Long.toString(node.linkSequence);
+        }
+
+        @Override
+        public int indexAfter(List<Node> children, String childKey) {
+            long after;
+            try {
+                after = Long.parseLong(childKey);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid child cursor key: " + childKey);
+            }
+            // children are appended when linked, so they are ordered by link sequence
+            int low = 0;
+            int high = children.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (children.get(middle).linkSequence <= after) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    };
+
+    private final boolean enabled;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // registered devices and the uplinks they refer to
+    private final LongObjectHashMap<Node> nodesByKey = new LongObjectHashMap<>();
+    private final Map<String, Long> identifierKeys = new HashMap<>();
+    private final Set<Node> roots = new LinkedHashSet<>();
+    private long nextRootLabel;
+    private long nextLinkSequence;
+    // devices whose labels were reassigned, by full and local relabelings
+    private long relabeledDevices;
+    // root of the treap of labeled devices ordered by pre-order label
+    private Node countRoot;
+
+    private volatile long version = System.currentTimeMillis() * 1000;
+    private volatile TopologySnapshot snapshot;
+
+    // ring buffer of the changes following changeLogBaseVersion
+    private final TopologyChangeDto[] changeLog;
+    private int changeLogHead;
+    private int changeLogSize;
+    private long changeLogBaseVersion = version;
+
+    public TopologyIndex(@Value("${device-api.topology.index-enabled:true}") boolean enabled,
+            @Value("${device-api.topology.change-log.capacity:10000}") int changeLogCapacity) {
+        this.enabled = enabled;
+        this.changeLog = new TopologyChangeDto[changeLogCapacity];
+    }
+
+    /**
+     * Tells whether the index is maintained and can serve topology queries.
+     *
+     * @return true if the index is enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Replaces the whole index content with the given devices.
+     *
+     * @param devices all known devices
+     */
+    public void rebuild(List<? extends DeviceTopologyView> devices) {
+        lock.writeLock().lock();
+        try {
+            if (enabled) {
+                nodesByKey.clear();
+                identifierKeys.clear();
+                roots.clear();
+                countRoot = null;
+                for (DeviceTopologyView device : devices) {
+                    Node node = nodeOf(device.getMacAddress());
+                    node.registered = true;
+                    node.type = device.getDeviceType();
+                    link(node, device.getUplinkMac() != null ? nodeOf(device.getUplinkMac()) : null);
+                }
+                relabel();
+            }
+            version++;
+
+            // changes before a rebuild cannot be replayed on top of it
+            Arrays.fill(changeLog, null);
+            changeLogHead = 0;
+            changeLogSize = 0;
+            changeLogBaseVersion = version;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a device to the index or moves an already indexed device under a new uplink,
+     * and records the change in the change log.
+     *
+     * @param macAddress the MAC address of the device
+     * @param uplinkMacAddress the MAC address of its uplink, or null for a root device
+     * @param deviceType the type of the device
+     * @return the recorded change carrying the new topology version
+     */
+    public TopologyChangeDto put(String macAddress, String uplinkMacAddress, DeviceType deviceType) {
+        return put(macAddress, uplinkMacAddress, deviceType, 0);
+    }
+
+    /**
+     * Adds a device to the index or moves an already indexed device under a new uplink,
+     * unless a registration of the device committed later has already been applied, and
+     * records the change in the change log.
+     *
+     * @param macAddress the MAC address of the device
+     * @param uplinkMacAddress the MAC address of its uplink, or null for a root device
+     * @param deviceType the type of the device
+     * @param commitSequence the position of the registration among the committed registrations
+     *        of the device, 0 if unknown, in which case the registration is always applied
+     * @return the recorded change carrying the new topology version, or null if the registration
+     *         is superseded
+     */
+    public TopologyChangeDto put(String macAddress, String uplinkMacAddress, DeviceType deviceType,
+            long commitSequence) {
+        return put(macAddress, uplinkMacAddress, deviceType, commitSequence, change -> { });
+    }
+
+    /**
+     * Adds a device to the index or moves an already indexed device under a new uplink,
+     * unless a registration of the device committed later has already been applied, records
+     * the change in the change log and announces it.
+     * <p>
+     * The change is announced while the index is still locked, so that changes are announced
+     * in version order; the announcer must therefore not block.
+     * </p>
+     *
+     * @param macAddress the MAC address of the device
+     * @param uplinkMacAddress the MAC address of its uplink, or null for a root device
+     * @param deviceType the type of the device
+     * @param commitSequence the position of the registration among the committed registrations
+     *        of the device, 0 if unknown, in which case the registration is always applied
+     * @param announcer receives the recorded change, unless the registration is superseded
+     * @return the recorded change carrying the new topology version, or null if the registration
+     *         is superseded
+     */
+    public TopologyChangeDto put(String macAddress, String uplinkMacAddress, DeviceType deviceType,
+            long commitSequence, Consumer<TopologyChangeDto> announcer) {
+        lock.writeLock().lock();
+        try {
+            if (enabled) {
+                Node node = nodeOf(macAddress);
+                if (commitSequence != 0 && commitSequence < node.commitSequence) {
+                    return null;
+                }
+                node.commitSequence = Math.max(node.commitSequence, commitSequence);
+                Node uplink = uplinkMacAddress != null ? nodeOf(uplinkMacAddress) : null;
+                boolean known = node.registered;
+                DeviceType previousType = node.type;
+                node.registered = true;
+                node.type = deviceType;
+                if (!known) {
+                    link(node, uplink);
+                    labelLeaf(node, uplink);
+                } else if (node.uplink != uplink) {
+                    unlink(node);
+                    link(node, uplink);
+                    // the whole subtree moves, which no local relabeling can express
+                    relabel();
+                } else if (previousType != deviceType && node.labeled()) {
+                    recount(node, previousType, deviceType);
+                }
+            }
+            TopologyChangeDto change = new TopologyChangeDto(macAddress, deviceType, uplinkMacAddress, ++version);
+            appendChange(change);
+            announcer.accept(change);
+            return change;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the changes made after the given version.
+     *
+     * @param since the topology version known to the client
+     * @return the changes in version order, or a resync marker if the version is not covered by the change log
+     */
+    public TopologyChangesDto getChangesSince(long since) {
+        lock.readLock().lock();
+        try {
+            if (since < changeLogBaseVersion || since > version) {
+                return new TopologyChangesDto(version, true, List.of());
+            }
+            int skip = (int) (since - changeLogBaseVersion);
+            List<TopologyChangeDto> changes = new ArrayList<>(changeLogSize - skip);
+            for (int i = skip; i < changeLogSize; i++) {
+                changes.add(changeLog[(changeLogHead + i) % changeLog.length]);
+            }
+            return new TopologyChangesDto(version, false, changes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of devices whose labels were reassigned since startup, counting a
+     * device once per relabeling that covers it.
+     *
+     * @return the number of relabeled devices
+     */
+    long getRelabeledDeviceCount() {
+        lock.readLock().lock();
+        try {
+            return relabeledDevices;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the current topology version.
+     *
+     * @return the version, increased on every change
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the full topology forest of the current version, building it only if
+     * the topology changed since the last call.
+     *
+     * @return the snapshot of the current version
+     */
+    public TopologySnapshot getSnapshot() {
+        TopologySnapshot current = getCachedSnapshot();
+        if (current != null) {
+            return current;
+        }
+        lock.readLock().lock();
+        try {
+            current = new TopologySnapshot(version, buildForest());
+            snapshot = current;
+            return current;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the full topology forest of the current version if it is already built.
+     *
+     * @return the snapshot of the current version, or null if the topology changed since the last build
+     */
+    public TopologySnapshot getCachedSnapshot() {
+        TopologySnapshot current = snapshot;
+        return current != null && current.version() == version ? current : null;
+    }
+
+    /**
+     * Builds the subtree rooted at the given device, bounded in depth and children per node.
+     *
+     * @param macAddress the MAC address of the root device
+     * @param maxDepth the maximum depth below the root
+     * @param childLimit the maximum number of children returned per node
+     * @param rootChildAfter the key of the last child of the root already returned, or null for the first child
+     * @return the subtree, or null if the device is not indexed
+     */
+    public TopologyNode getTopologyFrom(String macAddress, int maxDepth, int childLimit, String rootChildAfter) {
+        lock.readLock().lock();
+        try {
+            Node root = findDevice(macAddress);
+            if (root == null) {
+                return null;
+            }
+            return TopologyTrees.build(FOREST, root, maxDepth, childLimit, rootChildAfter);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tells whether the given device is indexed.
+     *
+     * @param macAddress the MAC address of the device
+     * @return true if the device is indexed
+     */
+    public boolean contains(String macAddress) {
+        lock.readLock().lock();
+        try {
+            return findDevice(macAddress) != null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the full topology forest as a JSON array of nested nodes.
+     *
+     * @param generator the generator to write to
+     * @return the topology version the written forest reflects
+     * @throws IOException if writing fails
+     */
+    public long writeForest(JsonGenerator generator) throws IOException {
+        lock.readLock().lock();
+        try {
+            TopologyTrees.writeForest(generator, FOREST, roots);
+            return version;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the full topology forest as parallel arrays of MAC addresses, device types and
+     * uplink indices in pre-order.
+     *
+     * @param generator the generator to write to
+     * @return the topology version the written forest reflects
+     * @throws IOException if writing fails
+     */
+    public long writeFlatForest(JsonGenerator generator) throws IOException {
+        lock.readLock().lock();
+        try {
+            TopologyTrees.writeFlat(generator, version, FOREST, roots);
+            return version;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the subtree rooted at the given indexed device as a nested JSON object,
+     * bounded in depth and children per node.
+     *
+     * @param generator the generator to write to
+     * @param macAddress the MAC address of the root device, which must be indexed
+     * @param maxDepth the maximum depth below the root
+     * @param childLimit the maximum number of children written per node
+     * @param rootChildAfter the key of the last child of the root already written, or null for the first child
+     * @return the topology version the written subtree reflects
+     * @throws IOException if writing fails
+     * @throws IllegalArgumentException if the device is not indexed
+     */
+    public long writeTopologyFrom(JsonGenerator generator, String macAddress, int maxDepth, int childLimit,
+            String rootChildAfter) throws IOException {
+        lock.readLock().lock();
+        try {
+            Node root = findDevice(macAddress);
+            if (root == null) {
+                throw new IllegalArgumentException("Device not indexed: " + macAddress);
+            }
+            TopologyTrees.write(generator, FOREST, root, maxDepth, childLimit, rootChildAfter);
+            return version;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Tells whether a device is connected below another one, directly or through other devices.
+     *
+     * @param macAddress the MAC address of the device
+     * @param ancestorMacAddress the MAC address of the presumed ancestor
+     * @return true if the ancestor is a proper ancestor of the device
+     */
+    public boolean isUnder(String macAddress, String ancestorMacAddress) {
+        lock.readLock().lock();
+        try {
+            Node device = find(macAddress);
+            Node ancestor = find(ancestorMacAddress);
+            return device != null && ancestor != null && device.labeled() && ancestor.labeled()
+                    && ancestor.pre < device.pre && device.post < ancestor.post;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the uplink chain of a device.
+     *
+     * @param macAddress the MAC address of an indexed device
+     * @return the MAC addresses from the device itself up to its root
+     */
+    public List<String> getPathToRoot(String macAddress) {
+        lock.readLock().lock();
+        try {
+            List<String> path = new ArrayList<>();
+            // bounded by the node count in case the stored uplinks form a cycle
+            for (Node current = find(macAddress); current != null && path.size() < nodesByKey.size();
+                    current = current.uplink) {
+                path.add(current.macAddress);
+            }
+            return path;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of descendants of an indexed device per device type.
+     *
+     * @param macAddress the MAC address of the device
+     * @return the descendant aggregates
+     */
+    public DeviceStatsDto getStats(String macAddress) {
+        lock.readLock().lock();
+        try {
+            Node node = find(macAddress);
+            int[] counts = node != null && node.labeled() ? descendantCounts(node) : null;
+            Map<DeviceType, Integer> countsByType = new EnumMap<>(DeviceType.class);
+            int total = 0;
+            for (DeviceType type : DeviceType.values()) {
+                int count = counts != null ? counts[type.ordinal()] : 0;
+                countsByType.put(type, count);
+                total += count;
+            }
+            return new DeviceStatsDto(macAddress, total, countsByType);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the hop path between two devices through their lowest common ancestor.
+     *
+     * @param fromMacAddress the MAC address of the source device
+     * @param toMacAddress the MAC address of the target device
+     * @return the common ancestor and the path, or a path without common ancestor if the devices are not connected
+     */
+    public DevicePathDto getPath(String fromMacAddress, String toMacAddress) {
+        lock.readLock().lock();
+        try {
+            Node from = find(fromMacAddress);
+            Node to = find(toMacAddress);
+            Node ancestor = from != null && to != null ? lowestCommonAncestor(from, to) : null;
+            if (ancestor == null) {
+                return new DevicePathDto(null, List.of());
+            }
+            List<String> path = new ArrayList<>();
+            for (Node current = from; current != ancestor; current = current.uplink) {
+                path.add(current.macAddress);
+            }
+            path.add(ancestor.macAddress);
+            List<String> down = new ArrayList<>();
+            for (Node current = to; current != ancestor; current = current.uplink) {
+                down.add(current.macAddress);
+            }
+            path.addAll(down.reversed());
+            return new DevicePathDto(ancestor.macAddress, path);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lifts both devices to the same depth and then up by decreasing powers of two while their
+     * ancestors differ.
+     *
+     * @return the lowest common ancestor, or null if the devices are not in the same tree
+     */
+    private static Node lowestCommonAncestor(Node first, Node second) {
+        Ancestry a = first.ancestry;
+        Ancestry b = second.ancestry;
+        if (a == null || b == null) {
+            return null;
+        }
+        if (a.depth() < b.depth()) {
+            Node node = first;
+            first = second;
+            second = node;
+            Ancestry ancestry = a;
+            a = b;
+            b = ancestry;
+        }
+        for (int k = 0, diff = a.depth() - b.depth(); diff > 0; k++, diff >>= 1) {
+            if ((diff & 1) != 0) {
+                first = a.jumps()[k];
+                a = first.ancestry;
+            }
+        }
+        if (first == second) {
+            return first;
+        }
+        for (int k = a.jumps().length - 1; k >= 0; k--) {
+            if (k < a.jumps().length && a.jumps()[k] != b.jumps()[k]) {
+                first = a.jumps()[k];
+                second = b.jumps()[k];
+                a = first.ancestry;
+                b = second.ancestry;
+            }
+        }
+        // different roots end up as distinct devices without a shared parent
+        return a.jumps().length > 0 && a.jumps()[0] == b.jumps()[0] ? a.jumps()[0] : null;
+    }
+
+    private List<TopologyNode> buildForest() {
+        List<TopologyNode> result = new ArrayList<>(roots.size());
+        for (Node root : roots) {
+            result.add(TopologyTrees.build(FOREST, root, TopologyTrees.UNLIMITED, TopologyTrees.UNLIMITED, null));
+        }
+        return result;
+    }
+
+    private void appendChange(TopologyChangeDto change) {
+        if (changeLog.length == 0) {
+            changeLogBaseVersion = change.getVersion();
+            return;
+        }
+        if (changeLogSize == changeLog.length) {
+            changeLogBaseVersion = changeLog[changeLogHead].getVersion();
+            changeLogHead = (changeLogHead + 1) % changeLog.length;
+            changeLogSize--;
+        }
+        changeLog[(changeLogHead + changeLogSize) % changeLog.length] = change;
+        changeLogSize++;
+    }
+
+    /**
+     * Returns the node of the given MAC address or identifier, whether registered or only referred to as an uplink.
+     *
+     * @return the node, or null if neither
+     */
+    private Node find(String macAddress) {
+        long key = MacAddress.tryParse(macAddress);
+        if (key == MacAddress.INVALID) {
+            Long identifierKey = identifierKeys.get(macAddress);
+            if (identifierKey == null) {
+                return null;
+            }
+            key = identifierKey;
+        }
+        return nodesByKey.get(key);
+    }
+
+    /**
+     * Returns the node of a registered device.
+     *
+     * @return the node, or null if the device is not indexed
+     */
+    private Node findDevice(String macAddress) {
+        Node node = find(macAddress);
+        return node != null && node.registered ? node : null;
+    }
+
+    /**
+     * Returns the node of the given MAC address or identifier, adding an unregistered one if there is none.
+     */
+    private Node nodeOf(String macAddress) {
+        long key = MacAddress.tryParse(macAddress);
+        boolean identifier = key == MacAddress.INVALID;
+        if (identifier) {
+            key = identifierKeys.computeIfAbsent(macAddress, k -> IDENTIFIER_KEY_BASE + identifierKeys.size());
+        }
+        Node node = nodesByKey.get(key);
+        if (node == null) {
+            // formatted once, as walks return it for every visited device
+            node = new Node(key, identifier ? macAddress : MacAddress.format(key));
+            nodesByKey.put(key, node);
+        }
+        return node;
+    }
+
+    /**
+     * Labels a device that has just been linked as the last child of its uplink.
+     * <p>
+     * Later children take small fixed steps, leaving room for many siblings, while a first child
+     * takes the uplink's whole interval but the steps at its ends, so that daisy chains shrink
+     * by two steps per level instead of by a factor. Without room in the uplink's interval, the
+     * subtree of the lowest ancestor with enough room per device is relabeled, falling back to a
+     * full relabeling.
+     * </p>
+     */
+    private void labelLeaf(Node node, Node uplink) {
+        if (node.children != null) {
+            relabel();
+            return;
+        }
+        if (uplink == null) {
+            node.ancestry = ancestryUnder(null);
+            node.pre = nextRootLabel;
+            node.post = nextRootLabel + LABEL_GAP;
+            nextRootLabel = node.post + LABEL_GAP;
+            addCounted(node);
+            return;
+        }
+        if (!uplink.labeled()) {
+            // the uplink is not reachable from a root, and neither is the device
+            return;
+        }
+        node.ancestry = ancestryUnder(uplink);
+        List<Node> siblings = uplink.children;
+        boolean firstChild = siblings.size() == 1;
+        long low = firstChild ? uplink.pre : siblings.get(siblings.size() - 2).post;
+        long free = uplink.post - low;
+        if (free >= 3) {
+            long step = Math.min(LEAF_LABEL_STEP, free / 3);
+            node.pre = low + step;
+            node.post = firstChild ? uplink.post - step : low + 2 * step;
+            addCounted(node);
+            return;
+        }
+        for (Node ancestor = uplink; ancestor != null; ancestor = ancestor.uplink) {
+            // the ancestor and the new leaf, which is not counted yet, along with the counted descendants
+            long size = 2 + descendantCounts(ancestor)[TOTAL_COUNT];
+            long width = ancestor.post - ancestor.pre;
+            if (width / size >= LOCAL_RELABEL_WIDTH) {
+                relabelSubtree(ancestor, size, node);
+                relabeledDevices += size;
+                addCounted(node);
+                return;
+            }
+        }
+        relabel();
+    }
+
+    /**
+     * Spreads the labels of the descendants of a device, of which there are {@code size - 1},
+     * over the device's own interval.
+     * <p>
+     * The interval of the given new leaf and the room following it, where its children and
+     * siblings are registered next, each take a third of the interval; the other labels are
+     * evenly spaced over the remaining third. The device's own labels, the ancestry and the
+     * order of all labels stay unchanged.
+     * </p>
+     */
+    private static void relabelSubtree(Node subtreeRoot, long size, Node leaf) {
+        // 2 labels per descendant, so one gap more than that between the root's own labels
+        long gaps = 2 * (size - 1) + 1;
+        long unit = (subtreeRoot.post - subtreeRoot.pre) / (3 * gaps - 2);
+        long label = subtreeRoot.pre;
+        long nextGap = unit;
+        Deque<Node> path = new ArrayDeque<>();
+        Deque<Iterator<Node>> pending = new ArrayDeque<>();
+        // pre-order labels of the devices on the path below the subtree root, by depth
+        long[] pres = new long[16];
+        path.push(subtreeRoot);
+        pending.push(childrenOf(subtreeRoot).iterator());
+        while (path.size() > 1 || pending.peek().hasNext()) {
+            Iterator<Node> children = pending.peek();
+            if (children.hasNext()) {
+                Node child = children.next();
+                label += nextGap;
+                nextGap = child == leaf ? gaps * unit : unit;
+                if (path.size() == pres.length) {
+                    pres = Arrays.copyOf(pres, pres.length * 2);
+                }
+                pres[path.size()] = label;
+                path.push(child);
+                pending.push(childrenOf(child).iterator());
+                continue;
+            }
+            Node done = path.pop();
+            pending.pop();
+            label += nextGap;
+            nextGap = done == leaf ? gaps * unit : unit;
+            done.pre = pres[path.size()];
+            done.post = label;
+        }
+    }
+
+    /**
+     * Returns the number of labeled devices inside the interval of a labeled device, per type
+     * ordinal and in total at {@link #TOTAL_COUNT}.
+     */
+    private int[] descendantCounts(Node node) {
+        int[] counts = countsBefore(node.post);
+        int[] upToNode = countsBefore(node.pre + 1);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] -= upToNode[i];
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the labeled devices whose pre-order label precedes the given label.
+     */
+    private int[] countsBefore(long label) {
+        int[] counts = new int[TOTAL_COUNT + 1];
+        for (Node tree = countRoot; tree != null; ) {
+            if (tree.pre < label) {
+                if (tree.countLeft != null) {
+                    addCounts(counts, tree.countLeft.treeCounts);
+                }
+                addOwnCount(counts, tree, 1);
+                tree = tree.countRight;
+            } else {
+                tree = tree.countLeft;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Adds a device that has just been labeled to the treap, below the devices of higher
+     * priority, splitting the subtree it takes the place of into its children.
+     */
+    private void addCounted(Node node) {
+        node.treeCounts = new int[TOTAL_COUNT + 1];
+        int priority = priority(node);
+        Node parent = null;
+        Node tree = countRoot;
+        while (tree != null && priority(tree) >= priority) {
+            addOwnCount(tree.treeCounts, node, 1);
+            parent = tree;
+            tree = node.pre < tree.pre ? tree.countLeft : tree.countRight;
+        }
+        Node[] parts = split(tree, node.pre);
+        node.countLeft = parts[0];
+        node.countRight = parts[1];
+        updateCounts(node);
+        if (parent == null) {
+            countRoot = node;
+        } else if (node.pre < parent.pre) {
+            parent.countLeft = node;
+        } else {
+            parent.countRight = node;
+        }
+    }
+
+    /**
+     * Moves a labeled device from one type count to another along its treap path.
+     */
+    private void recount(Node node, DeviceType previousType, DeviceType deviceType) {
+        long label = node.pre;
+        for (Node tree = countRoot; tree != null; tree = label < tree.pre ? tree.countLeft : tree.countRight) {
+            if (previousType != null) {
+                tree.treeCounts[previousType.ordinal()]--;
+            }
+            if (deviceType != null) {
+                tree.treeCounts[deviceType.ordinal()]++;
+            }
+            if (tree == node) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Replaces the treap with one holding the given devices, in linear time.
+     *
+     * @param preOrder all labeled devices in pre-order
+     */
+    private void rebuildCounts(List<Node> preOrder) {
+        // the right spine of the treap built so far, the lowest device on top
+        Deque<Node> spine = new ArrayDeque<>();
+        for (Node node : preOrder) {
+            if (node.treeCounts == null) {
+                node.treeCounts = new int[TOTAL_COUNT + 1];
+            }
+            Node last = null;
+            while (!spine.isEmpty() && priority(spine.peek()) < priority(node)) {
+                // complete, as no later device can join its subtree
+                last = spine.pop();
+                updateCounts(last);
+            }
+            node.countLeft = last;
+            node.countRight = null;
+            if (!spine.isEmpty()) {
+                spine.peek().countRight = node;
+            }
+            spine.push(node);
+        }
+        Node root = null;
+        while (!spine.isEmpty()) {
+            root = spine.pop();
+            updateCounts(root);
+        }
+        countRoot = root;
+    }
+
+    /**
+     * Splits a treap into the devices labeled before the given label and the others.
+     */
+    private static Node[] split(Node tree, long label) {
+        if (tree == null) {
+            return new Node[2];
+        }
+        Node[] parts;
+        if (tree.pre < label) {
+            parts = split(tree.countRight, label);
+            tree.countRight = parts[0];
+            parts[0] = tree;
+        } else {
+            parts = split(tree.countLeft, label);
+            tree.countLeft = parts[1];
+            parts[1] = tree;
+        }
+        updateCounts(tree);
+        return parts;
+    }
+
+    private static void updateCounts(Node tree) {
+        int[] counts = tree.treeCounts;
+        Arrays.fill(counts, 0);
+        if (tree.countLeft != null) {
+            addCounts(counts, tree.countLeft.treeCounts);
+        }
+        if (tree.countRight != null) {
+            addCounts(counts, tree.countRight.treeCounts);
+        }
+        addOwnCount(counts, tree, 1);
+    }
+
+    private static void addCounts(int[] counts, int[] added) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += added[i];
+        }
+    }
+
+    private static void addOwnCount(int[] counts, Node node, int delta) {
+        if (node.type != null) {
+            counts[node.type.ordinal()] += delta;
+        }
+        counts[TOTAL_COUNT] += delta;
+    }
+
+    /**
+     * Returns the treap priority of a device, a hash of its key, so that the treap stays
+     * balanced in expectation without storing random numbers.
+     */
+    private static int priority(Node node) {
+        long hash = node.key;
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return (int) (hash ^ (hash >>> 33));
+    }
+
+    /**
+     * Computes the depth and ancestor jumps of a device under the given, already labeled uplink.
+     */
+    private static Ancestry ancestryUnder(Node uplink) {
+        if (uplink == null) {
+            return new Ancestry(0, new Node[0]);
+        }
+        int depth = uplink.ancestry.depth() + 1;
+        Node[] jumps = new Node[32 - Integer.numberOfLeadingZeros(depth)];
+        jumps[0] = uplink;
+        for (int k = 1; k < jumps.length; k++) {
+            // the 2^k-th ancestor is the 2^(k-1)-th ancestor of the 2^(k-1)-th ancestor
+            jumps[k] = jumps[k - 1].ancestry.jumps()[k - 1];
+        }
+        return new Ancestry(depth, jumps);
+    }
+
+    /**
+     * Reassigns evenly spaced pre/post-order labels and ancestor jumps to all devices reachable
+     * from a root, and rebuilds the treap counting them.
+     */
+    private void relabel() {
+        nodesByKey.forEachValue(node -> {
+            node.pre = 0;
+            node.post = 0;
+            node.ancestry = null;
+            node.countLeft = null;
+            node.countRight = null;
+        });
+        List<Node> preOrder = new ArrayList<>(nodesByKey.size());
+        long label = 0;
+        Deque<Node> path = new ArrayDeque<>();
+        Deque<Iterator<Node>> pending = new ArrayDeque<>();
+        // pre-order labels of the devices on the path, by depth
+        long[] pres = new long[16];
+        for (Node root : roots) {
+            label += LABEL_GAP;
+            pres[0] = label;
+            root.ancestry = ancestryUnder(null);
+            preOrder.add(root);
+            path.push(root);
+            pending.push(childrenOf(root).iterator());
+            while (!path.isEmpty()) {
+                Iterator<Node> children = pending.peek();
+                if (children.hasNext()) {
+                    Node child = children.next();
+                    label += LABEL_GAP;
+                    if (path.size() == pres.length) {
+                        pres = Arrays.copyOf(pres, pres.length * 2);
+                    }
+                    pres[path.size()] = label;
+                    child.ancestry = ancestryUnder(path.peek());
+                    preOrder.add(child);
+                    path.push(child);
+                    pending.push(childrenOf(child).iterator());
+                    continue;
+                }
+                Node done = path.pop();
+                pending.pop();
+                label += LABEL_GAP;
+                done.pre = pres[path.size()];
+                done.post = label;
+            }
+        }
+        nextRootLabel = label + LABEL_GAP;
+        relabeledDevices += preOrder.size();
+        rebuildCounts(preOrder);
+    }
+
+    private static List<Node> childrenOf(Node node) {
+        return node.children != null ? node.children : List.of();
+    }
+
+    private void link(Node node, Node uplink) {
+        node.uplink = uplink;
+        node.linkSequence = nextLinkSequence++;
+        if (uplink == null) {
+            roots.add(node);
+        } else {
+            if (uplink.children == null) {
+                uplink.children = new ArrayList<>();
+            }
+            uplink.children.add(node);
+        }
+    }
+
+    private void unlink(Node node) {
+        Node previousUplink = node.uplink;
+        node.uplink = null;
+        if (previousUplink == null) {
+            roots.remove(node);
+        } else if (previousUplink.children != null) {
+            previousUplink.children.remove(node);
+            if (previousUplink.children.isEmpty()) {
+                previousUplink.children = null;
+            }
+        }
+    }
+
+    /**
+     * A registered device, or a device referred to as an uplink before its own registration.
+     * <p>
+     * Nodes compare by identity, so that sets and lists of them never hash or compare MAC addresses.
+     * </p>
+     */
+    private static final class Node {
+        private final long key;
+        // the canonical MAC address, or the device identifier if it is not a MAC address,
+        // which the key then cannot express
+        private final String macAddress;
+        private boolean registered;
+        private DeviceType type;
+        private Node uplink;
+        private List<Node> children;
+        // order of linking to the uplink, which keeps the children ordered by it
+        private long linkSequence;
+        // the latest commit sequence of a registration applied to the device, 0 if unknown
+        private long commitSequence;
+        // pre/post-order labels, ancestry and treap links are present only if the device is
+        // reachable from a root; a device lies under another one if its labels lie inside the other's
+        private long pre;
+        private long post;
+        private Ancestry ancestry;
+        private Node countLeft;
+        private Node countRight;
+        // devices of the treap subtree per type ordinal, and in total at TOTAL_COUNT
+        private int[] treeCounts;
+
+        private Node(long key, String macAddress) {
+            this.key = key;
+            this.macAddress = macAddress;
+        }
+
+        private boolean labeled() {
+            // labels start at 0 and the post-order label exceeds the pre-order one
+            return post != 0;
+        }
+    }
+
+    /**
+     * Depth below the root and the 2<sup>k</sup>-th ancestors, the uplink first.
+     */
+    private record Ancestry(int depth, Node[] jumps) {
+    }
+}
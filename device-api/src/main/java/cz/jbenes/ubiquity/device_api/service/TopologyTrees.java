@@ -0,0 +1,430 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+
+import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+
+/**
+ * Walks topology trees given by a {@link Forest}, optionally bounded in depth and in the number
+ * of children per node, either into {@link TopologyNode} trees or directly into nested JSON.
+ * <p>
+ * The walk keeps its own stack instead of recursing, so arbitrarily deep daisy chains do not
+ * overflow the thread stack. It also tracks the nodes on the current path and fails with an
+ * {@link IllegalStateException} on a node that is its own ancestor, instead of walking a cycle
+ * of corrupt uplinks forever.
+ * </p>
+ */
+final class TopologyTrees {
+
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private static final String CHILD_CURSOR_PREFIX = ">";
+
+    private TopologyTrees() {
+    }
+
+    /**
+     * Read access to a topology forest whose devices are represented by nodes of type {@code N}.
+     *
+     * @param <N> the node type
+     */
+    interface Forest<N> {
+
+        /**
+         * Returns the ordered children of a node.
+         *
+         * @param node the node
+         * @return the children, or null for a leaf
+         */
+        List<N> children(N node);
+
+        String macAddress(N node);
+
+        DeviceType deviceType(N node);
+
+        /**
+         * Returns the key that orders a node among its siblings, from which child cursors resume.
+         *
+         * @param node the node
+         * @return the key
+         */
+        String childKey(N node);
+
+        /**
+         * Returns the position of the first child whose key follows the given one.
+         *
+         * @param children the children, ordered by their keys
+         * @param childKey the key of the last child already returned
+         * @return the index of the next child, or the number of children if none follows
+         * @throws IllegalArgumentException if the key cannot belong to this forest
+         */
+        int indexAfter(List<N> children, String childKey);
+    }
+
+    /**
+     * Returns a forest whose nodes are the MAC addresses themselves, keyed by MAC address.
+     *
+     * @param children returns the children of a device, which must be ordered by MAC address
+     *        if they are paged with child cursors, or null for a leaf
+     * @param types returns the type of a device
+     * @return the forest
+     */
+    static Forest<String> forestOf(Function<String, List<String>> children, Function<String, DeviceType> types) {
+        return new Forest<>() {
+            @Override
+            public List<String> children(String node) {
+                return children.apply(node);
+            }
+
+            @Override
+            public String macAddress(String node) {
+                return node;
+            }
+
+            @Override
+            public DeviceType deviceType(String node) {
+                return types.apply(node);
+            }
+
+            @Override
+            public String childKey(String node) {
+                return node;
+            }
+
+            @Override
+            public int indexAfter(List<String> children, String childKey) {
+                int index = Collections.binarySearch(children, childKey);
+                return index >= 0 ? index + 1 : -index - 1;
+            }
+        };
+    }
+
+    /**
+     * Receives the nodes of a walk in depth-first order.
+     */
+    private interface Visitor {
+
+        /**
+         * Enters a node.
+         *
+         * @param macAddress the MAC address of the node
+         * @param childCount the number of children the walk will enter below the node
+         */
+        void enter(String macAddress, int childCount) throws IOException;
+
+        /**
+         * Leaves the most recently entered node that has not been left yet.
+         *
+         * @param childCount the total child count, or null if no children were cut off
+         * @param childCursor the cursor following the last returned child, or null if no more children follow
+         */
+        void leave(Integer childCount, String childCursor) throws IOException;
+    }
+
+    /**
+     * Node on the walk stack with the range of its children still to be visited.
+     */
+    private static final class Frame<N> {
+        private final N node;
+        private final List<N> children;
+        private final int depth;
+        private final int start;
+        private final int end;
+        private int next;
+
+        private Frame(N node, List<N> children, int depth, int start, int end) {
+            this.node = node;
+            this.children = children;
+            this.depth = depth;
+            this.start = start;
+            this.end = end;
+            this.next = start;
+        }
+    }
+
+    /**
+     * Node under construction by {@link #build} with the next free slot of its child array.
+     */
+    private static final class Building {
+        private final TopologyNode node;
+        private final TopologyNode[] children;
+        private int filled;
+
+        private Building(TopologyNode node, TopologyNode[] children) {
+            this.node = node;
+            this.children = children;
+        }
+    }
+
+    /**
+     * Builds the subtree of the given root.
+     * <p>
+     * Nodes at {@code maxDepth} are returned without children. Every node whose children
+     * are cut off, by depth or by {@code childLimit}, carries the total child count, and a
+     * child cursor if more children follow.
+     * </p>
+     * <p>
+     * The returned nodes are frozen, so that snapshots and coalesced results can be handed to
+     * any number of callers.
+     * </p>
+     *
+     * @param forest the forest containing the subtree
+     * @param root the subtree root
+     * @param maxDepth the maximum depth below the root, 0 returns the root only
+     * @param childLimit the maximum number of children returned per node
+     * @param rootChildAfter the key of the last child of the root already returned, or null for the first child
+     * @return the subtree
+     */
+    static <N> TopologyNode build(Forest<N> forest, N root, int maxDepth, int childLimit, String rootChildAfter) {
+        Deque<Building> path = new ArrayDeque<>();
+        TopologyNode[] result = new TopologyNode[1];
+        Visitor builder = new Visitor() {
+            @Override
+            public void enter(String macAddress, int childCount) {
+                TopologyNode node = new TopologyNode(macAddress);
+                TopologyNode[] childNodes = null;
+                if (childCount > 0) {
+                    // sized up front, leaves keep the shared empty list
+                    childNodes = new TopologyNode[childCount];
+                    node.setChildren(Collections.unmodifiableList(Arrays.asList(childNodes)));
+                }
+                Building parent = path.peek();
+                if (parent != null) {
+                    parent.children[parent.filled++] = node;
+                }
+                path.push(new Building(node, childNodes));
+            }
+
+            @Override
+            public void leave(Integer childCount, String childCursor) {
+                TopologyNode node = path.pop().node;
+                node.setChildCount(childCount);
+                node.setChildCursor(childCursor);
+                node.freeze();
+                result[0] = node;
+            }
+        };
+        try {
+            walk(forest, root, maxDepth, childLimit, rootChildAfter, builder);
+        } catch (IOException e) {
+            // the builder does no I/O
+            throw new UncheckedIOException(e);
+        }
+        return result[0];
+    }
+
+    /**
+     * Writes the subtree of the given root as a nested JSON object with the same shape and
+     * bounds as {@link #build}, without creating any {@link TopologyNode}.
+     *
+     * @param generator the generator to write to
+     * @param forest the forest containing the subtree
+     * @param root the subtree root
+     * @param maxDepth the maximum depth below the root, 0 writes the root only
+     * @param childLimit the maximum number of children written per node
+     * @param rootChildAfter the key of the last child of the root already written, or null for the first child
+     * @throws IOException if writing fails
+     */
+    static <N> void write(JsonGenerator generator, Forest<N> forest, N root, int maxDepth, int childLimit,
+            String rootChildAfter) throws IOException {
+        walk(forest, root, maxDepth, childLimit, rootChildAfter, new Visitor() {
+            @Override
+            public void enter(String macAddress, int childCount) throws IOException {
+                generator.writeStartObject();
+                generator.writeStringField("macAddress", macAddress);
+                generator.writeArrayFieldStart("children");
+            }
+
+            @Override
+            public void leave(Integer childCount, String childCursor) throws IOException {
+                generator.writeEndArray();
+                if (childCount != null) {
+                    generator.writeNumberField("childCount", childCount);
+                }
+                if (childCursor != null) {
+                    generator.writeStringField("childCursor", childCursor);
+                }
+                generator.writeEndObject();
+            }
+        });
+    }
+
+    /**
+     * Writes the unbounded trees of the given roots as a JSON array.
+     *
+     * @param generator the generator to write to
+     * @param forest the forest
+     * @param roots the root devices
+     * @throws IOException if writing fails
+     */
+    static <N> void writeForest(JsonGenerator generator, Forest<N> forest, Iterable<N> roots) throws IOException {
+        generator.writeStartArray();
+        for (N root : roots) {
+            write(generator, forest, root, UNLIMITED, UNLIMITED, null);
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Writes the unbounded trees of the given roots as parallel arrays in pre-order: MAC
+     * addresses, device types and the index of each device's uplink, -1 for roots.
+     *
+     * @param generator the generator to write to
+     * @param version the topology version written along with the arrays
+     * @param forest the forest
+     * @param roots the root devices
+     * @throws IOException if writing fails
+     */
+    static <N> void writeFlat(JsonGenerator generator, long version, Forest<N> forest, Iterable<N> roots)
+            throws IOException {
+        List<N> nodes = new ArrayList<>();
+        int[] parents = new int[16];
+        Deque<Pending<N>> stack = new ArrayDeque<>();
+        // the nodes on the path to the last emitted one, which is pathEnd
+        Set<N> onPath = new HashSet<>();
+        for (N root : roots) {
+            stack.push(new Pending<>(root, -1));
+            int pathEnd = -1;
+            while (!stack.isEmpty()) {
+                Pending<N> pending = stack.pop();
+                // pre-order, so the uplink is on the path and everything below it is done
+                for (; pathEnd != pending.parentIndex(); pathEnd = parents[pathEnd]) {
+                    onPath.remove(nodes.get(pathEnd));
+                }
+                if (!onPath.add(pending.node())) {
+                    throw new IllegalStateException("Uplink cycle at: " + forest.macAddress(pending.node()));
+                }
+                int index = nodes.size();
+                nodes.add(pending.node());
+                if (index == parents.length) {
+                    parents = Arrays.copyOf(parents, index * 2);
+                }
+                parents[index] = pending.parentIndex();
+                pathEnd = index;
+                List<N> children = forest.children(pending.node());
+                if (children != null) {
+                    // pushed in reverse so that the first child is visited first
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        stack.push(new Pending<>(children.get(i), index));
+                    }
+                }
+            }
+            onPath.clear();
+        }
+
+        generator.writeStartObject();
+        generator.writeNumberField("version", version);
+        generator.writeArrayFieldStart("macAddresses");
+        for (N node : nodes) {
+            generator.writeString(forest.macAddress(node));
+        }
+        generator.writeEndArray();
+        generator.writeArrayFieldStart("deviceTypes");
+        for (N node : nodes) {
+            DeviceType type = forest.deviceType(node);
+            if (type != null) {
+                generator.writeString(type.name());
+            } else {
+                generator.writeNull();
+            }
+        }
+        generator.writeEndArray();
+        generator.writeFieldName("parentIndices");
+        generator.writeArray(parents, 0, nodes.size());
+        generator.writeEndObject();
+    }
+
+    /**
+     * Device waiting to be emitted by {@link #writeFlat}, with the index of its already emitted uplink.
+     */
+    private record Pending<N>(N node, int parentIndex) {
+    }
+
+    private static <N> void walk(Forest<N> forest, N root, int maxDepth, int childLimit, String rootChildAfter,
+            Visitor visitor) throws IOException {
+        Deque<Frame<N>> stack = new ArrayDeque<>();
+        Set<N> onPath = new HashSet<>();
+        onPath.add(root);
+        stack.push(enter(forest, root, 0, maxDepth, childLimit, rootChildAfter, visitor));
+        while (!stack.isEmpty()) {
+            Frame<N> frame = stack.peek();
+            if (frame.next < frame.end) {
+                N child = frame.children.get(frame.next++);
+                if (!onPath.add(child)) {
+                    throw new IllegalStateException("Uplink cycle at: " + forest.macAddress(child));
+                }
+                stack.push(enter(forest, child, frame.depth + 1, maxDepth, childLimit, null, visitor));
+                continue;
+            }
+            stack.pop();
+            onPath.remove(frame.node);
+            int count = frame.children.size();
+            visitor.leave(frame.start > 0 || frame.end < count ? count : null,
+                    frame.end < count ? encodeChildCursor(forest, frame) : null);
+        }
+    }
+
+    private static <N> Frame<N> enter(Forest<N> forest, N node, int depth, int maxDepth, int childLimit,
+            String childAfter, Visitor visitor) throws IOException {
+        List<N> children = forest.children(node);
+        if (children == null) {
+            children = List.of();
+        }
+        int count = children.size();
+        int start = childAfter != null ? Math.min(forest.indexAfter(children, childAfter), count) : 0;
+        int end = depth >= maxDepth ? start : (int) Math.min((long) start + childLimit, count);
+        visitor.enter(forest.macAddress(node), end - start);
+        return new Frame<>(node, children, depth, start, end);
+    }
+
+    /**
+     * Encodes the key of the last child visited in the frame as an opaque token, so that the next
+     * page starts after that child even if siblings were added or moved away in between.
+     */
+    private static <N> String encodeChildCursor(Forest<N> forest, Frame<N> frame) {
+        // an empty key stands for the position before the first child
+        String key = frame.end > 0 ? forest.childKey(frame.children.get(frame.end - 1)) : "";
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((CHILD_CURSOR_PREFIX + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decodes a child cursor into the key of the last child already returned.
+     *
+     * @param token the cursor, or null for the first child
+     * @return the key, or null for the first child
+     * @throws IllegalArgumentException if the token is not a child cursor
+     */
+    static String decodeChildCursor(String token) {
+        if (token == null || token.isBlank()) {
+            return null;
+        }
+        String raw;
+        try {
+            raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid child cursor: " + token);
+        }
+        if (!raw.startsWith(CHILD_CURSOR_PREFIX)) {
+            throw new IllegalArgumentException("Invalid child cursor: " + token);
+        }
+        String key = raw.substring(CHILD_CURSOR_PREFIX.length());
+        return key.isEmpty() ? null : key;
+    }
+}
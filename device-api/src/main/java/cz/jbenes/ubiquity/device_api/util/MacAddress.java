@@ -0,0 +1,112 @@
+package cz.jbenes.ubiquity.device_api.util;
+
+/**
+ * Conversions between the textual notations of 48-bit MAC addresses and their numeric value.
+ * <p>
+ * Accepted notations are six hex pairs separated by colons or hyphens ({@code AA:BB:CC:DD:EE:FF},
+ * {@code aa-bb-cc-dd-ee-ff}), three dot-separated groups of four hex digits ({@code aabb.ccdd.eeff})
+ * and twelve bare hex digits, in either case. The canonical notation is lowercase and colon-separated.
+ * </p>
+ */
+public final class MacAddress {
+
+    /**
+     * Returned by {@link #tryParse(String)} for text that is not a MAC address.
+     */
+    public static final long INVALID = -1L;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private MacAddress() {
+    }
+
+    /**
+     * Parses a MAC address in any accepted notation.
+     *
+     * @param text the MAC address
+     * @return the 48-bit value, or {@link #INVALID} if the text is not a MAC address
+     */
+    public static long tryParse(String text) {
+        if (text == null) {
+            return INVALID;
+        }
+        return switch (text.length()) {
+            case 17 -> parseGroups(text, 2, text.charAt(2) == '-' ? '-' : ':');
+            case 14 -> parseGroups(text, 4, '.');
+            case 12 -> parseGroups(text, 12, '\0');
+            default -> INVALID;
+        };
+    }
+
+    /**
+     * Parses a MAC address in any accepted notation.
+     *
+     * @param text the MAC address
+     * @return the 48-bit value
+     * @throws IllegalArgumentException if the text is not a MAC address
+     */
+    public static long parse(String text) {
+        long value = tryParse(text);
+        if (value == INVALID) {
+            throw new IllegalArgumentException("Invalid MAC address: " + text);
+        }
+        return value;
+    }
+
+    /**
+     * Formats a 48-bit value in the canonical notation.
+     *
+     * @param value the value of the MAC address
+     * @return the lowercase colon-separated MAC address
+     */
+    public static String format(long value) {
+        char[] chars = new char[17];
+        for (int i = 0, shift = 44; i < chars.length; i++) {
+            if (i % 3 == 2) {
+                chars[i] = ':';
+                continue;
+            }
+            chars[i] = HEX_DIGITS[(int) (value >>> shift) & 0xf];
+            shift -= 4;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Brings a device identifier into its canonical notation if it is a MAC address.
+     * <p>
+     * Other identifiers, which older releases accepted, are returned unchanged so that devices
+     * registered under them stay reachable.
+     * </p>
+     *
+     * @param text the device identifier
+     * @return the canonical MAC address, or the identifier itself if it is not a MAC address
+     */
+    public static String canonicalize(String text) {
+        long value = tryParse(text);
+        return value != INVALID ? format(value) : text;
+    }
+
+    /**
+     * Parses hex digit groups of the given width, separated by the given separator.
+     */
+    private static long parseGroups(String text, int groupWidth, char separator) {
+        long value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (i % (groupWidth + 1) == groupWidth) {
+                if (c != separator) {
+                    return INVALID;
+                }
+                continue;
+            }
+            // Character.digit also accepts non-ASCII digits
+            int digit = c < 128 ? Character.digit(c, 16) : -1;
+            if (digit < 0) {
+                return INVALID;
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+}
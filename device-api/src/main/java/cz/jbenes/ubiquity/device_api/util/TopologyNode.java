@@ -3,20 +3,94 @@ package cz.jbenes.ubiquity.device_api.util;
 import java.util.ArrayList;
 import java.util.List;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
 
 @Data
 @NoArgsConstructor
 public class TopologyNode {
     private String macAddress;
-    private List<TopologyNode> children = new ArrayList<>();
+
+    /**
+     * Child nodes. Leaves share an immutable empty list, trees built from the topology
+     * hold their children in fixed-size array-backed lists.
+     */
+    private List<TopologyNode> children = List.of();
+
+    /**
+     * Total number of children, present only when {@link #children} is truncated.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer childCount;
+
+    /**
+     * Continuation token for the remaining children, present only when more children follow.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String childCursor;
+
+    /**
+     * Set once the node is shared between callers, after which it rejects all changes. Only
+     * {@link #freeze()} sets it, neither callers nor deserialization can clear it.
+     */
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private boolean frozen;
 
     public TopologyNode(String macAddress) {
         this.macAddress = macAddress;
     }
 
+    public void setMacAddress(String macAddress) {
+        checkNotFrozen();
+        this.macAddress = macAddress;
+    }
+
+    public void setChildren(List<TopologyNode> children) {
+        checkNotFrozen();
+        this.children = children;
+    }
+
+    public void setChildCount(Integer childCount) {
+        checkNotFrozen();
+        this.childCount = childCount;
+    }
+
+    public void setChildCursor(String childCursor) {
+        checkNotFrozen();
+        this.childCursor = childCursor;
+    }
+
     public void addChild(TopologyNode child) {
-        this.children.add(child);
+        checkNotFrozen();
+        if (!(children instanceof ArrayList)) {
+            children = new ArrayList<>(children);
+        }
+        children.add(child);
+    }
+
+    /**
+     * Makes this node reject further changes. The children list must already be unmodifiable,
+     * and the children are frozen on their own.
+     */
+    public void freeze() {
+        frozen = true;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Topology node is shared and cannot be modified: " + macAddress);
+        }
     }
 }
@@ -0,0 +1,19 @@
+package cz.jbenes.ubiquity.device_api.util;
+
+import java.util.List;
+
+/**
+ * Full topology forest as of a given topology version.
+ * <p>
+ * Snapshots are shared between requests, so their nodes are frozen and their lists unmodifiable.
+ * </p>
+ *
+ * @param version the topology version the forest was built from
+ * @param roots the root nodes with their subtrees
+ */
+public record TopologySnapshot(long version, List<TopologyNode> roots) {
+
+    public TopologySnapshot {
+        roots = List.copyOf(roots);
+    }
+}
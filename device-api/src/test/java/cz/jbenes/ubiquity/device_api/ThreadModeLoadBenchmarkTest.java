@@ -0,0 +1,164 @@
+package cz.jbenes.ubiquity.device_api;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.service.DeviceService;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.boot.web.embedded.tomcat.TomcatWebServer;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares throughput and latency of device lookups served by platform and by virtual threads
+ * under many concurrent connections.
+ * <p>
+ * Each mode starts the whole application on its own in-memory database with the lookup cache
+ * disabled, so that every request blocks on JDBC. Every client keeps one request in flight at a
+ * time. Client and server share the process, so the open file limit has to exceed twice the
+ * number of connections.
+ * </p>
+ * <p>
+ * Excluded from the default build, run with {@code mvn test -Pbenchmark}; the load is set with
+ * {@code -Dload.connections} (default 10000) and {@code -Dload.requests} per connection (default 20).
+ * </p>
+ */
+@Tag("benchmark")
+class ThreadModeLoadBenchmarkTest {
+
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 10_000);
+    private static final int REQUESTS_PER_CONNECTION = Integer.getInteger("load.requests", 20);
+    private static final int DEVICES = 1000;
+    private static final int WARMUP_REQUESTS = 5000;
+
+    @Test
+    void compareThreadModes() throws Exception {
+        List<Result> results = List.of(run(false), run(true));
+
+        System.out.printf("%d connections, %d requests each%n", CONNECTIONS, REQUESTS_PER_CONNECTION);
+        System.out.printf("%-9s %12s %10s %10s %10s %8s%n", "threads", "requests/s", "p50 ms", "p99 ms", "max ms",
+                "errors");
+        for (Result result : results) {
+            System.out.printf("%-9s %12.0f %10.1f %10.1f %10.1f %8d%n", result.mode(), result.throughput(),
+                    result.percentile(0.50), result.percentile(0.99), result.percentile(1.0), result.errors());
+        }
+        for (Result result : results) {
+            assertThat(result.errors()).as("failed requests with %s threads", result.mode()).isZero();
+        }
+    }
+
+    private Result run(boolean virtualThreads) throws Exception {
+        String mode = virtualThreads ? "virtual" : "platform";
+        // command line arguments, as default properties would not override application.properties
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(DeviceApiApplication.class)
+                .run(
+                        "--server.port=0",
+                        "--server.tomcat.max-connections=" + (CONNECTIONS + 1000),
+                        "--server.tomcat.accept-count=" + CONNECTIONS,
+                        "--spring.threads.virtual.enabled=" + virtualThreads,
+                        "--spring.datasource.url=jdbc:h2:mem:load-" + mode + ";DB_CLOSE_DELAY=-1",
+                        "--device-api.device-cache.max-entries=0",
+                        "--spring.main.banner-mode=off",
+                        "--logging.level.root=warn")) {
+            List<DeviceRequestDto> devices = new ArrayList<>();
+            devices.add(new DeviceRequestDto(DeviceType.GATEWAY, mac(0), null));
+            for (int i = 1; i < DEVICES; i++) {
+                devices.add(new DeviceRequestDto(DeviceType.SWITCH, mac(i), mac(0)));
+            }
+            context.getBean(DeviceService.class).registerDevices(devices);
+            TomcatWebServer webServer = (TomcatWebServer) ((WebServerApplicationContext) context).getWebServer();
+            assertThat(webServer.getTomcat().getConnector().getProtocolHandler().getExecutor() instanceof VirtualThreadExecutor)
+                    .as("virtual thread executor").isEqualTo(virtualThreads);
+            int port = webServer.getPort();
+
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+                    HttpClient client = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_1_1)
+                            .executor(executor)
+                            .build()) {
+                int warmupConnections = Math.min(CONNECTIONS, 100);
+                load(mode, client, port, warmupConnections, WARMUP_REQUESTS / warmupConnections);
+                return load(mode, client, port, CONNECTIONS, REQUESTS_PER_CONNECTION);
+            }
+        }
+    }
+
+    /**
+     * Sends requests over the given number of concurrent connections, each waiting for its
+     * response before sending the next request.
+     */
+    private static Result load(String mode, HttpClient client, int port, int connections, int requestsPerConnection)
+            throws InterruptedException {
+        long[] latencies = new long[connections * requestsPerConnection];
+        CountDownLatch start = new CountDownLatch(1);
+        long begin;
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < connections; c++) {
+                int connection = c;
+                clients.submit(() -> {
+                    start.await();
+                    for (int r = 0; r < requestsPerConnection; r++) {
+                        int i = connection * requestsPerConnection + r;
+                        HttpRequest request = HttpRequest.newBuilder(
+                                URI.create("http://localhost:" + port + "/devices/" + mac(i % DEVICES)))
+                                .timeout(Duration.ofMinutes(2))
+                                .build();
+                        long sent = System.nanoTime();
+                        try {
+                            HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                            latencies[i] = response.statusCode() == 200 ? System.nanoTime() - sent : -1;
+                        } catch (Exception e) {
+                            latencies[i] = -1;
+                        }
+                    }
+                    return null;
+                });
+            }
+            begin = System.nanoTime();
+            start.countDown();
+        }
+        return new Result(mode, latencies, System.nanoTime() - begin);
+    }
+
+    private static String mac(int i) {
+        return String.format("0c:00:00:00:%02x:%02x", i >> 8, i & 0xff);
+    }
+
+    /**
+     * Request latencies in nanoseconds, negative for failed requests, and the elapsed time of the run.
+     */
+    private record Result(String mode, long[] latencies, long elapsedNanos) {
+
+        long errors() {
+            return Arrays.stream(latencies).filter(l -> l < 0).count();
+        }
+
+        double throughput() {
+            return latencies.length / (elapsedNanos / 1e9);
+        }
+
+        double percentile(double p) {
+            long[] sorted = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+            if (sorted.length == 0) {
+                return Double.NaN;
+            }
+            return sorted[(int) Math.ceil(p * sorted.length) - 1] / 1e6;
+        }
+    }
+}
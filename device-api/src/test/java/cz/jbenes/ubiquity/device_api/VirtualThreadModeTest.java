@@ -0,0 +1,54 @@
+package cz.jbenes.ubiquity.device_api;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import org.apache.tomcat.util.threads.VirtualThreadExecutor;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.embedded.tomcat.TomcatWebServer;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Registration and lookup served by virtual threads, with the write-behind pipeline enabled.
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.threads.virtual.enabled=true",
+        "device-api.registration.async.enabled=true" })
+class VirtualThreadModeTest {
+
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Autowired
+    private ServletWebServerApplicationContext context;
+
+    @Test
+    void tomcat_shouldRunRequestsOnVirtualThreads() {
+        TomcatWebServer webServer = (TomcatWebServer) context.getWebServer();
+
+        assertThat(webServer.getTomcat().getConnector().getProtocolHandler().getExecutor())
+                .isInstanceOf(VirtualThreadExecutor.class);
+    }
+
+    @Test
+    void registerDevice_shouldBeCommittedThroughPipeline() {
+        DeviceRequestDto request = new DeviceRequestDto(DeviceType.GATEWAY, "0A-00-00-00-00-01", null);
+
+        ResponseEntity<DeviceResponseDto> registered = restTemplate.exchange("/devices", HttpMethod.PUT,
+                new HttpEntity<>(request), DeviceResponseDto.class);
+        ResponseEntity<DeviceResponseDto> found = restTemplate.getForEntity("/devices/0a:00:00:00:00:01",
+                DeviceResponseDto.class);
+
+        assertThat(registered.getStatusCode()).isEqualTo(HttpStatus.CREATED);
+        assertThat(found.getBody()).isEqualTo(new DeviceResponseDto("0a:00:00:00:00:01", DeviceType.GATEWAY));
+    }
+}
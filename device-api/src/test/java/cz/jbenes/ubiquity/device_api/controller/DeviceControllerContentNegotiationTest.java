@@ -0,0 +1,101 @@
+package cz.jbenes.ubiquity.device_api.controller;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Binary encodings negotiated through the whole MVC stack.
+ */
+@SpringBootTest
+@AutoConfigureMockMvc
+class DeviceControllerContentNegotiationTest {
+
+    private static final MediaType SMILE = MediaType.parseMediaType(DeviceController.SMILE_VALUE);
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    private final CBORMapper cborMapper = new CBORMapper();
+    private final SmileMapper smileMapper = new SmileMapper();
+
+    @Test
+    void registerDevice_shouldAcceptCborBodyAndAnswerInCbor() throws Exception {
+        byte[] body = cborMapper.writeValueAsBytes(new DeviceRequestDto(DeviceType.GATEWAY, "cb:00:00:00:00:01", null));
+
+        byte[] response = mockMvc.perform(put("/devices").contentType(MediaType.APPLICATION_CBOR).content(body)
+                        .accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isCreated())
+                .andExpect(content().contentType(MediaType.APPLICATION_CBOR))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        assertThat(cborMapper.readValue(response, DeviceResponseDto.class))
+                .isEqualTo(new DeviceResponseDto("cb:00:00:00:00:01", DeviceType.GATEWAY));
+        mockMvc.perform(put("/devices").contentType(MediaType.APPLICATION_CBOR).content(body))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    void registerDevice_shouldAnswerAcceptedInCborWhenAsyncResponseIsPreferred() throws Exception {
+        byte[] body = cborMapper.writeValueAsBytes(new DeviceRequestDto(DeviceType.GATEWAY, "cb:00:00:00:00:02", null));
+
+        mockMvc.perform(put("/devices").contentType(MediaType.APPLICATION_CBOR).content(body)
+                        .accept(MediaType.APPLICATION_CBOR).header("Prefer", "respond-async, wait=5"))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string("Preference-Applied", "respond-async"))
+                .andExpect(content().contentType(MediaType.APPLICATION_CBOR));
+    }
+
+    @Test
+    void getAllDevices_shouldAnswerInSmile() throws Exception {
+        byte[] body = smileMapper.writeValueAsBytes(new DeviceRequestDto(DeviceType.SWITCH, "sm:00:00:00:00:01", null));
+        mockMvc.perform(put("/devices").contentType(SMILE).content(body)).andExpect(status().isCreated());
+
+        byte[] response = mockMvc.perform(get("/devices").accept(SMILE))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(SMILE))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        assertThat(smileMapper.readValue(response, new TypeReference<List<DeviceResponseDto>>() { }))
+                .contains(new DeviceResponseDto("sm:00:00:00:00:01", DeviceType.SWITCH));
+    }
+
+    @Test
+    void getTopologyFrom_shouldAnswerInCbor() throws Exception {
+        mockMvc.perform(put("/devices").contentType(MediaType.APPLICATION_CBOR)
+                        .content(cborMapper.writeValueAsBytes(new DeviceRequestDto(DeviceType.GATEWAY, "cb:00:00:00:01:00", null))))
+                .andExpect(status().isCreated());
+        mockMvc.perform(put("/devices").contentType(MediaType.APPLICATION_CBOR)
+                        .content(cborMapper.writeValueAsBytes(new DeviceRequestDto(DeviceType.SWITCH, "cb:00:00:00:01:01", "cb:00:00:00:01:00"))))
+                .andExpect(status().isCreated());
+
+        byte[] response = mockMvc.perform(get("/devices/topology/cb:00:00:00:01:00").accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType(MediaType.APPLICATION_CBOR))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        TopologyNode root = cborMapper.readValue(response, TopologyNode.class);
+        assertThat(root.getMacAddress()).isEqualTo("cb:00:00:00:01:00");
+        assertThat(root.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("cb:00:00:00:01:01");
+    }
+}
@@ -1,20 +1,51 @@
 package cz.jbenes.ubiquity.device_api.controller;
 
+import cz.jbenes.ubiquity.device_api.dto.DeviceLookupCacheStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePageDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePathDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.RegistrationStatusDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangesDto;
 import cz.jbenes.ubiquity.device_api.service.DeviceService;
+import cz.jbenes.ubiquity.device_api.service.RegistrationPipeline;
 import cz.jbenes.ubiquity.device_api.util.TopologyNode;
 import jakarta.persistence.EntityNotFoundException;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyEncoding;
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyEventBroadcaster;
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyResponseCache;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatchers;
+import org.mockito.stubbing.Answer;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -22,12 +53,17 @@ import static org.mockito.Mockito.*;
 class DeviceControllerTest {
 
     private DeviceService deviceService;
+    private ObjectMapper objectMapper;
+    private TopologyEventBroadcaster topologyEventBroadcaster;
     private DeviceController deviceController;
 
     @BeforeEach
     void setUp() {
         deviceService = mock(DeviceService.class);
-        deviceController = new DeviceController(deviceService);
+        objectMapper = new ObjectMapper();
+        topologyEventBroadcaster = mock(TopologyEventBroadcaster.class);
+        deviceController = new DeviceController(deviceService, objectMapper, new TopologyResponseCache(objectMapper, 16),
+                topologyEventBroadcaster, new RegistrationPipeline(deviceService, false, 1, 1, 0, 1, 16, false));
     }
 
     @Test
@@ -36,13 +72,78 @@ class DeviceControllerTest {
         DeviceResponseDto responseDto = new DeviceResponseDto();
         when(deviceService.registerDevice(ArgumentMatchers.any(DeviceRequestDto.class))).thenReturn(responseDto);
 
-        ResponseEntity<DeviceResponseDto> response = deviceController.registerDevice(requestDto);
+        ResponseEntity<?> response = deviceController.registerDevice(requestDto, new HttpHeaders());
 
         assertEquals(responseDto, response.getBody());
         assertEquals(org.springframework.http.HttpStatus.OK, response.getStatusCode());
         verify(deviceService).registerDevice(requestDto);
     }
 
+    @Test
+    void registerDevice_shouldAnswerCreatedForNewDevice() {
+        DeviceRequestDto requestDto = new DeviceRequestDto(DeviceType.GATEWAY, "aa:bb:cc:00:00:01", null);
+        DeviceResponseDto responseDto = new DeviceResponseDto("aa:bb:cc:00:00:01", DeviceType.GATEWAY, true);
+        when(deviceService.registerDevice(requestDto)).thenReturn(responseDto);
+
+        ResponseEntity<?> response = deviceController.registerDevice(requestDto, new HttpHeaders());
+
+        assertEquals(HttpStatus.CREATED, response.getStatusCode());
+        assertEquals(responseDto, response.getBody());
+    }
+
+    @Test
+    void registerDevice_shouldAnswerAcceptedWithStatusLocationWhenAsyncResponseIsPreferred() {
+        DeviceRequestDto requestDto = new DeviceRequestDto(DeviceType.GATEWAY, "aa:bb:cc:00:00:01", null);
+        DeviceResponseDto responseDto = new DeviceResponseDto("aa:bb:cc:00:00:01", DeviceType.GATEWAY);
+        when(deviceService.registerDevice(requestDto)).thenReturn(responseDto);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Prefer", "Respond-Async, wait=5");
+
+        ResponseEntity<?> response = deviceController.registerDevice(requestDto, headers);
+
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals("respond-async", response.getHeaders().getFirst("Preference-Applied"));
+        RegistrationStatusDto status = (RegistrationStatusDto) Objects.requireNonNull(response.getBody());
+        assertEquals("/devices/registrations/" + status.getToken(),
+                Objects.requireNonNull(response.getHeaders().getLocation()).toString());
+        assertEquals(status, deviceController.getRegistrationStatus(status.getToken()).getBody());
+        assertEquals(RegistrationStatusDto.State.COMPLETED, status.getState());
+        assertEquals(responseDto, status.getDevice());
+    }
+
+    @Test
+    void registerDevice_shouldWaitForRegistrationUnlessAsyncResponseIsPreferred() {
+        DeviceRequestDto requestDto = new DeviceRequestDto(DeviceType.GATEWAY, "aa:bb:cc:00:00:01", null);
+        DeviceResponseDto responseDto = new DeviceResponseDto("aa:bb:cc:00:00:01", DeviceType.GATEWAY);
+        when(deviceService.registerDevice(requestDto)).thenReturn(responseDto);
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Prefer", "return=minimal; foo=\"respond-async\"");
+        headers.add("Prefer", "respond-async-later");
+
+        ResponseEntity<?> response = deviceController.registerDevice(requestDto, headers);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(responseDto, response.getBody());
+    }
+
+    @Test
+    void getRegistrationStatus_shouldThrowWhenTokenIsUnknown() {
+        assertThrows(EntityNotFoundException.class, () -> deviceController.getRegistrationStatus("unknown"));
+    }
+
+    @Test
+    void registerDevices_shouldRegisterAllDevices() {
+        List<DeviceRequestDto> requests = List.of(new DeviceRequestDto(), new DeviceRequestDto());
+        List<DeviceResponseDto> responses = List.of(new DeviceResponseDto(), new DeviceResponseDto());
+        when(deviceService.registerDevices(requests)).thenReturn(responses);
+
+        ResponseEntity<List<DeviceResponseDto>> response = deviceController.registerDevices(requests);
+
+        assertEquals(responses, response.getBody());
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(deviceService).registerDevices(requests);
+    }
+
     @Test
     void getAllDevices_shouldReturnListOfDevices() {
         DeviceResponseDto device1 = new DeviceResponseDto();
@@ -69,6 +170,38 @@ class DeviceControllerTest {
         verify(deviceService).getAllDevicesSorted();
     }
 
+    @Test
+    void getDevicesPage_shouldReturnPage() {
+        DevicePageDto page = new DevicePageDto(List.of(new DeviceResponseDto()), "cursor");
+        when(deviceService.getDevicesPage(1, null)).thenReturn(page);
+
+        ResponseEntity<DevicePageDto> response = deviceController.getDevicesPage(1, null);
+
+        assertEquals(page, response.getBody());
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(deviceService).getDevicesPage(1, null);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void streamAllDevices_shouldWriteOneJsonObjectPerLine() throws Exception {
+        doAnswer(invocation -> {
+            Consumer<DeviceResponseDto> action = invocation.getArgument(0);
+            action.accept(new DeviceResponseDto("gw", DeviceType.GATEWAY));
+            action.accept(new DeviceResponseDto("ap", DeviceType.ACCESS_POINT));
+            return null;
+        }).when(deviceService).forEachDeviceSorted(ArgumentMatchers.any(Consumer.class));
+
+        ResponseEntity<StreamingResponseBody> response = deviceController.streamAllDevices();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Objects.requireNonNull(response.getBody()).writeTo(out);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(MediaType.APPLICATION_NDJSON, response.getHeaders().getContentType());
+        assertEquals("{\"macAddress\":\"gw\",\"deviceType\":\"GATEWAY\"}\n"
+                + "{\"macAddress\":\"ap\",\"deviceType\":\"ACCESS_POINT\"}\n", out.toString(StandardCharsets.UTF_8));
+    }
+
     @Test
     void getDeviceByMac_shouldReturnDevice() {
         String mac = "AA:BB:CC:DD:EE:FF";
@@ -92,51 +225,402 @@ class DeviceControllerTest {
     }
 
     @Test
-    void getFullTopology_shouldReturnTopologyList() {
-        TopologyNode node1 = new TopologyNode();
-        TopologyNode node2 = new TopologyNode();
+    void getPath_shouldReturnPathBetweenDevices() {
+        DevicePathDto path = new DevicePathDto("gw", List.of("ap1", "gw", "ap2"));
+        when(deviceService.getPath("ap1", "ap2")).thenReturn(path);
+
+        ResponseEntity<DevicePathDto> response = deviceController.getPath("ap1", "ap2");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(path, response.getBody());
+    }
+
+    @Test
+    void getDeviceStats_shouldReturnDescendantCounts() {
+        DeviceStatsDto stats = new DeviceStatsDto("gw", 1, Map.of(DeviceType.SWITCH, 1));
+        when(deviceService.getDeviceStats("gw")).thenReturn(stats);
+
+        ResponseEntity<DeviceStatsDto> response = deviceController.getDeviceStats("gw");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(stats, response.getBody());
+    }
+
+    @Test
+    void getLookupCacheStats_shouldReturnCounters() {
+        DeviceLookupCacheStatsDto stats = new DeviceLookupCacheStatsDto(5, 2, 3, 1, 0, 4);
+        when(deviceService.getLookupCacheStats()).thenReturn(stats);
+
+        ResponseEntity<DeviceLookupCacheStatsDto> response = deviceController.getLookupCacheStats();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(stats, response.getBody());
+    }
+
+    @Test
+    void isUnder_shouldReturnServiceAnswer() {
+        when(deviceService.isUnder("ap", "gw")).thenReturn(true);
+
+        ResponseEntity<Boolean> response = deviceController.isUnder("ap", "gw");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(Boolean.TRUE, response.getBody());
+    }
+
+    @Test
+    void getPathToRoot_shouldReturnUplinkChain() {
+        when(deviceService.getPathToRoot("ap")).thenReturn(List.of("ap", "sw", "gw"));
+
+        ResponseEntity<List<String>> response = deviceController.getPathToRoot("ap");
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals(List.of("ap", "sw", "gw"), response.getBody());
+    }
+
+    @Test
+    void getPathToRoot_shouldThrowWhenDeviceNotFound() {
+        when(deviceService.getPathToRoot("macX")).thenThrow(new EntityNotFoundException("Device not found"));
+
+        assertThrows(EntityNotFoundException.class, () -> deviceController.getPathToRoot("macX"));
+    }
+
+    @Test
+    void getFullTopology_shouldReturnTopologyList() throws Exception {
+        TopologyNode node1 = new TopologyNode("gw");
+        node1.addChild(new TopologyNode("sw"));
+        TopologyNode node2 = new TopologyNode("ap");
         List<TopologyNode> topology = Arrays.asList(node1, node2);
-        when(deviceService.getFullTopology()).thenReturn(topology);
+        when(deviceService.getTopologyVersion()).thenReturn(7L);
+        when(deviceService.writeFullTopology(any())).thenAnswer(writes(topology, 7));
 
-        ResponseEntity<List<TopologyNode>> response = deviceController.getFullTopology();
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, new HttpHeaders());
 
-        assertEquals(topology, response.getBody());
+        assertEquals(topology, readTopology(response.getBody()));
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(deviceService).getFullTopology();
+        assertEquals(MediaType.APPLICATION_JSON, response.getHeaders().getContentType());
+        assertEquals("\"topology-7\"", response.getHeaders().getETag());
+        verify(deviceService).writeFullTopology(any());
     }
 
     @Test
-    void getFullTopology_shouldReturnEmptyListWhenNoTopology() {
-        when(deviceService.getFullTopology()).thenReturn(List.of());
+    void getFullTopology_shouldReturnEmptyListWhenNoTopology() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(1L);
+        when(deviceService.writeFullTopology(any())).thenAnswer(writes(List.of(), 1));
 
-        ResponseEntity<List<TopologyNode>> response = deviceController.getFullTopology();
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, new HttpHeaders());
 
-        List<TopologyNode> body = Objects.requireNonNull(response.getBody());
-        assertTrue(body.isEmpty());
+        assertTrue(readTopology(response.getBody()).isEmpty());
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        verify(deviceService).writeFullTopology(any());
+    }
+
+    @Test
+    void getFullTopology_shouldReturnNotModifiedWhenETagMatchesVersion() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(7L);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch("\"topology-7\"");
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, headers);
+
+        assertEquals(HttpStatus.NOT_MODIFIED, response.getStatusCode());
+        assertEquals("\"topology-7\"", response.getHeaders().getETag());
+        assertNull(response.getBody());
+        verify(deviceService, never()).writeFullTopology(any());
+    }
+
+    @Test
+    void getFullTopology_shouldReturnTopologyWhenETagIsStale() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(8L);
+        when(deviceService.writeFullTopology(any())).thenAnswer(writes(List.of(), 8));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch("\"topology-7\"");
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, headers);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        assertEquals("\"topology-8\"", response.getHeaders().getETag());
+    }
+
+    @Test
+    void getFullTopology_shouldServeCachedBytesWhileVersionIsUnchanged() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(3L);
+        when(deviceService.writeFullTopology(any())).thenAnswer(writes(List.of(new TopologyNode("gw")), 3));
+
+        byte[] first = deviceController.getFullTopology(null, new HttpHeaders()).getBody();
+        byte[] second = deviceController.getFullTopology(null, new HttpHeaders()).getBody();
+
+        assertSame(first, second);
+        verify(deviceService, times(1)).writeFullTopology(any());
+    }
+
+    @Test
+    void getFullTopology_shouldReturnGzipWhenAccepted() throws Exception {
+        List<TopologyNode> topology = List.of(new TopologyNode("gw"));
+        when(deviceService.getTopologyVersion()).thenReturn(3L);
+        when(deviceService.writeFullTopology(any())).thenAnswer(writes(topology, 3));
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.8");
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, headers);
+
+        assertEquals("gzip", response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("\"topology-3-gzip\"", response.getHeaders().getETag());
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(response.getBody()))) {
+            assertEquals(topology, readTopology(gzip.readAllBytes()));
+        }
+    }
+
+    @Test
+    void getFullTopology_shouldReturnNotModifiedForEitherContentCodingOfVersion() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(7L);
+        HttpHeaders gzipHeaders = new HttpHeaders();
+        gzipHeaders.set(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        gzipHeaders.setIfNoneMatch("\"topology-7\"");
+        HttpHeaders identityHeaders = new HttpHeaders();
+        identityHeaders.setIfNoneMatch("W/\"topology-7-gzip\"");
+
+        ResponseEntity<byte[]> gzipResponse = deviceController.getFullTopology(null, gzipHeaders);
+        ResponseEntity<byte[]> identityResponse = deviceController.getFullTopology(null, identityHeaders);
+
+        assertEquals(HttpStatus.NOT_MODIFIED, gzipResponse.getStatusCode());
+        assertEquals("\"topology-7-gzip\"", gzipResponse.getHeaders().getETag());
+        assertEquals(HttpStatus.NOT_MODIFIED, identityResponse.getStatusCode());
+        assertEquals("\"topology-7\"", identityResponse.getHeaders().getETag());
+        verify(deviceService, never()).writeFullTopology(any());
+    }
+
+    @Test
+    void getFullTopology_shouldNotReturnGzipWhenRefused() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(3L);
+        when(deviceService.writeFullTopology(any())).thenAnswer(writes(List.of(), 3));
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0");
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, headers);
+
+        assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+    }
+
+    @Test
+    void getFullTopology_shouldReturnFlatFormatWhenRequested() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(4L);
+        when(deviceService.writeFlatTopology(any())).thenAnswer(writes(Map.of("macAddresses", List.of("gw")), 4));
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology("flat", new HttpHeaders());
+
+        assertEquals(MediaType.APPLICATION_JSON, response.getHeaders().getContentType());
+        assertEquals("\"topology-4-flat\"", response.getHeaders().getETag());
+        assertEquals("gw", objectMapper.readTree(response.getBody()).get("macAddresses").get(0).asText());
+        verify(deviceService, never()).writeFullTopology(any());
+    }
+
+    @Test
+    void getFullTopology_shouldReturnFlatFormatWhenAccepted() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(4L);
+        when(deviceService.writeFlatTopology(any())).thenAnswer(writes(Map.of(), 4));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(List.of(DeviceController.FLAT_TOPOLOGY));
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, headers);
+
+        assertEquals(DeviceController.FLAT_TOPOLOGY, response.getHeaders().getContentType());
+        assertTrue(response.getHeaders().getVary().containsAll(List.of(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING)));
+        verify(deviceService).writeFlatTopology(any());
+        verify(deviceService, never()).writeFullTopology(any());
+    }
+
+    @Test
+    void getFullTopology_shouldNotMatchNestedETagForFlatFormat() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(4L);
+        when(deviceService.writeFlatTopology(any())).thenAnswer(writes(Map.of(), 4));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch("\"topology-4\"");
+
+        assertEquals(HttpStatus.OK, deviceController.getFullTopology("flat", headers).getStatusCode());
+
+        headers.setIfNoneMatch("\"topology-4-flat\"");
+        assertEquals(HttpStatus.NOT_MODIFIED, deviceController.getFullTopology("flat", headers).getStatusCode());
+    }
+
+    @Test
+    void getFullTopology_shouldReturnCborWhenAccepted() throws Exception {
+        List<TopologyNode> topology = List.of(new TopologyNode("gw"));
+        when(deviceService.getTopologyVersion()).thenReturn(4L);
+        when(deviceService.writeFullTopology(any())).thenAnswer(writes(topology, 4));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(List.of(MediaType.APPLICATION_CBOR));
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, headers);
+
+        assertEquals(MediaType.APPLICATION_CBOR, response.getHeaders().getContentType());
+        assertEquals("\"topology-4-cbor\"", response.getHeaders().getETag());
+        assertEquals(topology, new CBORMapper().readValue(response.getBody(), new TypeReference<List<TopologyNode>>() { }));
+    }
+
+    @Test
+    void getFullTopology_shouldPreferEncodingWithHigherQuality() throws Exception {
+        when(deviceService.getTopologyVersion()).thenReturn(4L);
+        when(deviceService.writeFlatTopology(any())).thenAnswer(writes(Map.of("macAddresses", List.of("gw")), 4));
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.ACCEPT, "application/cbor;q=0.5, application/x-jackson-smile");
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology("flat", headers);
+
+        assertEquals(TopologyEncoding.SMILE.getMediaType(), response.getHeaders().getContentType());
+        assertEquals("\"topology-4-flat-smile\"", response.getHeaders().getETag());
+        assertEquals("gw", new SmileMapper().readTree(response.getBody()).get("macAddresses").get(0).asText());
+    }
+
+    @Test
+    void getTopologyFrom_shouldCacheEachEncodingSeparately() throws Exception {
+        String mac = "11:22:33:44:55:66";
+        TopologyNode node = new TopologyNode(mac);
+        when(deviceService.writeTopologyFrom(any(), eq(mac), isNull(), isNull(), isNull())).thenAnswer(writes(node, 1));
+        when(deviceService.getTopologyVersion()).thenReturn(1L);
+        HttpHeaders cbor = new HttpHeaders();
+        cbor.setAccept(List.of(MediaType.APPLICATION_CBOR));
+
+        byte[] json = deviceController.getTopologyFrom(mac, null, null, null, new HttpHeaders()).getBody();
+        ResponseEntity<byte[]> response = deviceController.getTopologyFrom(mac, null, null, null, cbor);
+
+        assertEquals(node, objectMapper.readValue(json, TopologyNode.class));
+        assertEquals(MediaType.APPLICATION_CBOR, response.getHeaders().getContentType());
+        assertEquals(node, new CBORMapper().readValue(response.getBody(), TopologyNode.class));
+        verify(deviceService, times(2)).writeTopologyFrom(any(), eq(mac), isNull(), isNull(), isNull());
+    }
+
+    @Test
+    void getFullTopology_shouldRejectUnknownFormat() {
+        assertThrows(IllegalArgumentException.class, () -> deviceController.getFullTopology("xml", new HttpHeaders()));
+    }
+
+    @Test
+    void getTopologyChanges_shouldReturnChanges() {
+        TopologyChangesDto changes = new TopologyChangesDto(5, false, List.of());
+        when(deviceService.getTopologyChanges(4)).thenReturn(changes);
+
+        ResponseEntity<TopologyChangesDto> response = deviceController.getTopologyChanges(4);
+
+        assertEquals(changes, response.getBody());
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(deviceService).getFullTopology();
     }
 
     @Test
-    void getTopologyFrom_shouldThrowWhenNodeNotFound() {
+    void getTopologyChanges_shouldReturnGoneWhenResyncRequired() {
+        TopologyChangesDto changes = new TopologyChangesDto(5, true, List.of());
+        when(deviceService.getTopologyChanges(1)).thenReturn(changes);
+
+        ResponseEntity<TopologyChangesDto> response = deviceController.getTopologyChanges(1);
+
+        assertEquals(changes, response.getBody());
+        assertEquals(HttpStatus.GONE, response.getStatusCode());
+    }
+
+    @Test
+    void subscribeTopologyEvents_shouldReturnBroadcasterEmitter() {
+        SseEmitter emitter = new SseEmitter();
+        when(topologyEventBroadcaster.subscribe()).thenReturn(emitter);
+
+        assertSame(emitter, deviceController.subscribeTopologyEvents());
+    }
+
+    @Test
+    void getTopologyFrom_shouldThrowWhenNodeNotFound() throws Exception {
         String mac = "FF:FF:FF:FF:FF:FF";
-        when(deviceService.getTopologyFrom(mac)).thenThrow(new EntityNotFoundException("Node not found"));
+        when(deviceService.writeTopologyFrom(any(), eq(mac), isNull(), isNull(), isNull())).thenThrow(new EntityNotFoundException("Node not found"));
 
-        assertThrows(EntityNotFoundException.class, () -> deviceController.getTopologyFrom(mac));
-        verify(deviceService).getTopologyFrom(mac);
+        assertThrows(EntityNotFoundException.class, () -> deviceController.getTopologyFrom(mac, null, null, null, new HttpHeaders()));
+        verify(deviceService).writeTopologyFrom(any(), eq(mac), isNull(), isNull(), isNull());
     }
 
     @Test
-    void getTopologyFrom_shouldReturnNodeWhenFound() {
+    void getTopologyFrom_shouldReturnNodeWhenFound() throws Exception {
         String mac = "11:22:33:44:55:66";
-        TopologyNode node = new TopologyNode();
-        when(deviceService.getTopologyFrom(mac)).thenReturn(node);
+        TopologyNode node = new TopologyNode(mac);
+        when(deviceService.writeTopologyFrom(any(), eq(mac), isNull(), isNull(), isNull())).thenAnswer(writes(node, 0));
 
-        ResponseEntity<TopologyNode> response = deviceController.getTopologyFrom(mac);
+        ResponseEntity<byte[]> response = deviceController.getTopologyFrom(mac, null, null, null, new HttpHeaders());
 
-        assertEquals(node, response.getBody());
+        assertEquals(node, objectMapper.readValue(response.getBody(), TopologyNode.class));
         assertEquals(HttpStatus.OK, response.getStatusCode());
-        verify(deviceService).getTopologyFrom(mac);
+        verify(deviceService).writeTopologyFrom(any(), eq(mac), isNull(), isNull(), isNull());
+    }
+
+    @Test
+    void getTopologyFrom_shouldReloadSubtreeAfterVersionChange() throws Exception {
+        String mac = "11:22:33:44:55:66";
+        when(deviceService.writeTopologyFrom(any(), eq(mac), isNull(), isNull(), isNull())).thenAnswer(writes(new TopologyNode(mac), 1));
+        when(deviceService.getTopologyVersion()).thenReturn(1L, 1L, 2L);
+
+        deviceController.getTopologyFrom(mac, null, null, null, new HttpHeaders());
+        deviceController.getTopologyFrom(mac, null, null, null, new HttpHeaders());
+        deviceController.getTopologyFrom(mac, null, null, null, new HttpHeaders());
+
+        verify(deviceService, times(2)).writeTopologyFrom(any(), eq(mac), isNull(), isNull(), isNull());
+    }
+
+    @Test
+    void getTopologyFrom_shouldPassBoundsAndCacheEachQuerySeparately() throws Exception {
+        String mac = "11:22:33:44:55:66";
+        when(deviceService.writeTopologyFrom(any(), eq(mac), any(), any(), any())).thenAnswer(writes(new TopologyNode(mac), 1));
+        when(deviceService.getTopologyVersion()).thenReturn(1L);
+
+        deviceController.getTopologyFrom(mac, 1, 10, null, new HttpHeaders());
+        deviceController.getTopologyFrom(mac, 1, 10, "MTA", new HttpHeaders());
+        deviceController.getTopologyFrom(mac, 1, 10, "MTA", new HttpHeaders());
+
+        verify(deviceService).writeTopologyFrom(any(), eq(mac), eq(1), eq(10), isNull());
+        verify(deviceService).writeTopologyFrom(any(), eq(mac), eq(1), eq(10), eq("MTA"));
+    }
+
+    @Test
+    void getFullTopology_shouldServeChainDeeperThanDefaultNestingLimit() throws Exception {
+        int depth = 100_000;
+        when(deviceService.getTopologyVersion()).thenReturn(5L);
+        when(deviceService.writeFullTopology(any())).thenAnswer(invocation -> {
+            JsonGenerator generator = invocation.getArgument(0);
+            generator.writeStartArray();
+            for (int i = 0; i < depth; i++) {
+                generator.writeStartObject();
+                generator.writeStringField("macAddress", "mac" + i);
+                generator.writeArrayFieldStart("children");
+            }
+            for (int i = 0; i < depth; i++) {
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            return 5L;
+        });
+
+        ResponseEntity<byte[]> response = deviceController.getFullTopology(null, new HttpHeaders());
+
+        JsonFactory factory = JsonFactory.builder()
+                .streamReadConstraints(StreamReadConstraints.builder().maxNestingDepth(Integer.MAX_VALUE).build())
+                .build();
+        int nodes = 0;
+        try (JsonParser parser = factory.createParser(response.getBody())) {
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                if (token == JsonToken.START_OBJECT) {
+                    nodes++;
+                }
+            }
+        }
+        assertEquals(depth, nodes);
+    }
+
+    /**
+     * Answers a topology write by serializing the given value into the generator.
+     */
+    private Answer<Long> writes(Object value, long version) {
+        return invocation -> {
+            objectMapper.writeValue(invocation.getArgument(0, JsonGenerator.class), value);
+            return version;
+        };
+    }
+
+    private List<TopologyNode> readTopology(byte[] body) throws Exception {
+        return objectMapper.readValue(body, new TypeReference<List<TopologyNode>>() { });
     }
 
-}
\ No newline at end of file
+}
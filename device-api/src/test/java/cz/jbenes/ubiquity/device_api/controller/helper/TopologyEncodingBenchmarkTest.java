@@ -0,0 +1,138 @@
+package cz.jbenes.ubiquity.device_api.controller.helper;
+
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyResponseCache.EncodedTopology;
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyResponseCache.TopologyWriter;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.repository.DeviceTopologyView;
+import cz.jbenes.ubiquity.device_api.service.TopologyIndex;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Compares encode and decode time and size of the topology encodings on a 100k-device topology.
+ * <p>
+ * Excluded from the default build, run with {@code mvn test -Pbenchmark}.
+ * </p>
+ */
+@Tag("benchmark")
+class TopologyEncodingBenchmarkTest {
+
+    private static final int GATEWAYS = 10;
+    private static final int SWITCHES_PER_GATEWAY = 100;
+    private static final int ACCESS_POINTS_PER_SWITCH = 99;
+    private static final int ROUNDS = 10;
+
+    private static final Map<TopologyEncoding, JsonFactory> DECODERS = new EnumMap<>(Map.of(
+            TopologyEncoding.JSON, new JsonFactory(),
+            TopologyEncoding.CBOR, new CBORFactory(),
+            TopologyEncoding.SMILE, new SmileFactory()));
+
+    private static TopologyIndex topologyIndex;
+
+    @BeforeAll
+    static void buildTopology() {
+        List<DeviceTopologyView> devices = new ArrayList<>();
+        for (int g = 0; g < GATEWAYS; g++) {
+            String gateway = mac(g, 0, 0);
+            devices.add(view(gateway, null, DeviceType.GATEWAY));
+            for (int s = 1; s <= SWITCHES_PER_GATEWAY; s++) {
+                String sw = mac(g, s, 0);
+                devices.add(view(sw, gateway, DeviceType.SWITCH));
+                for (int a = 1; a <= ACCESS_POINTS_PER_SWITCH; a++) {
+                    devices.add(view(mac(g, s, a), sw, DeviceType.ACCESS_POINT));
+                }
+            }
+        }
+        topologyIndex = new TopologyIndex(true, 16);
+        topologyIndex.rebuild(devices);
+    }
+
+    @Test
+    void nestedTopology() throws IOException {
+        compare("nested", topologyIndex::writeForest);
+    }
+
+    @Test
+    void flatTopology() throws IOException {
+        compare("flat", topologyIndex::writeFlatForest);
+    }
+
+    private void compare(String format, TopologyWriter writer) throws IOException {
+        Map<TopologyEncoding, Integer> sizes = new EnumMap<>(TopologyEncoding.class);
+        System.out.printf("%s topology of %d devices%n", format, GATEWAYS * (1 + SWITCHES_PER_GATEWAY * (1 + ACCESS_POINTS_PER_SWITCH)));
+        System.out.printf("%-6s %10s %10s %12s %12s%n", "", "bytes", "gzip", "encode ms", "decode ms");
+        for (TopologyEncoding encoding : TopologyEncoding.values()) {
+            EncodedTopology encoded = null;
+            long encodeNanos = Long.MAX_VALUE;
+            long decodeNanos = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                // a fresh cache per round so that every round encodes
+                TopologyResponseCache cache = new TopologyResponseCache(new ObjectMapper(), 1);
+                long start = System.nanoTime();
+                encoded = cache.getFullTopology(0, encoding, writer);
+                encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                long tokens = decode(encoding, encoded.content());
+                decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+                assertThat(tokens).isPositive();
+            }
+            sizes.put(encoding, encoded.content().length);
+            System.out.printf("%-6s %10d %10d %12.1f %12.1f%n", encoding, encoded.content().length,
+                    encoded.gzip().length, encodeNanos / 1e6, decodeNanos / 1e6);
+        }
+        assertThat(sizes.get(TopologyEncoding.CBOR)).isLessThan(sizes.get(TopologyEncoding.JSON));
+        assertThat(sizes.get(TopologyEncoding.SMILE)).isLessThan(sizes.get(TopologyEncoding.JSON));
+    }
+
+    private static long decode(TopologyEncoding encoding, byte[] content) throws IOException {
+        long tokens = 0;
+        try (JsonParser parser = DECODERS.get(encoding).createParser(content)) {
+            while (parser.nextToken() != null) {
+                if (parser.currentToken().isScalarValue()) {
+                    parser.getText();
+                }
+                tokens++;
+            }
+        }
+        return tokens;
+    }
+
+    private static String mac(int gateway, int sw, int accessPoint) {
+        return String.format("02:00:%02x:%02x:%02x:%02x", gateway, sw, accessPoint >> 8, accessPoint & 0xff);
+    }
+
+    private static DeviceTopologyView view(String mac, String uplinkMac, DeviceType type) {
+        return new DeviceTopologyView() {
+            @Override
+            public String getMacAddress() {
+                return mac;
+            }
+
+            @Override
+            public String getUplinkMac() {
+                return uplinkMac;
+            }
+
+            @Override
+            public DeviceType getDeviceType() {
+                return type;
+            }
+        };
+    }
+}
@@ -0,0 +1,136 @@
+package cz.jbenes.ubiquity.device_api.controller.helper;
+
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangeDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import static org.assertj.core.api.Assertions.*;
+
+class TopologyEventBroadcasterTest {
+
+    private Queue<Runnable> pendingTasks;
+    private TopologyEventBroadcaster broadcaster;
+
+    @BeforeEach
+    void setUp() {
+        pendingTasks = new ArrayDeque<>();
+        broadcaster = new TopologyEventBroadcaster(pendingTasks::add, 2, 0L);
+    }
+
+    @Test
+    void onTopologyChange_shouldNotSendOnPublishingThread() {
+        RecordingEmitter emitter = new RecordingEmitter();
+        broadcaster.subscribe(emitter);
+
+        broadcaster.onTopologyChange(change("sw", 1));
+
+        assertThat(emitter.events).isEmpty();
+        runPendingTasks();
+        assertThat(emitter.events).containsExactly("event:change\nid:1\ndata:");
+    }
+
+    @Test
+    void onTopologyChange_shouldScheduleSingleDrainPerSubscriber() {
+        RecordingEmitter emitter = new RecordingEmitter();
+        broadcaster.subscribe(emitter);
+
+        broadcaster.onTopologyChange(change("sw1", 1));
+        broadcaster.onTopologyChange(change("sw2", 2));
+
+        assertThat(pendingTasks).hasSize(1);
+        runPendingTasks();
+        assertThat(emitter.events).containsExactly("event:change\nid:1\ndata:", "event:change\nid:2\ndata:");
+    }
+
+    @Test
+    void onTopologyChange_shouldReplaceOverflowingBufferWithResync() {
+        RecordingEmitter slow = new RecordingEmitter();
+        broadcaster.subscribe(slow);
+
+        broadcaster.onTopologyChange(change("sw1", 1));
+        broadcaster.onTopologyChange(change("sw2", 2));
+        broadcaster.onTopologyChange(change("sw3", 3));
+        runPendingTasks();
+
+        assertThat(slow.events).containsExactly("event:resync\ndata:");
+    }
+
+    @Test
+    void onTopologyChange_shouldDropSubscriberWhenSendFails() {
+        RecordingEmitter broken = new RecordingEmitter();
+        broken.failing = true;
+        broadcaster.subscribe(broken);
+
+        broadcaster.onTopologyChange(change("sw", 1));
+        runPendingTasks();
+
+        assertThat(broadcaster.getSubscriberCount()).isZero();
+    }
+
+    @Test
+    void sendHeartbeats_shouldSendCommentThroughDrain() {
+        RecordingEmitter emitter = new RecordingEmitter();
+        broadcaster.subscribe(emitter);
+
+        broadcaster.sendHeartbeats();
+        broadcaster.onTopologyChange(change("sw", 1));
+
+        assertThat(pendingTasks).hasSize(1);
+        runPendingTasks();
+        assertThat(emitter.events).containsExactly(":heartbeat\n\n", "event:change\nid:1\ndata:");
+    }
+
+    @Test
+    void sendHeartbeats_shouldDropSubscriberWhenSendFails() {
+        RecordingEmitter broken = new RecordingEmitter();
+        broken.failing = true;
+        broadcaster.subscribe(broken);
+
+        broadcaster.sendHeartbeats();
+        runPendingTasks();
+
+        assertThat(broadcaster.getSubscriberCount()).isZero();
+    }
+
+    @Test
+    void shutdown_shouldCompleteSubscriptions() {
+        broadcaster.subscribe(new RecordingEmitter());
+
+        broadcaster.shutdown();
+
+        assertThat(broadcaster.getSubscriberCount()).isZero();
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static TopologyChangeDto change(String mac, long version) {
+        return new TopologyChangeDto(mac, DeviceType.SWITCH, "gw", version);
+    }
+
+    /**
+     * Emitter that records the head of every event instead of writing it to a response.
+     */
+    private static class RecordingEmitter extends SseEmitter {
+        private final List<String> events = new ArrayList<>();
+        private boolean failing;
+
+        @Override
+        public void send(SseEventBuilder builder) throws IOException {
+            if (failing) {
+                throw new IOException("Broken pipe");
+            }
+            events.add(builder.build().iterator().next().getData().toString());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package cz.jbenes.ubiquity.device_api.controller.helper;
+
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyResponseCache.EncodedTopology;
+import cz.jbenes.ubiquity.device_api.controller.helper.TopologyResponseCache.TopologyWriter;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.assertj.core.api.Assertions.*;
+
+class TopologyResponseCacheTest {
+
+    private final TopologyResponseCache cache = new TopologyResponseCache(new ObjectMapper(), 16);
+    private final AtomicInteger writes = new AtomicInteger();
+
+    @Test
+    void getFullTopology_shouldServeCachedVersionWithoutWriting() {
+        cache.getFullTopology(5, TopologyEncoding.JSON, writes(5));
+
+        EncodedTopology cached = cache.getFullTopology(5, TopologyEncoding.JSON, writes(5));
+
+        assertThat(writes).hasValue(1);
+        assertThat(new String(cached.content(), StandardCharsets.UTF_8)).isEqualTo("[5]");
+    }
+
+    @Test
+    void getFullTopology_shouldKeepNewerVersionStoredDuringSlowerOlderEncoding() {
+        // version 5 is encoded and stored while the encoding of version 4 is still running
+        EncodedTopology older = cache.getFullTopology(4, TopologyEncoding.JSON, generator -> {
+            cache.getFullTopology(5, TopologyEncoding.JSON, writes(5));
+            return writes(4).write(generator);
+        });
+
+        EncodedTopology current = cache.getFullTopology(5, TopologyEncoding.JSON, writes(5));
+
+        assertThat(older.version()).isEqualTo(4);
+        assertThat(current.version()).isEqualTo(5);
+        assertThat(writes).hasValue(2);
+    }
+
+    private TopologyWriter writes(long version) {
+        return generator -> {
+            writes.incrementAndGet();
+            generator.writeStartArray();
+            generator.writeNumber(version);
+            generator.writeEndArray();
+            return version;
+        };
+    }
+}
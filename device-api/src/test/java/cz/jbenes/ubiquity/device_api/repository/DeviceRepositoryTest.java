@@ -0,0 +1,253 @@
+package cz.jbenes.ubiquity.device_api.repository;
+
+import cz.jbenes.ubiquity.device_api.model.Device;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.repository.DeviceRepositoryCustom.UpsertResult;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Limit;
+import org.springframework.jdbc.core.JdbcTemplate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import static org.assertj.core.api.Assertions.*;
+
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+class DeviceRepositoryTest {
+
+    private static final int LARGE_TOPOLOGY_SIZE = 10_000;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    private Device save(String mac, DeviceType type, Device uplink) {
+        Device device = new Device();
+        device.setMacAddress(mac);
+        device.setDeviceType(type);
+        device.setUplink(uplink);
+        return deviceRepository.save(device);
+    }
+
+    @Test
+    void findSubtree_shouldReturnRootAndAllDescendants() {
+        Device gw = save("gw", DeviceType.GATEWAY, null);
+        Device sw1 = save("sw1", DeviceType.SWITCH, gw);
+        Device ap1 = save("ap1", DeviceType.ACCESS_POINT, sw1);
+        save("ap2", DeviceType.ACCESS_POINT, ap1);
+        save("sw2", DeviceType.SWITCH, gw);
+        save("other", DeviceType.GATEWAY, null);
+        deviceRepository.flush();
+
+        List<DeviceTopologyView> rows = deviceRepository.findSubtree("sw1");
+
+        assertThat(rows)
+                .extracting(DeviceTopologyView::getMacAddress, DeviceTopologyView::getUplinkMac, DeviceTopologyView::getDeviceType)
+                .containsExactlyInAnyOrder(
+                        tuple("sw1", "gw", DeviceType.SWITCH),
+                        tuple("ap1", "sw1", DeviceType.ACCESS_POINT),
+                        tuple("ap2", "ap1", DeviceType.ACCESS_POINT));
+    }
+
+    @Test
+    void save_shouldStoreMacKeyAndRejectOtherNotationOfSameMac() {
+        save("aa:bb:cc:00:00:01", DeviceType.GATEWAY, null);
+        save("legacy-gw", DeviceType.GATEWAY, null);
+        deviceRepository.flush();
+
+        assertThat(jdbcTemplate.queryForObject("SELECT mac_key FROM device WHERE mac_address = ?", Long.class,
+                "aa:bb:cc:00:00:01")).isEqualTo(0xAABBCC000001L);
+        assertThat(jdbcTemplate.queryForObject("SELECT mac_key FROM device WHERE mac_address = ?", Long.class,
+                "legacy-gw")).isNull();
+        save("AA:BB:CC:00:00:01", DeviceType.SWITCH, null);
+        assertThatThrownBy(() -> deviceRepository.flush()).isInstanceOf(DataIntegrityViolationException.class);
+    }
+
+    @Test
+    void findByMacKey_shouldFindDeviceInAnyStoredNotation() {
+        save("AA-BB-CC-00-00-01", DeviceType.GATEWAY, null);
+        save("legacy-gw", DeviceType.GATEWAY, null);
+        deviceRepository.flush();
+
+        assertThat(deviceRepository.findByMacKey(0xAABBCC000001L))
+                .map(Device::getMacAddress).contains("AA-BB-CC-00-00-01");
+        assertThat(deviceRepository.findByMacKey(0xAABBCC000002L)).isEmpty();
+    }
+
+    @Test
+    void upsert_shouldCreateThenUpdate() {
+        save("gw", DeviceType.GATEWAY, null);
+        save("gw2", DeviceType.GATEWAY, null);
+
+        assertThat(deviceRepository.upsert("aa:bb:cc:00:00:01", DeviceType.SWITCH, "gw")).isEqualTo(UpsertResult.CREATED);
+        assertThat(deviceRepository.upsert("aa:bb:cc:00:00:01", DeviceType.ACCESS_POINT, "gw2"))
+                .isEqualTo(UpsertResult.UPDATED);
+
+        assertThat(deviceRepository.findAncestors("aa:bb:cc:00:00:01"))
+                .extracting(DeviceTopologyView::getMacAddress, DeviceTopologyView::getUplinkMac, DeviceTopologyView::getDeviceType)
+                .containsExactlyInAnyOrder(
+                        tuple("aa:bb:cc:00:00:01", "gw2", DeviceType.ACCESS_POINT),
+                        tuple("gw2", null, DeviceType.GATEWAY));
+        assertThat(jdbcTemplate.queryForObject("SELECT mac_key FROM device WHERE mac_address = ?", Long.class,
+                "aa:bb:cc:00:00:01")).isEqualTo(0xAABBCC000001L);
+        assertThat(deviceRepository.findSummariesSorted(Limit.of(1)))
+                .extracting(DeviceSummaryView::getMacAddress).containsExactly("gw");
+    }
+
+    @Test
+    void upsert_shouldReportMissingUplinkWithoutWriting() {
+        assertThat(deviceRepository.upsert("ap", DeviceType.ACCESS_POINT, "missing"))
+                .isEqualTo(UpsertResult.UPLINK_NOT_FOUND);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM device", Integer.class)).isZero();
+    }
+
+    @Test
+    void findSubtree_shouldReturnEmptyListIfRootNotFound() {
+        assertThat(deviceRepository.findSubtree("missing")).isEmpty();
+    }
+
+    @Test
+    void findAncestors_shouldReturnDeviceAndItsUplinkChain() {
+        Device gw = save("gw", DeviceType.GATEWAY, null);
+        Device sw1 = save("sw1", DeviceType.SWITCH, gw);
+        save("ap1", DeviceType.ACCESS_POINT, sw1);
+        save("sw2", DeviceType.SWITCH, gw);
+        deviceRepository.flush();
+
+        assertThat(deviceRepository.findAncestors("ap1"))
+                .extracting(DeviceTopologyView::getMacAddress, DeviceTopologyView::getUplinkMac)
+                .containsExactlyInAnyOrder(tuple("ap1", "sw1"), tuple("sw1", "gw"), tuple("gw", null));
+        assertThat(deviceRepository.findAncestors("missing")).isEmpty();
+    }
+
+    @Test
+    void findAllSummaries_shouldUseSingleStatementForLargeTable() {
+        insertLargeTopology();
+        Statistics statistics = statistics();
+
+        List<DeviceSummaryView> summaries = deviceRepository.findAllSummaries();
+
+        assertThat(summaries).hasSize(LARGE_TOPOLOGY_SIZE);
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+    }
+
+    @Test
+    void findAllTopologyViews_shouldUseSingleStatementForLargeTable() {
+        insertLargeTopology();
+        Statistics statistics = statistics();
+
+        List<DeviceTopologyView> views = deviceRepository.findAllTopologyViews();
+
+        assertThat(views).hasSize(LARGE_TOPOLOGY_SIZE);
+        assertThat(views).filteredOn(v -> v.getUplinkMac() == null).hasSize(1);
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+    }
+
+    @Test
+    void findAll_shouldNotFetchUplinksEagerly() {
+        insertLargeTopology();
+        Statistics statistics = statistics();
+
+        List<Device> devices = deviceRepository.findAll();
+
+        assertThat(devices).hasSize(LARGE_TOPOLOGY_SIZE);
+        assertThat(statistics.getPrepareStatementCount()).isEqualTo(1);
+    }
+
+    @Test
+    void insertAll_shouldBatchInsertsAndResolveUplinksWithinBatch() {
+        save("gw", DeviceType.GATEWAY, null);
+        deviceRepository.flush();
+        List<Device> devices = new ArrayList<>();
+        Device previous = new Device();
+        previous.setMacAddress("gw");
+        for (int i = 0; i < LARGE_TOPOLOGY_SIZE; i++) {
+            Device device = new Device();
+            device.setMacAddress("mac" + i);
+            device.setDeviceType(DeviceType.SWITCH);
+            device.setUplink(previous);
+            devices.add(device);
+            previous = device;
+        }
+        Statistics statistics = statistics();
+
+        deviceRepository.insertAll(devices);
+
+        assertThat(statistics.getEntityLoadCount()).isZero();
+        assertThat(statistics.getPrepareStatementCount()).isLessThan(LARGE_TOPOLOGY_SIZE / 100);
+        assertThat(deviceRepository.count()).isEqualTo(LARGE_TOPOLOGY_SIZE + 1);
+        assertThat(deviceRepository.findSubtree("mac9998"))
+                .extracting(DeviceTopologyView::getUplinkMac)
+                .containsExactlyInAnyOrder("mac9997", "mac9998");
+    }
+
+    @Test
+    void streamAllSummariesSorted_shouldOrderByTypeThenMac() {
+        Device gw = save("gw", DeviceType.GATEWAY, null);
+        save("ap2", DeviceType.ACCESS_POINT, gw);
+        save("sw", DeviceType.SWITCH, gw);
+        save("ap1", DeviceType.ACCESS_POINT, gw);
+        deviceRepository.flush();
+
+        try (Stream<DeviceSummaryView> summaries = deviceRepository.streamAllSummariesSorted()) {
+            assertThat(summaries.map(DeviceSummaryView::getMacAddress)).containsExactly("gw", "sw", "ap1", "ap2");
+        }
+    }
+
+    @Test
+    void findSummariesSortedAfter_shouldSeekPastCursorInTypeOrder() {
+        Device gw = save("gw", DeviceType.GATEWAY, null);
+        save("sw1", DeviceType.SWITCH, gw);
+        save("sw2", DeviceType.SWITCH, gw);
+        save("ap1", DeviceType.ACCESS_POINT, gw);
+        deviceRepository.flush();
+
+        assertThat(deviceRepository.findSummariesSorted(Limit.of(2)))
+                .extracting(DeviceSummaryView::getMacAddress)
+                .containsExactly("gw", "sw1");
+        assertThat(deviceRepository.findSummariesSortedAfter(DeviceType.SWITCH.getSortOrder(), "sw1", Limit.of(2)))
+                .extracting(DeviceSummaryView::getMacAddress)
+                .containsExactly("sw2", "ap1");
+        assertThat(deviceRepository.findSummariesSortedAfter(DeviceType.ACCESS_POINT.getSortOrder(), "ap1", Limit.of(2)))
+                .isEmpty();
+    }
+
+    @Test
+    void findExistingMacAddresses_shouldReturnOnlyStoredMacs() {
+        save("gw", DeviceType.GATEWAY, null);
+        deviceRepository.flush();
+
+        assertThat(deviceRepository.findExistingMacAddresses(List.of("gw", "missing"))).containsExactly("gw");
+    }
+
+    /**
+     * Inserts a gateway with switches and access points below it through plain JDBC,
+     * so that nothing is cached in the persistence context.
+     */
+    private void insertLargeTopology() {
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[] {"gw", DeviceType.GATEWAY.name(), DeviceType.GATEWAY.getSortOrder(), null});
+        for (int i = 1; i < LARGE_TOPOLOGY_SIZE; i++) {
+            DeviceType type = i % 100 == 1 ? DeviceType.SWITCH : DeviceType.ACCESS_POINT;
+            String uplink = type == DeviceType.SWITCH ? "gw" : "mac" + (i - (i - 1) % 100);
+            rows.add(new Object[] {"mac" + i, type.name(), type.getSortOrder(), uplink});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO device (mac_address, device_type, type_rank, uplink_mac) VALUES (?, ?, ?, ?)", rows);
+    }
+
+    private Statistics statistics() {
+        Statistics statistics = entityManagerFactory.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        return statistics;
+    }
+}
@@ -0,0 +1,136 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceLookupCacheStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import org.junit.jupiter.api.Test;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import static org.assertj.core.api.Assertions.*;
+
+class DeviceLookupCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger loads = new AtomicInteger();
+
+    private final Function<String, Optional<DeviceResponseDto>> loader = mac -> {
+        loads.incrementAndGet();
+        return mac.startsWith("aa") ? Optional.of(new DeviceResponseDto(mac, DeviceType.SWITCH)) : Optional.empty();
+    };
+
+    @Test
+    void get_shouldCacheFoundAndMissingDevices() {
+        DeviceLookupCache cache = new DeviceLookupCache(10, 1000, 100, now::get);
+
+        assertThat(cache.get("aa:00:00:00:00:01", loader)).contains(new DeviceResponseDto("aa:00:00:00:00:01", DeviceType.SWITCH));
+        assertThat(cache.get("aa:00:00:00:00:01", loader)).contains(new DeviceResponseDto("aa:00:00:00:00:01", DeviceType.SWITCH));
+        assertThat(cache.get("bb:00:00:00:00:01", loader)).isEmpty();
+        assertThat(cache.get("bb:00:00:00:00:01", loader)).isEmpty();
+
+        assertThat(loads).hasValue(2);
+        assertThat(cache.getStats()).isEqualTo(new DeviceLookupCacheStatsDto(1, 1, 2, 0, 0, 2));
+    }
+
+    @Test
+    void get_shouldExpireMissingDevicesBeforeFoundOnes() {
+        DeviceLookupCache cache = new DeviceLookupCache(10, 1000, 100, now::get);
+        cache.get("aa:00:00:00:00:01", loader);
+        cache.get("bb:00:00:00:00:01", loader);
+
+        now.set(TimeUnit.MILLISECONDS.toNanos(100));
+        cache.get("aa:00:00:00:00:01", loader);
+        cache.get("bb:00:00:00:00:01", loader);
+        now.set(TimeUnit.MILLISECONDS.toNanos(1000));
+        cache.get("aa:00:00:00:00:01", loader);
+
+        assertThat(loads).hasValue(4);
+        assertThat(cache.getStats()).returns(2L, DeviceLookupCacheStatsDto::getExpirations)
+                .returns(1L, DeviceLookupCacheStatsDto::getHits);
+    }
+
+    @Test
+    void get_shouldEvictLeastRecentlyUsedBeyondMaxEntries() {
+        // every lookup happens a nanosecond after the previous one
+        DeviceLookupCache cache = new DeviceLookupCache(2, 1000, 100, now::incrementAndGet);
+        cache.get("aa:00:00:00:00:01", loader);
+        cache.get("aa:00:00:00:00:02", loader);
+        cache.get("aa:00:00:00:00:01", loader);
+        cache.get("aa:00:00:00:00:03", loader);
+
+        cache.get("aa:00:00:00:00:01", loader);
+        cache.get("aa:00:00:00:00:02", loader);
+
+        assertThat(loads).hasValue(4);
+        assertThat(cache.getStats()).returns(2L, DeviceLookupCacheStatsDto::getEvictions)
+                .returns(2, DeviceLookupCacheStatsDto::getSize);
+    }
+
+    @Test
+    void invalidate_shouldDropEntry() {
+        DeviceLookupCache cache = new DeviceLookupCache(10, 1000, 100, now::get);
+        cache.get("bb:00:00:00:00:01", loader);
+
+        cache.invalidate("bb:00:00:00:00:01");
+        cache.get("bb:00:00:00:00:01", loader);
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void get_shouldNotStoreLookupOverlappingInvalidation() {
+        DeviceLookupCache cache = new DeviceLookupCache(10, 1000, 100, now::get);
+
+        // the device is registered while its absence is being loaded
+        assertThat(cache.get("bb:00:00:00:00:01", mac -> {
+            cache.invalidate(mac);
+            return loader.apply(mac);
+        })).isEmpty();
+        cache.get("bb:00:00:00:00:01", loader);
+
+        assertThat(loads).hasValue(2);
+        assertThat(cache.getStats().getSize()).isEqualTo(1);
+    }
+
+    @Test
+    void get_shouldStoreLookupOverlappingInvalidationOfAnotherDevice() {
+        DeviceLookupCache cache = new DeviceLookupCache(10, 1000, 100, now::get);
+
+        cache.get("bb:00:00:00:00:01", mac -> {
+            cache.invalidate("bb:00:00:00:00:02");
+            return loader.apply(mac);
+        });
+        cache.get("bb:00:00:00:00:01", loader);
+
+        assertThat(loads).hasValue(1);
+        assertThat(cache.getStats()).returns(1L, DeviceLookupCacheStatsDto::getNegativeHits);
+    }
+
+    @Test
+    void get_shouldNotLeaveLoadingEntryWhenLoaderFails() {
+        DeviceLookupCache cache = new DeviceLookupCache(10, 1000, 100, now::get);
+
+        assertThatThrownBy(() -> cache.get("aa:00:00:00:00:01", mac -> {
+            throw new IllegalStateException("database down");
+        })).isInstanceOf(IllegalStateException.class);
+        cache.get("aa:00:00:00:00:01", loader);
+        cache.get("aa:00:00:00:00:01", loader);
+
+        assertThat(loads).hasValue(1);
+        assertThat(cache.getStats()).returns(1L, DeviceLookupCacheStatsDto::getHits)
+                .returns(1, DeviceLookupCacheStatsDto::getSize);
+    }
+
+    @Test
+    void get_shouldAlwaysLoadWhenDisabled() {
+        DeviceLookupCache cache = new DeviceLookupCache(0, 1000, 100, now::get);
+
+        cache.get("aa:00:00:00:00:01", loader);
+        cache.get("aa:00:00:00:00:01", loader);
+
+        assertThat(loads).hasValue(2);
+        assertThat(cache.getStats()).isEqualTo(new DeviceLookupCacheStatsDto(0, 0, 2, 0, 0, 0));
+    }
+}
@@ -0,0 +1,164 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import cz.jbenes.ubiquity.device_api.repository.DeviceRepository;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Parallel registrations against the real database.
+ */
+@SpringBootTest
+class DeviceServiceConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int SWITCHES = 50;
+
+    @Autowired
+    private DeviceService deviceService;
+
+    @Autowired
+    private DeviceRepository deviceRepository;
+
+    @Autowired
+    private TopologyIndex topologyIndex;
+
+    @Test
+    void registerDevice_shouldUpsertSameDevicesFromParallelRequests() throws Exception {
+        String gateway = "c0:00:00:00:00:00";
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, gateway, null));
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(THREADS)) {
+            for (int t = 0; t < THREADS; t++) {
+                // every thread registers all switches, in different notations and starting at different switches
+                int offset = t;
+                boolean upperCase = t % 2 == 0;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < SWITCHES; i++) {
+                        String mac = String.format("c0-00-00-00-01-%02x", (i + offset) % SWITCHES);
+                        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH,
+                                upperCase ? mac.toUpperCase() : mac, gateway));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+
+        List<String> switches = deviceRepository.findSubtree(gateway).stream()
+                .map(row -> row.getMacAddress())
+                .filter(mac -> !mac.equals(gateway))
+                .toList();
+        assertThat(switches).hasSize(SWITCHES).doesNotHaveDuplicates()
+                .allMatch(mac -> mac.startsWith("c0:00:00:00:01:"));
+        assertThat(topologyIndex.getStats(gateway).getDescendantCount()).isEqualTo(SWITCHES);
+    }
+
+    @Test
+    void registerDevice_shouldLeaveIndexWithStoredUplinksAfterParallelMoves() throws Exception {
+        List<String> gateways = List.of("c0:00:00:00:02:00", "c0:00:00:00:02:01", "c0:00:00:00:02:02");
+        for (String gateway : gateways) {
+            deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, gateway, null));
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(THREADS)) {
+            for (int t = 0; t < THREADS; t++) {
+                // every thread moves all switches, each thread under its own gateway
+                String gateway = gateways.get(t % gateways.size());
+                results.add(executor.submit(() -> {
+                    start.await();
+                    for (int round = 0; round < 5; round++) {
+                        for (int i = 0; i < SWITCHES; i++) {
+                            deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH,
+                                    String.format("c0:00:00:00:03:%02x", i), gateway));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get();
+            }
+        }
+
+        for (int i = 0; i < SWITCHES; i++) {
+            String mac = String.format("c0:00:00:00:03:%02x", i);
+            String storedUplink = deviceRepository.findAncestors(mac).stream()
+                    .filter(row -> row.getMacAddress().equals(mac))
+                    .findFirst().orElseThrow().getUplinkMac();
+            assertThat(topologyIndex.getPathToRoot(mac)).as(mac).containsExactly(mac, storedUplink);
+        }
+        int indexed = 0;
+        for (String gateway : gateways) {
+            indexed += topologyIndex.getStats(gateway).getDescendantCount();
+        }
+        assertThat(indexed).isEqualTo(SWITCHES);
+    }
+
+    @Test
+    void registerDevice_shouldRejectOneOfParallelMovesUnderEachOther() throws Exception {
+        String gateway = "c0:00:00:00:04:00";
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, gateway, null));
+        int pairs = 50;
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        List<Integer> rejected = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            for (int pair = 0; pair < pairs; pair++) {
+                String first = String.format("c0:00:00:00:05:%02x", pair);
+                String second = String.format("c0:00:00:00:06:%02x", pair);
+                deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, first, gateway));
+                deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, second, gateway));
+                // each device moves under the other at the same time
+                List<Future<?>> moves = List.of(
+                        executor.submit(() -> move(barrier, first, second)),
+                        executor.submit(() -> move(barrier, second, first)));
+                for (Future<?> move : moves) {
+                    try {
+                        move.get();
+                    } catch (ExecutionException e) {
+                        assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+                        rejected.add(pair);
+                    }
+                }
+            }
+        }
+
+        assertThat(rejected).hasSize(pairs).doesNotHaveDuplicates();
+        for (int pair = 0; pair < pairs; pair++) {
+            String first = String.format("c0:00:00:00:05:%02x", pair);
+            String second = String.format("c0:00:00:00:06:%02x", pair);
+            for (String mac : List.of(first, second)) {
+                assertThat(deviceRepository.findAncestors(mac)).as(mac)
+                        .anyMatch(row -> row.getMacAddress().equals(gateway));
+                assertThat(topologyIndex.getPathToRoot(mac)).as(mac).endsWith(gateway);
+            }
+        }
+    }
+
+    private Void move(CyclicBarrier barrier, String macAddress, String uplinkMacAddress) throws Exception {
+        barrier.await();
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, macAddress, uplinkMacAddress));
+        return null;
+    }
+}
@@ -1,82 +1,130 @@
 package cz.jbenes.ubiquity.device_api.service;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadConstraints;
+import com.fasterxml.jackson.core.StreamWriteConstraints;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.jbenes.ubiquity.device_api.dto.DeviceLookupCacheStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePageDto;
+import cz.jbenes.ubiquity.device_api.dto.DevicePathDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
 import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceStatsDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangeDto;
+import cz.jbenes.ubiquity.device_api.dto.TopologyChangesDto;
 import cz.jbenes.ubiquity.device_api.model.Device;
 import cz.jbenes.ubiquity.device_api.model.DeviceType;
 import cz.jbenes.ubiquity.device_api.repository.DeviceRepository;
+import cz.jbenes.ubiquity.device_api.repository.DeviceRepositoryCustom.UpsertResult;
+import cz.jbenes.ubiquity.device_api.repository.DeviceSummaryView;
+import cz.jbenes.ubiquity.device_api.repository.DeviceTopologyView;
 import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+import cz.jbenes.ubiquity.device_api.util.TopologySnapshot;
 import jakarta.persistence.EntityNotFoundException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Limit;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
 import java.util.*;
+import java.util.stream.Stream;
 import static org.assertj.core.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
 class DeviceServiceImplTest {
 
+    // deep chains exceed the default nesting limits of Jackson
+    private static final JsonFactory JSON = JsonFactory.builder()
+            .streamReadConstraints(StreamReadConstraints.builder().maxNestingDepth(Integer.MAX_VALUE).build())
+            .streamWriteConstraints(StreamWriteConstraints.builder().maxNestingDepth(Integer.MAX_VALUE).build())
+            .build();
+
     private DeviceRepository deviceRepository;
+    private TopologyIndex topologyIndex;
+    private ApplicationEventPublisher eventPublisher;
+    private DeviceLookupCache deviceLookupCache;
     private DeviceServiceImpl deviceService;
 
     @BeforeEach
     void setUp() {
         deviceRepository = mock(DeviceRepository.class);
-        deviceService = new DeviceServiceImpl(deviceRepository);
+        eventPublisher = mock(ApplicationEventPublisher.class);
+        topologyIndex = new TopologyIndex(true, 3);
+        deviceLookupCache = new DeviceLookupCache(100, 60000, 5000);
+        deviceService = serviceWith(topologyIndex);
+    }
+
+    private DeviceServiceImpl serviceWith(TopologyIndex index) {
+        return new DeviceServiceImpl(deviceRepository, index, eventPublisher, deviceLookupCache, 4, 1);
     }
 
     @Test
     void registerDevice_shouldRegisterNewDeviceWithoutUplink() {
         DeviceRequestDto request = new DeviceRequestDto(DeviceType.GATEWAY, "mac1", null);
-
-        when(deviceRepository.existsById("mac1")).thenReturn(false);
-
-        ArgumentCaptor<Device> deviceCaptor = ArgumentCaptor.forClass(Device.class);
+        when(deviceRepository.upsert("mac1", DeviceType.GATEWAY, null)).thenReturn(UpsertResult.CREATED);
 
         DeviceResponseDto response = deviceService.registerDevice(request);
 
-        verify(deviceRepository).save(deviceCaptor.capture());
-        Device savedDevice = deviceCaptor.getValue();
-
-        assertThat(savedDevice.getMacAddress()).isEqualTo("mac1");
-        assertThat(savedDevice.getDeviceType()).isEqualTo(DeviceType.GATEWAY);
-        assertThat(savedDevice.getUplink()).isNull();
-
+        verify(deviceRepository).upsert("mac1", DeviceType.GATEWAY, null);
+        verify(deviceRepository, never()).save(any());
         assertThat(response.getMacAddress()).isEqualTo("mac1");
         assertThat(response.getDeviceType()).isEqualTo(DeviceType.GATEWAY);
+        assertThat(response.isCreated()).isTrue();
     }
 
     @Test
-    void registerDevice_shouldRegisterNewDeviceWithUplink() {
-        DeviceRequestDto request = new DeviceRequestDto(DeviceType.SWITCH, "mac2", "uplinkMac");
-        Device uplinkDevice = new Device();
-        uplinkDevice.setMacAddress("uplinkMac");
+    void registerDevice_shouldReportUpdateOfStoredDevice() {
+        when(deviceRepository.upsert("mac1", DeviceType.GATEWAY, null)).thenReturn(UpsertResult.UPDATED);
 
-        when(deviceRepository.existsById("mac2")).thenReturn(false);
-        when(deviceRepository.findById("uplinkMac")).thenReturn(Optional.of(uplinkDevice));
+        DeviceResponseDto response = deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "mac1", null));
 
-        ArgumentCaptor<Device> deviceCaptor = ArgumentCaptor.forClass(Device.class);
+        assertThat(response.isCreated()).isFalse();
+    }
 
-        DeviceResponseDto response = deviceService.registerDevice(request);
+    @Test
+    void registerDevice_shouldRegisterNewDeviceWithUplink() {
+        DeviceRequestDto request = new DeviceRequestDto(DeviceType.SWITCH, "mac2", "uplinkMac");
+        when(deviceRepository.upsert("mac2", DeviceType.SWITCH, "uplinkMac")).thenReturn(UpsertResult.CREATED);
 
-        verify(deviceRepository).save(deviceCaptor.capture());
-        Device savedDevice = deviceCaptor.getValue();
+        DeviceResponseDto response = deviceService.registerDevice(request);
 
-        assertThat(savedDevice.getUplink()).isEqualTo(uplinkDevice);
+        // the uplink is validated by the upsert statement itself
+        verify(deviceRepository, never()).findById(any());
         assertThat(response.getMacAddress()).isEqualTo("mac2");
         assertThat(response.getDeviceType()).isEqualTo(DeviceType.SWITCH);
+        assertThat(topologyIndex.getPathToRoot("mac2")).containsExactly("mac2", "uplinkMac");
+    }
+
+    @Test
+    void registerDevice_shouldStoreCanonicalMacAddresses() {
+        DeviceRequestDto request = new DeviceRequestDto(DeviceType.SWITCH, "AA-BB-CC-00-00-02", "AABB.CC00.0001");
+        when(deviceRepository.upsert(any(), any(), any())).thenReturn(UpsertResult.CREATED);
+
+        DeviceResponseDto response = deviceService.registerDevice(request);
+
+        verify(deviceRepository).upsert("aa:bb:cc:00:00:02", DeviceType.SWITCH, "aa:bb:cc:00:00:01");
+        assertThat(response.getMacAddress()).isEqualTo("aa:bb:cc:00:00:02");
+        assertThat(request.getMacAddress()).isEqualTo("AA-BB-CC-00-00-02");
     }
 
     @Test
     void registerDevice_shouldThrowIfUplinkNotFound() {
         DeviceRequestDto request = new DeviceRequestDto(DeviceType.SWITCH, "mac2", "uplinkMac");
-        when(deviceRepository.existsById("mac2")).thenReturn(false);
-        when(deviceRepository.findById("uplinkMac")).thenReturn(Optional.empty());
+        when(deviceRepository.upsert("mac2", DeviceType.SWITCH, "uplinkMac")).thenReturn(UpsertResult.UPLINK_NOT_FOUND);
 
         assertThatThrownBy(() -> deviceService.registerDevice(request))
                 .isInstanceOf(EntityNotFoundException.class)
                 .hasMessageContaining("Uplink device not found");
+        assertThat(topologyIndex.contains("mac2")).isFalse();
     }
 
     @Test
@@ -108,18 +156,7 @@ class DeviceServiceImplTest {
         DeviceRequestDto switchReq = new DeviceRequestDto(DeviceType.SWITCH, "sw", "gw");
         DeviceRequestDto apReq = new DeviceRequestDto(DeviceType.ACCESS_POINT, "ap", "sw");
 
-        when(deviceRepository.existsById("gw")).thenReturn(false);
-        when(deviceRepository.existsById("sw")).thenReturn(false);
-        when(deviceRepository.existsById("ap")).thenReturn(false);
-
-        Device gateway = new Device();
-        gateway.setMacAddress("gw");
-        when(deviceRepository.findById("gw")).thenReturn(Optional.of(gateway));
-
-        Device switchDevice = new Device();
-        switchDevice.setMacAddress("sw");
-        switchDevice.setUplink(gateway);
-        when(deviceRepository.findById("sw")).thenReturn(Optional.of(switchDevice));
+        when(deviceRepository.upsert(any(), any(), any())).thenReturn(UpsertResult.CREATED);
 
         // Register gateway
         deviceService.registerDevice(gatewayReq);
@@ -128,7 +165,175 @@ class DeviceServiceImplTest {
         // Register AP with uplink to switch
         deviceService.registerDevice(apReq);
 
-        verify(deviceRepository, times(3)).save(any(Device.class));
+        verify(deviceRepository, times(3)).upsert(any(), any(), any());
+        assertThat(topologyIndex.getPathToRoot("ap")).containsExactly("ap", "sw", "gw");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void registerDevices_shouldInsertUplinksBeforeChildren() {
+        List<DeviceRequestDto> requests = List.of(
+                new DeviceRequestDto(DeviceType.ACCESS_POINT, "ap", "sw"),
+                new DeviceRequestDto(DeviceType.SWITCH, "sw", "gw"),
+                new DeviceRequestDto(DeviceType.GATEWAY, "gw", null));
+        when(deviceRepository.findExistingMacAddresses(any())).thenReturn(List.of());
+
+        List<DeviceResponseDto> response = deviceService.registerDevices(requests);
+
+        ArgumentCaptor<List<Device>> captor = ArgumentCaptor.forClass(List.class);
+        verify(deviceRepository).insertAll(captor.capture());
+        assertThat(captor.getValue()).extracting(Device::getMacAddress).containsExactly("gw", "sw", "ap");
+        assertThat(captor.getValue().get(2).getUplink()).isSameAs(captor.getValue().get(1));
+        assertThat(response).extracting(DeviceResponseDto::getMacAddress).containsExactly("ap", "sw", "gw");
+        verify(deviceRepository, times(1)).findExistingMacAddresses(any());
+        verify(deviceRepository, never()).findById(any());
+        verify(deviceRepository, never()).save(any());
+
+        TopologyNode gw = deviceService.getTopologyFrom("gw");
+        assertThat(gw.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw");
+        assertThat(gw.getChildren().get(0).getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("ap");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void registerDevices_shouldLinkToStoredUplinkAndUpdateExistingDevices() {
+        Device existingSwitch = new Device();
+        existingSwitch.setMacAddress("sw");
+        existingSwitch.setDeviceType(DeviceType.SWITCH);
+        Device gatewayReference = new Device();
+        gatewayReference.setMacAddress("gw");
+        when(deviceRepository.findExistingMacAddresses(any())).thenReturn(List.of("gw", "sw"));
+        when(deviceRepository.findAllById(List.of("sw"))).thenReturn(List.of(existingSwitch));
+        when(deviceRepository.getReferenceById("gw")).thenReturn(gatewayReference);
+
+        List<DeviceResponseDto> responses = deviceService.registerDevices(List.of(
+                new DeviceRequestDto(DeviceType.SWITCH, "sw", "gw"),
+                new DeviceRequestDto(DeviceType.ACCESS_POINT, "ap", "gw")));
+
+        ArgumentCaptor<List<Device>> captor = ArgumentCaptor.forClass(List.class);
+        verify(deviceRepository).insertAll(captor.capture());
+        assertThat(captor.getValue()).extracting(Device::getMacAddress).containsExactly("ap");
+        assertThat(captor.getValue().get(0).getUplink().getMacAddress()).isEqualTo("gw");
+        assertThat(existingSwitch.getUplink()).isSameAs(gatewayReference);
+        assertThat(responses).extracting(DeviceResponseDto::isCreated).containsExactly(false, true);
+    }
+
+    @Test
+    void registerDevices_shouldThrowIfUplinkNotFound() {
+        when(deviceRepository.findExistingMacAddresses(any())).thenReturn(List.of());
+
+        assertThatThrownBy(() -> deviceService.registerDevices(List.of(
+                new DeviceRequestDto(DeviceType.SWITCH, "sw", "gw"))))
+                .isInstanceOf(EntityNotFoundException.class)
+                .hasMessageContaining("Uplink device not found: gw");
+        verify(deviceRepository, never()).insertAll(any());
+    }
+
+    @Test
+    void registerDevices_shouldThrowOnDuplicateMacAddress() {
+        assertThatThrownBy(() -> deviceService.registerDevices(List.of(
+                new DeviceRequestDto(DeviceType.GATEWAY, "gw", null),
+                new DeviceRequestDto(DeviceType.SWITCH, "gw", null))))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Duplicate MAC address");
+    }
+
+    @Test
+    void registerDevices_shouldThrowOnUplinkCycle() {
+        assertThatThrownBy(() -> deviceService.registerDevices(List.of(
+                new DeviceRequestDto(DeviceType.SWITCH, "a", "b"),
+                new DeviceRequestDto(DeviceType.SWITCH, "b", "a"))))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Uplink cycle");
+    }
+
+    @Test
+    void registerDevice_shouldRejectOwnUplink() {
+        assertThatThrownBy(() -> deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw", "sw")))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("own uplink");
+        verify(deviceRepository, never()).upsert(any(), any(), any());
+    }
+
+    @Test
+    void registerDevice_shouldRejectUplinkBelowDevice() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        assertThatThrownBy(() -> deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw0", "ap01")))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("connected below device sw0");
+        verify(deviceRepository, never()).upsert(any(), any(), any());
+    }
+
+    @Test
+    void registerDevice_shouldRejectUplinkBelowStoredDeviceWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.upsert("sw", DeviceType.SWITCH, "ap")).thenReturn(UpsertResult.UPDATED);
+        when(deviceRepository.findAncestors("ap")).thenReturn(List.of(
+                topologyView("ap", "sw", DeviceType.ACCESS_POINT),
+                topologyView("sw", "gw", DeviceType.SWITCH),
+                topologyView("gw", null, DeviceType.GATEWAY)));
+
+        assertThatThrownBy(() -> deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw", "ap")))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("connected below device sw");
+        verifyNoInteractions(eventPublisher);
+    }
+
+    @Test
+    void registerDevice_shouldNotLookUpAncestorsOfNewDeviceWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.upsert("ap", DeviceType.ACCESS_POINT, "sw")).thenReturn(UpsertResult.CREATED);
+
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.ACCESS_POINT, "ap", "sw"));
+
+        verify(deviceRepository, never()).findAncestors(any());
+    }
+
+    @Test
+    void registerDevices_shouldRejectCycleThroughStoredDevices() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        when(deviceRepository.findExistingMacAddresses(any())).thenReturn(List.of("sw0", "sw1", "ap00", "ap10"));
+
+        // sw0 -> new -> ap10 -> sw1 -> ap00 -> sw0
+        assertThatThrownBy(() -> deviceService.registerDevices(List.of(
+                new DeviceRequestDto(DeviceType.SWITCH, "sw0", "new"),
+                new DeviceRequestDto(DeviceType.SWITCH, "new", "ap10"),
+                new DeviceRequestDto(DeviceType.SWITCH, "sw1", "ap00"))))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Uplink cycle through stored devices");
+        verify(deviceRepository, never()).insertAll(any());
+    }
+
+    @Test
+    void registerDevices_shouldAcceptMovesThatBreakStoredChains() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        when(deviceRepository.findExistingMacAddresses(any())).thenReturn(List.of("gw", "sw0", "ap00"));
+        when(deviceRepository.findAllById(any())).thenReturn(List.of());
+
+        // ap00 leaves sw0 before sw0 moves below it
+        deviceService.registerDevices(List.of(
+                new DeviceRequestDto(DeviceType.SWITCH, "sw0", "ap00"),
+                new DeviceRequestDto(DeviceType.ACCESS_POINT, "ap00", "gw")));
+
+        assertThat(deviceService.getPathToRoot("sw0")).containsExactly("sw0", "ap00", "gw");
+    }
+
+    @Test
+    void getTopologyFrom_shouldFailOnIndexedUplinkCycle() {
+        TopologyIndex index = new TopologyIndex(true, 3);
+        index.put("a", null, DeviceType.SWITCH);
+        index.put("b", "a", DeviceType.SWITCH);
+        // registrations racing past validation
+        index.put("a", "b", DeviceType.SWITCH);
+        deviceService = serviceWith(index);
+
+        assertThatThrownBy(() -> deviceService.getTopologyFrom("a"))
+                .isInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("Uplink cycle at: a");
     }
 
     @Test
@@ -145,7 +350,7 @@ class DeviceServiceImplTest {
         d3.setMacAddress("mac3");
         d3.setDeviceType(DeviceType.ACCESS_POINT);
 
-        when(deviceRepository.findAll()).thenReturn(List.of(d1, d2, d3));
+        stubDevices(List.of(d1, d2, d3));
 
         List<DeviceResponseDto> result = deviceService.getAllDevicesSorted();
 
@@ -155,7 +360,7 @@ class DeviceServiceImplTest {
 
     @Test
     void getAllDevicesSorted_shouldReturnEmptyListIfNoDevices() {
-        when(deviceRepository.findAll()).thenReturn(Collections.emptyList());
+        stubDevices(Collections.emptyList());
         List<DeviceResponseDto> result = deviceService.getAllDevicesSorted();
         assertThat(result).isEmpty();
     }
@@ -174,7 +379,7 @@ class DeviceServiceImplTest {
         d3.setMacAddress("mac3");
         d3.setDeviceType(DeviceType.GATEWAY);
 
-        when(deviceRepository.findAll()).thenReturn(List.of(d1, d2, d3));
+        stubDevices(List.of(d1, d2, d3));
 
         List<DeviceResponseDto> result = deviceService.getAllDevicesSorted();
 
@@ -196,7 +401,7 @@ class DeviceServiceImplTest {
         d3.setMacAddress("mac3");
         d3.setDeviceType(DeviceType.GATEWAY);
 
-        when(deviceRepository.findAll()).thenReturn(List.of(d1, d2, d3));
+        stubDevices(List.of(d1, d2, d3));
 
         List<DeviceResponseDto> result = deviceService.getAllDevicesSorted();
 
@@ -206,6 +411,52 @@ class DeviceServiceImplTest {
                 .containsExactly("mac3", "mac1", "mac2");
     }
 
+    @Test
+    void getDevicesPage_shouldReturnCursorThatSeeksAfterLastDevice() {
+        when(deviceRepository.findSummariesSorted(Limit.of(3))).thenReturn(List.of(
+                summaryView("gw", DeviceType.GATEWAY),
+                summaryView("sw1", DeviceType.SWITCH),
+                summaryView("sw2", DeviceType.SWITCH)));
+        when(deviceRepository.findSummariesSortedAfter(DeviceType.SWITCH.getSortOrder(), "sw1", Limit.of(3))).thenReturn(List.of(
+                summaryView("sw2", DeviceType.SWITCH)));
+
+        DevicePageDto first = deviceService.getDevicesPage(2, null);
+        DevicePageDto second = deviceService.getDevicesPage(2, first.getNextCursor());
+
+        assertThat(first.getDevices()).extracting(DeviceResponseDto::getMacAddress).containsExactly("gw", "sw1");
+        assertThat(first.getNextCursor()).isNotBlank();
+        assertThat(second.getDevices()).extracting(DeviceResponseDto::getMacAddress).containsExactly("sw2");
+        assertThat(second.getNextCursor()).isNull();
+    }
+
+    @Test
+    void getDevicesPage_shouldThrowOnInvalidCursor() {
+        assertThatThrownBy(() -> deviceService.getDevicesPage(10, "not a cursor"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Invalid page cursor");
+    }
+
+    @Test
+    void getDevicesPage_shouldThrowOnInvalidLimit() {
+        assertThatThrownBy(() -> deviceService.getDevicesPage(0, null))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Limit must be between");
+    }
+
+    @Test
+    void forEachDeviceSorted_shouldPassStreamedDevicesAndCloseStream() {
+        List<DeviceResponseDto> received = new ArrayList<>();
+        List<Boolean> closed = new ArrayList<>();
+        when(deviceRepository.streamAllSummariesSorted()).thenReturn(Stream.of(
+                summaryView("gw", DeviceType.GATEWAY),
+                summaryView("ap", DeviceType.ACCESS_POINT)).onClose(() -> closed.add(true)));
+
+        deviceService.forEachDeviceSorted(received::add);
+
+        assertThat(received).extracting(DeviceResponseDto::getMacAddress).containsExactly("gw", "ap");
+        assertThat(closed).containsExactly(true);
+    }
+
     @Test
     void getDeviceByMac_shouldReturnDevice() {
         Device d = new Device();
@@ -229,6 +480,56 @@ class DeviceServiceImplTest {
                 .hasMessageContaining("Device not found");
     }
 
+    @Test
+    void getDeviceByMac_shouldFindDeviceStoredInOtherNotation() {
+        Device d = new Device();
+        d.setMacAddress("AA-BB-CC-00-00-01");
+        d.setDeviceType(DeviceType.SWITCH);
+        when(deviceRepository.findByMacKey(0xAABBCC000001L)).thenReturn(Optional.of(d));
+
+        assertThat(deviceService.getDeviceByMac("aabb.cc00.0001"))
+                .isEqualTo(new DeviceResponseDto("AA-BB-CC-00-00-01", DeviceType.SWITCH));
+        verify(deviceRepository, never()).findById(any());
+    }
+
+    @Test
+    void getDeviceByMac_shouldServeRepeatedLookupsFromCache() {
+        Device d = new Device();
+        d.setMacAddress("aa:bb:cc:00:00:01");
+        d.setDeviceType(DeviceType.SWITCH);
+        when(deviceRepository.findByMacKey(0xAABBCC000001L)).thenReturn(Optional.of(d));
+        when(deviceRepository.findByMacKey(0xAABBCC000002L)).thenReturn(Optional.empty());
+
+        deviceService.getDeviceByMac("aa:bb:cc:00:00:01");
+        DeviceResponseDto cached = deviceService.getDeviceByMac("AA-BB-CC-00-00-01");
+        for (int i = 0; i < 2; i++) {
+            assertThatThrownBy(() -> deviceService.getDeviceByMac("aa:bb:cc:00:00:02"))
+                    .isInstanceOf(EntityNotFoundException.class);
+        }
+
+        assertThat(cached).isEqualTo(new DeviceResponseDto("aa:bb:cc:00:00:01", DeviceType.SWITCH));
+        verify(deviceRepository, times(1)).findByMacKey(0xAABBCC000001L);
+        verify(deviceRepository, times(1)).findByMacKey(0xAABBCC000002L);
+        assertThat(deviceService.getLookupCacheStats())
+                .isEqualTo(new DeviceLookupCacheStatsDto(1, 1, 2, 0, 0, 2));
+    }
+
+    @Test
+    void getDeviceByMac_shouldSeeRegistrationOfUnknownDevice() {
+        when(deviceRepository.findByMacKey(0xAABBCC000002L)).thenReturn(Optional.empty());
+        assertThatThrownBy(() -> deviceService.getDeviceByMac("aa:bb:cc:00:00:02"))
+                .isInstanceOf(EntityNotFoundException.class);
+        Device d = new Device();
+        d.setMacAddress("aa:bb:cc:00:00:02");
+        d.setDeviceType(DeviceType.GATEWAY);
+        when(deviceRepository.findByMacKey(0xAABBCC000002L)).thenReturn(Optional.of(d));
+
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "aa:bb:cc:00:00:02", null));
+
+        assertThat(deviceService.getDeviceByMac("aa:bb:cc:00:00:02").getDeviceType()).isEqualTo(DeviceType.GATEWAY);
+        verify(deviceRepository, times(2)).findByMacKey(0xAABBCC000002L);
+    }
+
     @Test
     void getFullTopology_shouldReturnRootNodesWithChildren() {
         Device gateway = new Device();
@@ -249,7 +550,9 @@ class DeviceServiceImplTest {
         switch2.setMacAddress("sw2");
         switch2.setDeviceType(DeviceType.SWITCH);
 
-        when(deviceRepository.findAll()).thenReturn(List.of(gateway, switch1, ap1, switch2));
+        stubDevices(List.of(gateway, switch1, ap1, switch2));
+
+        deviceService.rebuildTopologyIndex();
 
         List<TopologyNode> roots = deviceService.getFullTopology();
 
@@ -306,7 +609,9 @@ class DeviceServiceImplTest {
         ap3.setDeviceType(DeviceType.ACCESS_POINT);
         ap3.setUplink(switch2);
 
-        when(deviceRepository.findAll()).thenReturn(List.of(gateway1, switch1, ap1, ap2, gateway2, switch2, ap3));
+        stubDevices(List.of(gateway1, switch1, ap1, ap2, gateway2, switch2, ap3));
+
+        deviceService.rebuildTopologyIndex();
 
         List<TopologyNode> roots = deviceService.getFullTopology();
 
@@ -333,7 +638,8 @@ class DeviceServiceImplTest {
 
     @Test
     void getFullTopology_shouldReturnEmptyListIfNoDevices() {
-        when(deviceRepository.findAll()).thenReturn(Collections.emptyList());
+        stubDevices(Collections.emptyList());
+        deviceService.rebuildTopologyIndex();
         List<TopologyNode> roots = deviceService.getFullTopology();
         assertThat(roots).isEmpty();
     }
@@ -352,7 +658,9 @@ class DeviceServiceImplTest {
         // Introduce a circular reference
         d1.setUplink(d2);
 
-        when(deviceRepository.findAll()).thenReturn(List.of(d1, d2));
+        stubDevices(List.of(d1, d2));
+
+        deviceService.rebuildTopologyIndex();
 
         // Should not throw StackOverflowError, but will result in no roots
         List<TopologyNode> roots = deviceService.getFullTopology();
@@ -374,7 +682,8 @@ class DeviceServiceImplTest {
         d3.setDeviceType(DeviceType.ACCESS_POINT);
 
         // No uplinks, all are roots
-        when(deviceRepository.findAll()).thenReturn(List.of(d1, d2, d3));
+        stubDevices(List.of(d1, d2, d3));
+        deviceService.rebuildTopologyIndex();
 
         List<TopologyNode> roots = deviceService.getFullTopology();
         assertThat(roots)
@@ -401,7 +710,9 @@ class DeviceServiceImplTest {
             parent = d;
         }
 
-        when(deviceRepository.findAll()).thenReturn(devices);
+        stubDevices(devices);
+
+        deviceService.rebuildTopologyIndex();
 
         List<TopologyNode> roots = deviceService.getFullTopology();
         assertThat(roots).hasSize(1);
@@ -429,9 +740,8 @@ class DeviceServiceImplTest {
         ap1.setMacAddress("ap1");
         ap1.setDeviceType(DeviceType.ACCESS_POINT);
         ap1.setUplink(switch1);
-
-        when(deviceRepository.findById("sw1")).thenReturn(Optional.of(switch1));
-        when(deviceRepository.findAll()).thenReturn(List.of(gateway, switch1, ap1));
+        stubDevices(List.of(gateway, switch1, ap1));
+        deviceService.rebuildTopologyIndex();
 
         TopologyNode subtree = deviceService.getTopologyFrom("sw1");
 
@@ -442,7 +752,6 @@ class DeviceServiceImplTest {
 
     @Test
     void getTopologyFrom_shouldThrowIfNotFound() {
-        when(deviceRepository.findById("macX")).thenReturn(Optional.empty());
 
         assertThatThrownBy(() -> deviceService.getTopologyFrom("macX"))
                 .isInstanceOf(EntityNotFoundException.class)
@@ -472,9 +781,8 @@ class DeviceServiceImplTest {
         ap2.setMacAddress("ap2");
         ap2.setDeviceType(DeviceType.ACCESS_POINT);
         ap2.setUplink(ap1);
-
-        when(deviceRepository.findById("sw1")).thenReturn(Optional.of(switch1));
-        when(deviceRepository.findAll()).thenReturn(List.of(gateway, switch1, ap1, ap2));
+        stubDevices(List.of(gateway, switch1, ap1, ap2));
+        deviceService.rebuildTopologyIndex();
 
         TopologyNode subtree = deviceService.getTopologyFrom("sw1");
 
@@ -491,14 +799,948 @@ class DeviceServiceImplTest {
         Device d = new Device();
         d.setMacAddress("macSolo");
         d.setDeviceType(DeviceType.GATEWAY);
-
-        when(deviceRepository.findById("macSolo")).thenReturn(Optional.of(d));
-        when(deviceRepository.findAll()).thenReturn(List.of(d));
+        stubDevices(List.of(d));
+        deviceService.rebuildTopologyIndex();
 
         TopologyNode node = deviceService.getTopologyFrom("macSolo");
         assertThat(node.getMacAddress()).isEqualTo("macSolo");
         assertThat(node.getChildren()).isEmpty();
     }
 
-}
+    @Test
+    void getTopologyFrom_shouldReflectRegisteredDevicesWithoutRepositoryLookups() {
+        Device gateway = new Device();
+        gateway.setMacAddress("gw");
+        when(deviceRepository.findById("gw")).thenReturn(Optional.of(gateway));
+
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw", null));
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw", "gw"));
+        clearInvocations(deviceRepository);
+
+        TopologyNode subtree = deviceService.getTopologyFrom("gw");
 
+        assertThat(subtree.getMacAddress()).isEqualTo("gw");
+        assertThat(subtree.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw");
+        verifyNoInteractions(deviceRepository);
+    }
+
+    @Test
+    void getFullTopology_shouldMoveReRegisteredDeviceUnderNewUplink() {
+        Device gw1 = new Device();
+        gw1.setMacAddress("gw1");
+        Device gw2 = new Device();
+        gw2.setMacAddress("gw2");
+        when(deviceRepository.findById("gw1")).thenReturn(Optional.of(gw1));
+        when(deviceRepository.findById("gw2")).thenReturn(Optional.of(gw2));
+
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw1", null));
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw2", null));
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw", "gw1"));
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw", "gw2"));
+
+        List<TopologyNode> roots = deviceService.getFullTopology();
+
+        assertThat(roots).extracting(TopologyNode::getMacAddress).containsExactly("gw1", "gw2");
+        assertThat(roots.get(0).getChildren()).isEmpty();
+        assertThat(roots.get(1).getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw");
+    }
+
+    @Test
+    void getTopologyFrom_shouldAssembleSubtreeFromRepositoryWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.findSubtree("sw1")).thenReturn(List.of(
+                topologyView("sw1", "gw", DeviceType.SWITCH),
+                topologyView("ap1", "sw1", DeviceType.ACCESS_POINT),
+                topologyView("ap2", "ap1", DeviceType.ACCESS_POINT)));
+
+        TopologyNode subtree = deviceService.getTopologyFrom("sw1");
+
+        assertThat(subtree.getMacAddress()).isEqualTo("sw1");
+        assertThat(subtree.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("ap1");
+        assertThat(subtree.getChildren().get(0).getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("ap2");
+        verify(deviceRepository, never()).findAll();
+    }
+
+    @Test
+    void getTopologyFrom_shouldThrowIfSubtreeEmptyWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.findSubtree("macX")).thenReturn(List.of());
+
+        assertThatThrownBy(() -> deviceService.getTopologyFrom("macX"))
+                .isInstanceOf(EntityNotFoundException.class)
+                .hasMessageContaining("Device not found");
+    }
+
+    private void stubDevices(List<Device> devices) {
+        when(deviceRepository.findAllSummaries()).thenReturn(devices.stream()
+                .map(d -> summaryView(d.getMacAddress(), d.getDeviceType()))
+                .toList());
+        when(deviceRepository.findAllTopologyViews()).thenReturn(devices.stream()
+                .map(d -> topologyView(d.getMacAddress(), d.getUplink() != null ? d.getUplink().getMacAddress() : null, d.getDeviceType()))
+                .toList());
+    }
+
+    private static DeviceSummaryView summaryView(String mac, DeviceType type) {
+        return new DeviceSummaryView() {
+            @Override
+            public String getMacAddress() {
+                return mac;
+            }
+
+            @Override
+            public DeviceType getDeviceType() {
+                return type;
+            }
+        };
+    }
+
+    private static DeviceTopologyView topologyView(String mac, String uplinkMac, DeviceType type) {
+        return new DeviceTopologyView() {
+            @Override
+            public String getMacAddress() {
+                return mac;
+            }
+
+            @Override
+            public String getUplinkMac() {
+                return uplinkMac;
+            }
+
+            @Override
+            public DeviceType getDeviceType() {
+                return type;
+            }
+        };
+    }
+
+    @Test
+    void getTopologySnapshot_shouldBeReusedUntilNextRegistration() {
+        stubDevices(List.of());
+        deviceService.rebuildTopologyIndex();
+
+        TopologySnapshot first = deviceService.getTopologySnapshot();
+        TopologySnapshot second = deviceService.getTopologySnapshot();
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw", null));
+        TopologySnapshot third = deviceService.getTopologySnapshot();
+
+        assertThat(second).isSameAs(first);
+        assertThat(third.version()).isGreaterThan(first.version());
+        assertThat(third.version()).isEqualTo(deviceService.getTopologyVersion());
+        assertThat(third.roots()).extracting(TopologyNode::getMacAddress).containsExactly("gw");
+    }
+
+    @Test
+    void getTopologySnapshot_shouldNotBeCorruptedByCallers() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        List<TopologyNode> roots = deviceService.getFullTopology();
+        TopologyNode gw = roots.get(0);
+
+        assertThatThrownBy(() -> gw.setChildren(new ArrayList<>())).isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> gw.getChildren().get(0).setChildCount(1))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> roots.add(new TopologyNode("gw2"))).isInstanceOf(UnsupportedOperationException.class);
+        assertThat(deviceService.getFullTopology().get(0).getChildren()).hasSize(3);
+    }
+
+    @Test
+    void getTopologySnapshot_shouldShareConcurrentBuildWhenIndexDisabled() throws Exception {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(deviceRepository.findAllTopologyViews()).thenAnswer(invocation -> {
+            entered.countDown();
+            release.await();
+            return List.of(topologyView("gw", null, DeviceType.GATEWAY));
+        });
+        TopologySnapshot[] snapshots = new TopologySnapshot[2];
+        Thread leader = new Thread(() -> snapshots[0] = deviceService.getTopologySnapshot());
+        Thread follower = new Thread(() -> snapshots[1] = deviceService.getTopologySnapshot());
+
+        leader.start();
+        entered.await();
+        follower.start();
+        while (follower.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        assertThat(snapshots[1]).isSameAs(snapshots[0]);
+        assertThat(snapshots[0].roots()).extracting(TopologyNode::getMacAddress).containsExactly("gw");
+        verify(deviceRepository, times(1)).findAllTopologyViews();
+    }
+
+    @Test
+    void fullTopology_shouldBeRefusedWhenFullBuildsAreSaturatedAndIndexDisabled() {
+        deviceService = new DeviceServiceImpl(deviceRepository, new TopologyIndex(false, 3), eventPublisher,
+                deviceLookupCache, 0, 7);
+        stubDevices(wideTopology());
+
+        assertThatThrownBy(() -> writeJson(deviceService::writeFullTopology))
+                .isInstanceOf(ServiceOverloadedException.class)
+                .extracting(e -> ((ServiceOverloadedException) e).getRetryAfter())
+                .isEqualTo(Duration.ofSeconds(7));
+        assertThatThrownBy(() -> writeJson(deviceService::writeFlatTopology))
+                .isInstanceOf(ServiceOverloadedException.class);
+        assertThatThrownBy(deviceService::getFullTopology).isInstanceOf(ServiceOverloadedException.class);
+        verify(deviceRepository, never()).findAllTopologyViews();
+    }
+
+    @Test
+    void fullTopology_shouldStreamFromIndexWhenFullBuildsAreSaturated() throws IOException {
+        deviceService = new DeviceServiceImpl(deviceRepository, topologyIndex, eventPublisher, deviceLookupCache, 0, 7);
+        stubDevices(List.of());
+        deviceService.rebuildTopologyIndex();
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw", null));
+
+        assertThat(writeJson(deviceService::writeFullTopology)).contains("\"gw\"");
+        assertThat(writeJson(deviceService::writeFlatTopology)).contains("\"gw\"");
+        // building a snapshot still takes a permit
+        assertThatThrownBy(deviceService::getFullTopology).isInstanceOf(ServiceOverloadedException.class);
+        assertThat(deviceService.getTopologyFrom("gw").getMacAddress()).isEqualTo("gw");
+    }
+
+    @Test
+    void getFullTopology_shouldServeBuiltSnapshotWhenFullBuildsAreSaturated() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        TopologySnapshot built = topologyIndex.getSnapshot();
+        deviceService = new DeviceServiceImpl(deviceRepository, topologyIndex, eventPublisher, deviceLookupCache, 0, 7);
+
+        assertThat(deviceService.getTopologySnapshot()).isSameAs(built);
+
+        topologyIndex.put("gw2", null, DeviceType.GATEWAY);
+        assertThatThrownBy(deviceService::getTopologySnapshot).isInstanceOf(ServiceOverloadedException.class);
+    }
+
+    @Test
+    void getTopologyVersion_shouldChangeOnRegistrationWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        long before = deviceService.getTopologyVersion();
+
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw", null));
+
+        assertThat(deviceService.getTopologyVersion()).isGreaterThan(before);
+    }
+
+    @Test
+    void registerDevice_shouldPublishTopologyChangeWithNewVersion() {
+        Device gateway = new Device();
+        gateway.setMacAddress("gw");
+        when(deviceRepository.findById("gw")).thenReturn(Optional.of(gateway));
+        long before = deviceService.getTopologyVersion();
+
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw", "gw"));
+
+        ArgumentCaptor<TopologyChangeDto> captor = ArgumentCaptor.forClass(TopologyChangeDto.class);
+        verify(eventPublisher).publishEvent(captor.capture());
+        assertThat(captor.getValue()).isEqualTo(new TopologyChangeDto("sw", DeviceType.SWITCH, "gw", before + 1));
+    }
+
+    @Test
+    void registerDevice_shouldPublishParallelChangesInVersionOrder() throws Exception {
+        List<Long> published = Collections.synchronizedList(new ArrayList<>());
+        deviceService = new DeviceServiceImpl(deviceRepository, topologyIndex,
+                event -> published.add(((TopologyChangeDto) event).getVersion()), deviceLookupCache, 4, 1);
+        int threads = 8;
+        int registrations = 2000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> registering = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            registering.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < registrations; i++) {
+                    deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw" + thread + "-" + i, null));
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : registering) {
+            thread.join();
+        }
+
+        assertThat(published).hasSize(threads * registrations).isSorted();
+    }
+
+    @Test
+    void getTopologyChanges_shouldReturnChangesAfterKnownVersion() {
+        Device gateway = new Device();
+        gateway.setMacAddress("gw");
+        when(deviceRepository.findById("gw")).thenReturn(Optional.of(gateway));
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw", null));
+        long known = deviceService.getTopologyVersion();
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw1", "gw"));
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw2", "gw"));
+
+        TopologyChangesDto changes = deviceService.getTopologyChanges(known);
+
+        assertThat(changes.isResyncRequired()).isFalse();
+        assertThat(changes.getVersion()).isEqualTo(known + 2);
+        assertThat(changes.getChanges())
+                .extracting(TopologyChangeDto::getMacAddress, TopologyChangeDto::getUplinkMacAddress, TopologyChangeDto::getVersion)
+                .containsExactly(tuple("sw1", "gw", known + 1), tuple("sw2", "gw", known + 2));
+        assertThat(deviceService.getTopologyChanges(known + 2).getChanges()).isEmpty();
+    }
+
+    @Test
+    void getTopologyChanges_shouldRequireResyncWhenVersionFellOutOfChangeLog() {
+        long known = deviceService.getTopologyVersion();
+        for (int i = 0; i < 4; i++) {
+            deviceService.registerDevice(new DeviceRequestDto(DeviceType.GATEWAY, "gw" + i, null));
+        }
+
+        assertThat(deviceService.getTopologyChanges(known).isResyncRequired()).isTrue();
+        assertThat(deviceService.getTopologyChanges(known + 1).getChanges())
+                .extracting(TopologyChangeDto::getMacAddress)
+                .containsExactly("gw1", "gw2", "gw3");
+        assertThat(deviceService.getTopologyChanges(known + 5).isResyncRequired()).isTrue();
+    }
+
+    @Test
+    void getTopologyChanges_shouldRequireResyncAcrossIndexRebuild() {
+        long known = deviceService.getTopologyVersion();
+        stubDevices(List.of());
+
+        deviceService.rebuildTopologyIndex();
+
+        assertThat(deviceService.getTopologyChanges(known).isResyncRequired()).isTrue();
+        assertThat(deviceService.getTopologyChanges(deviceService.getTopologyVersion()).isResyncRequired()).isFalse();
+    }
+
+    @Test
+    void getTopologyFrom_shouldCutOffAtMaxDepthWithChildCount() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        TopologyNode root = deviceService.getTopologyFrom("gw", 1, null, null);
+
+        assertThat(root.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw0", "sw1", "sw2");
+        assertThat(root.getChildCount()).isNull();
+        TopologyNode sw0 = root.getChildren().get(0);
+        assertThat(sw0.getChildren()).isEmpty();
+        assertThat(sw0.getChildCount()).isEqualTo(2);
+        assertThat(sw0.getChildCursor()).isNotNull();
+        assertThat(root.getChildren().get(2).getChildCount()).isNull();
+    }
+
+    @Test
+    void getTopologyFrom_shouldBuildTreeThatRejectsChanges() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        TopologyNode root = deviceService.getTopologyFrom("gw");
+        TopologyNode ap00 = root.getChildren().get(0).getChildren().get(0);
+
+        assertThatThrownBy(() -> root.addChild(new TopologyNode("sw3")))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> ap00.addChild(new TopologyNode("ap000")))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> root.getChildren().set(0, new TopologyNode("sw3")))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThat(root.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw0", "sw1", "sw2");
+        assertThat(ap00.getChildren()).isEmpty();
+    }
+
+    @Test
+    void getTopologyFrom_shouldShareFrozenTreeWithConcurrentCallersWhenIndexDisabled() throws Exception {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(deviceRepository.findSubtree("gw")).thenAnswer(invocation -> {
+            entered.countDown();
+            release.await();
+            return List.of(topologyView("gw", null, DeviceType.GATEWAY), topologyView("sw", "gw", DeviceType.SWITCH));
+        });
+        TopologyNode[] roots = new TopologyNode[2];
+        Thread leader = new Thread(() -> roots[0] = deviceService.getTopologyFrom("gw"));
+        Thread follower = new Thread(() -> roots[1] = deviceService.getTopologyFrom("gw"));
+
+        leader.start();
+        entered.await();
+        follower.start();
+        while (follower.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        release.countDown();
+        leader.join();
+        follower.join();
+
+        assertThat(roots[1]).isSameAs(roots[0]);
+        verify(deviceRepository, times(1)).findSubtree("gw");
+        // one caller cannot change the tree under the other
+        assertThatThrownBy(() -> roots[0].addChild(new TopologyNode("sw2")))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> roots[0].getChildren().get(0).setChildCount(1))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThat(roots[1].getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw");
+    }
+
+    @Test
+    void getTopologyFrom_shouldPageChildrenWithCursor() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        TopologyNode firstPage = deviceService.getTopologyFrom("gw", 0, 2, null);
+        assertThat(firstPage.getChildren()).isEmpty();
+        assertThat(firstPage.getChildCount()).isEqualTo(3);
+
+        TopologyNode page = deviceService.getTopologyFrom("gw", 1, 2, firstPage.getChildCursor());
+        assertThat(page.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw0", "sw1");
+        assertThat(page.getChildCount()).isEqualTo(3);
+
+        TopologyNode lastPage = deviceService.getTopologyFrom("gw", 1, 2, page.getChildCursor());
+        assertThat(lastPage.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw2");
+        assertThat(lastPage.getChildCount()).isEqualTo(3);
+        assertThat(lastPage.getChildCursor()).isNull();
+    }
+
+    @Test
+    void getTopologyFrom_shouldResumeAfterLastChildWhenSiblingsChange() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        when(deviceRepository.upsert(any(), any(), any())).thenReturn(UpsertResult.CREATED);
+
+        TopologyNode firstPage = deviceService.getTopologyFrom("gw", 1, 1, null);
+        assertThat(firstPage.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw0");
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw0", "sw2"));
+        deviceService.registerDevice(new DeviceRequestDto(DeviceType.SWITCH, "sw3", "gw"));
+
+        TopologyNode page = deviceService.getTopologyFrom("gw", 1, 2, firstPage.getChildCursor());
+        assertThat(page.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw1", "sw2");
+
+        TopologyNode lastPage = deviceService.getTopologyFrom("gw", 1, 2, page.getChildCursor());
+        assertThat(lastPage.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw3");
+        assertThat(lastPage.getChildCursor()).isNull();
+    }
+
+    @Test
+    void getTopologyFrom_shouldPageChildrenByMacAddressWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.findSubtree("gw")).thenReturn(List.of(
+                topologyView("gw", null, DeviceType.GATEWAY),
+                topologyView("sw2", "gw", DeviceType.SWITCH),
+                topologyView("sw0", "gw", DeviceType.SWITCH),
+                topologyView("sw1", "gw", DeviceType.SWITCH)));
+
+        TopologyNode firstPage = deviceService.getTopologyFrom("gw", 1, 2, null);
+        TopologyNode lastPage = deviceService.getTopologyFrom("gw", 1, 2, firstPage.getChildCursor());
+
+        assertThat(firstPage.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw0", "sw1");
+        assertThat(lastPage.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw2");
+        assertThat(lastPage.getChildCursor()).isNull();
+    }
+
+    @Test
+    void getTopologyFrom_shouldApplyBoundsWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.findSubtree("gw")).thenReturn(List.of(
+                topologyView("gw", null, DeviceType.GATEWAY),
+                topologyView("sw0", "gw", DeviceType.SWITCH),
+                topologyView("sw1", "gw", DeviceType.SWITCH),
+                topologyView("ap0", "sw0", DeviceType.ACCESS_POINT)));
+
+        TopologyNode root = deviceService.getTopologyFrom("gw", 1, 1, null);
+
+        assertThat(root.getChildren()).extracting(TopologyNode::getMacAddress).containsExactly("sw0");
+        assertThat(root.getChildCount()).isEqualTo(2);
+        assertThat(root.getChildren().get(0).getChildCount()).isEqualTo(1);
+    }
+
+    @Test
+    void getTopologyFrom_shouldRejectInvalidBounds() {
+        assertThatThrownBy(() -> deviceService.getTopologyFrom("gw", -1, null, null))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> deviceService.getTopologyFrom("gw", null, 0, null))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> deviceService.getTopologyFrom("gw", null, null, "%%%"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Invalid child cursor");
+    }
+
+    @Test
+    void writeTopologyFrom_shouldWriteSameJsonAsSerializedTree() throws Exception {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        ObjectMapper objectMapper = new ObjectMapper();
+
+        assertThat(writeJson(g -> deviceService.writeTopologyFrom(g, "gw", 1, 2, null)))
+                .isEqualTo(objectMapper.writeValueAsString(deviceService.getTopologyFrom("gw", 1, 2, null)));
+        assertThat(writeJson(g -> deviceService.writeTopologyFrom(g, "gw", null, null, null)))
+                .isEqualTo(objectMapper.writeValueAsString(deviceService.getTopologyFrom("gw")));
+        assertThat(writeJson(deviceService::writeFullTopology))
+                .isEqualTo(objectMapper.writeValueAsString(deviceService.getFullTopology()));
+    }
+
+    @Test
+    void writeTopologyFrom_shouldThrowBeforeWritingIfNotFound() {
+        deviceService.rebuildTopologyIndex();
+        StringWriter out = new StringWriter();
+
+        assertThatThrownBy(() -> deviceService.writeTopologyFrom(JSON.createGenerator(out), "macX", null, null, null))
+                .isInstanceOf(EntityNotFoundException.class);
+        assertThat(out.toString()).isEmpty();
+    }
+
+    @Test
+    void writeFullTopology_shouldWriteVeryDeepChain() throws Exception {
+        int depth = 100_000;
+        when(deviceRepository.findAllTopologyViews()).thenReturn(chain(depth));
+        deviceService.rebuildTopologyIndex();
+
+        assertChain(writeJson(deviceService::writeFullTopology), depth);
+    }
+
+    @Test
+    void writeTopologyFrom_shouldWriteVeryDeepChain() throws Exception {
+        int depth = 100_000;
+        when(deviceRepository.findAllTopologyViews()).thenReturn(chain(depth));
+        deviceService.rebuildTopologyIndex();
+
+        assertChain(writeJson(g -> deviceService.writeTopologyFrom(g, "mac0", null, null, null)), depth);
+    }
+
+    @Test
+    void writeTopologyFrom_shouldWriteVeryDeepChainWhenIndexDisabled() throws Exception {
+        int depth = 100_000;
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.findSubtree("mac0")).thenReturn(chain(depth));
+        when(deviceRepository.findAllTopologyViews()).thenReturn(chain(depth));
+
+        assertChain(writeJson(g -> deviceService.writeTopologyFrom(g, "mac0", null, null, null)), depth);
+        assertChain(writeJson(deviceService::writeFullTopology), depth);
+    }
+
+    @Test
+    void getTopologyFrom_shouldBuildVeryDeepChain() {
+        int depth = 100_000;
+        when(deviceRepository.findAllTopologyViews()).thenReturn(chain(depth));
+        deviceService.rebuildTopologyIndex();
+
+        TopologyNode current = deviceService.getTopologyFrom("mac0");
+        for (int i = 1; i < depth; i++) {
+            assertThat(current.getChildren()).hasSize(1);
+            current = current.getChildren().get(0);
+        }
+        assertThat(current.getMacAddress()).isEqualTo("mac" + (depth - 1));
+        assertThat(current.getChildren()).isEmpty();
+    }
+
+    @Test
+    void isUnder_shouldCompareIntervalsOfIndexedDevices() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        assertThat(deviceService.isUnder("ap00", "gw")).isTrue();
+        assertThat(deviceService.isUnder("ap00", "sw0")).isTrue();
+        assertThat(deviceService.isUnder("ap00", "sw1")).isFalse();
+        assertThat(deviceService.isUnder("gw", "ap00")).isFalse();
+        assertThat(deviceService.isUnder("sw0", "sw0")).isFalse();
+        assertThatThrownBy(() -> deviceService.isUnder("ap00", "macX"))
+                .isInstanceOf(EntityNotFoundException.class);
+    }
+
+    @Test
+    void topologyQueries_shouldResolveAnyNotationOfMacAddress() {
+        stubDevices(List.of());
+        deviceService.rebuildTopologyIndex();
+        topologyIndex.put("aa:bb:cc:00:00:01", null, DeviceType.GATEWAY);
+        topologyIndex.put("aa:bb:cc:00:00:02", "aa:bb:cc:00:00:01", DeviceType.SWITCH);
+        topologyIndex.put("legacy-ap", "aa:bb:cc:00:00:02", DeviceType.ACCESS_POINT);
+
+        assertThat(deviceService.getTopologyFrom("AABB.CC00.0001").getChildren())
+                .extracting(TopologyNode::getMacAddress).containsExactly("aa:bb:cc:00:00:02");
+        assertThat(deviceService.isUnder("legacy-ap", "AA-BB-CC-00-00-01")).isTrue();
+        assertThat(deviceService.getPathToRoot("legacy-ap"))
+                .containsExactly("legacy-ap", "aa:bb:cc:00:00:02", "aa:bb:cc:00:00:01");
+        assertThat(deviceService.getDeviceStats("aabbcc000001").getMacAddress()).isEqualTo("aa:bb:cc:00:00:01");
+        assertThat(deviceService.getDeviceStats("aabbcc000001").getDescendantCount()).isEqualTo(2);
+        assertThatThrownBy(() -> deviceService.getTopologyFrom("aa:bb:cc:00:00:03"))
+                .isInstanceOf(EntityNotFoundException.class);
+    }
+
+    @Test
+    void isUnder_shouldLabelRegisteredLeavesIncrementally() {
+        deviceService.rebuildTopologyIndex();
+        topologyIndex.put("gw", null, DeviceType.GATEWAY);
+        topologyIndex.put("gw2", null, DeviceType.GATEWAY);
+        // enough siblings to exhaust the free space of the uplink and force a relabeling
+        for (int i = 0; i < 40_000; i++) {
+            topologyIndex.put("ap" + i, "gw", DeviceType.ACCESS_POINT);
+        }
+
+        assertThat(deviceService.isUnder("ap0", "gw")).isTrue();
+        assertThat(deviceService.isUnder("ap39999", "gw")).isTrue();
+        assertThat(deviceService.isUnder("ap39999", "gw2")).isFalse();
+        assertThat(deviceService.isUnder("ap39999", "ap39998")).isFalse();
+        assertThat(deviceService.isUnder("ap1", "ap0")).isFalse();
+    }
+
+    @Test
+    void isUnder_shouldLabelDeepIncrementalChain() {
+        deviceService.rebuildTopologyIndex();
+        topologyIndex.put("mac0", null, DeviceType.GATEWAY);
+        // every level narrows the free space, deep chains force relabelings
+        for (int i = 1; i < 100; i++) {
+            topologyIndex.put("mac" + i, "mac" + (i - 1), DeviceType.SWITCH);
+            topologyIndex.put("leaf" + i, "mac" + (i - 1), DeviceType.ACCESS_POINT);
+        }
+
+        for (int i = 0; i < 99; i++) {
+            assertThat(deviceService.isUnder("mac99", "mac" + i)).isTrue();
+            assertThat(deviceService.isUnder("mac" + i, "mac99")).isFalse();
+        }
+        assertThat(deviceService.isUnder("leaf50", "mac49")).isTrue();
+        assertThat(deviceService.isUnder("leaf50", "mac50")).isFalse();
+        assertThat(deviceService.isUnder("mac99", "leaf50")).isFalse();
+    }
+
+    @Test
+    void isUnder_shouldLabelVeryDeepIncrementalChainWithoutQuadraticRelabeling() {
+        int depth = 100_000;
+        deviceService.rebuildTopologyIndex();
+        topologyIndex.put("mac0", null, DeviceType.GATEWAY);
+        for (int i = 1; i < depth; i++) {
+            topologyIndex.put("mac" + i, "mac" + (i - 1), DeviceType.SWITCH);
+            topologyIndex.put("leaf" + i, "mac" + (i - 1), DeviceType.ACCESS_POINT);
+        }
+        // relabeling the whole chain on every overflow would reassign billions of labels
+        assertThat(topologyIndex.getRelabeledDeviceCount()).as("relabeled devices").isLessThan(50L * depth);
+
+        for (int i = 0; i < depth - 1; i += 997) {
+            assertThat(deviceService.isUnder("mac" + (depth - 1), "mac" + i)).isTrue();
+            assertThat(deviceService.isUnder("leaf" + (i + 1), "mac" + i)).isTrue();
+            assertThat(deviceService.isUnder("leaf" + (i + 1), "mac" + (i + 1))).isFalse();
+        }
+        DeviceStatsDto stats = deviceService.getDeviceStats("mac" + (depth / 2));
+        assertThat(stats.getDescendantCount()).isEqualTo(2 * (depth - 1 - depth / 2));
+        assertThat(stats.getDescendantCountsByType())
+                .containsEntry(DeviceType.SWITCH, depth - 1 - depth / 2)
+                .containsEntry(DeviceType.ACCESS_POINT, depth - 1 - depth / 2);
+    }
+
+    @Test
+    void isUnder_shouldFollowDeviceMovedUnderNewUplink() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        topologyIndex.put("gw2", null, DeviceType.GATEWAY);
+
+        topologyIndex.put("sw0", "gw2", DeviceType.SWITCH);
+
+        assertThat(deviceService.isUnder("ap00", "gw2")).isTrue();
+        assertThat(deviceService.isUnder("ap00", "gw")).isFalse();
+        assertThat(deviceService.isUnder("ap10", "gw")).isTrue();
+    }
+
+    @Test
+    void put_shouldIgnoreRegistrationCommittedBeforeAppliedOne() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        long version = topologyIndex.getVersion();
+
+        assertThat(topologyIndex.put("ap00", "sw1", DeviceType.ACCESS_POINT, 7)).isNotNull();
+        // the callback of an earlier commit running late
+        assertThat(topologyIndex.put("ap00", "sw2", DeviceType.ACCESS_POINT, 5)).isNull();
+
+        assertThat(deviceService.getPathToRoot("ap00")).containsExactly("ap00", "sw1", "gw");
+        assertThat(topologyIndex.getVersion()).isEqualTo(version + 1);
+        assertThat(topologyIndex.put("ap00", "sw2", DeviceType.ACCESS_POINT, 8)).isNotNull();
+        assertThat(deviceService.getPathToRoot("ap00")).containsExactly("ap00", "sw2", "gw");
+    }
+
+    @Test
+    void getPathToRoot_shouldReturnUplinkChainFromIndex() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        assertThat(deviceService.getPathToRoot("ap11")).containsExactly("ap11", "sw1", "gw");
+        assertThat(deviceService.getPathToRoot("gw")).containsExactly("gw");
+        assertThatThrownBy(() -> deviceService.getPathToRoot("macX"))
+                .isInstanceOf(EntityNotFoundException.class);
+        verify(deviceRepository, never()).findAncestors(any());
+    }
+
+    @Test
+    void getPathToRoot_shouldQueryAncestorsWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.findAncestors("ap")).thenReturn(List.of(
+                topologyView("gw", null, DeviceType.GATEWAY),
+                topologyView("ap", "sw", DeviceType.ACCESS_POINT),
+                topologyView("sw", "gw", DeviceType.SWITCH)));
+        when(deviceRepository.existsById("other")).thenReturn(true);
+
+        assertThat(deviceService.getPathToRoot("ap")).containsExactly("ap", "sw", "gw");
+        assertThat(deviceService.isUnder("ap", "gw")).isTrue();
+        assertThat(deviceService.isUnder("ap", "ap")).isFalse();
+        assertThat(deviceService.isUnder("ap", "other")).isFalse();
+        assertThatThrownBy(() -> deviceService.isUnder("ap", "macX"))
+                .isInstanceOf(EntityNotFoundException.class);
+        assertThatThrownBy(() -> deviceService.getPathToRoot("macX"))
+                .isInstanceOf(EntityNotFoundException.class);
+    }
+
+    @Test
+    void getPath_shouldGoThroughLowestCommonAncestor() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        DevicePathDto path = deviceService.getPath("ap00", "ap11");
+        assertThat(path.getCommonAncestorMacAddress()).isEqualTo("gw");
+        assertThat(path.getPath()).containsExactly("ap00", "sw0", "gw", "sw1", "ap11");
+
+        assertThat(deviceService.getPath("ap00", "ap01").getPath()).containsExactly("ap00", "sw0", "ap01");
+        assertThat(deviceService.getPath("gw", "ap11").getPath()).containsExactly("gw", "sw1", "ap11");
+        assertThat(deviceService.getPath("ap11", "ap11").getPath()).containsExactly("ap11");
+        assertThatThrownBy(() -> deviceService.getPath("ap00", "macX"))
+                .isInstanceOf(EntityNotFoundException.class);
+    }
+
+    @Test
+    void getPath_shouldReturnEmptyPathBetweenSeparateTopologies() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        topologyIndex.put("gw2", null, DeviceType.GATEWAY);
+        topologyIndex.put("sw", "gw2", DeviceType.SWITCH);
+
+        DevicePathDto path = deviceService.getPath("ap00", "sw");
+
+        assertThat(path.getCommonAncestorMacAddress()).isNull();
+        assertThat(path.getPath()).isEmpty();
+    }
+
+    @Test
+    void getPath_shouldMatchUplinkWalksOnRandomTopology() {
+        Random random = new Random(42);
+        Map<String, String> uplinks = new HashMap<>();
+        List<String> macs = new ArrayList<>();
+        deviceService.rebuildTopologyIndex();
+        for (int i = 0; i < 2_000; i++) {
+            String mac = "mac" + i;
+            // a few roots, mostly deep and narrow chains
+            String uplink = i % 500 == 0 ? null : macs.get(Math.max(0, macs.size() - 1 - random.nextInt(8)));
+            topologyIndex.put(mac, uplink, DeviceType.SWITCH);
+            uplinks.put(mac, uplink);
+            macs.add(mac);
+        }
+        // moves force a full recomputation of the jumps
+        for (int i = 0; i < 20; i++) {
+            String mac = macs.get(1 + random.nextInt(macs.size() - 1));
+            String uplink = macs.get(random.nextInt(macs.indexOf(mac)));
+            topologyIndex.put(mac, uplink, DeviceType.SWITCH);
+            uplinks.put(mac, uplink);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            String from = macs.get(random.nextInt(macs.size()));
+            String to = macs.get(random.nextInt(macs.size()));
+            List<String> fromChain = new ArrayList<>();
+            for (String mac = from; mac != null; mac = uplinks.get(mac)) {
+                fromChain.add(mac);
+            }
+            String expected = null;
+            for (String mac = to; mac != null && expected == null; mac = uplinks.get(mac)) {
+                if (fromChain.contains(mac)) {
+                    expected = mac;
+                }
+            }
+            assertThat(deviceService.getPath(from, to).getCommonAncestorMacAddress())
+                    .as("%s -> %s", from, to).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void getPath_shouldIntersectAncestorsWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.findAncestors("ap1")).thenReturn(List.of(
+                topologyView("ap1", "sw1", DeviceType.ACCESS_POINT),
+                topologyView("sw1", "gw", DeviceType.SWITCH),
+                topologyView("gw", null, DeviceType.GATEWAY)));
+        when(deviceRepository.findAncestors("ap2")).thenReturn(List.of(
+                topologyView("ap2", "sw2", DeviceType.ACCESS_POINT),
+                topologyView("sw2", "gw", DeviceType.SWITCH),
+                topologyView("gw", null, DeviceType.GATEWAY)));
+
+        DevicePathDto path = deviceService.getPath("ap1", "ap2");
+
+        assertThat(path.getCommonAncestorMacAddress()).isEqualTo("gw");
+        assertThat(path.getPath()).containsExactly("ap1", "sw1", "gw", "sw2", "ap2");
+    }
+
+    @Test
+    void getDeviceStats_shouldCountDescendantsPerType() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        DeviceStatsDto stats = deviceService.getDeviceStats("gw");
+
+        assertThat(stats.getDescendantCount()).isEqualTo(7);
+        assertThat(stats.getDescendantCountsByType()).containsExactly(
+                entry(DeviceType.GATEWAY, 0), entry(DeviceType.SWITCH, 3), entry(DeviceType.ACCESS_POINT, 4));
+        assertThat(deviceService.getDeviceStats("sw0").getDescendantCountsByType())
+                .containsEntry(DeviceType.ACCESS_POINT, 2);
+        assertThat(deviceService.getDeviceStats("ap00").getDescendantCount()).isZero();
+        assertThatThrownBy(() -> deviceService.getDeviceStats("macX"))
+                .isInstanceOf(EntityNotFoundException.class);
+    }
+
+    @Test
+    void getDeviceStats_shouldFollowRegistrationsTypeChangesAndMoves() {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+
+        topologyIndex.put("ap20", "sw2", DeviceType.ACCESS_POINT);
+        assertThat(deviceService.getDeviceStats("gw").getDescendantCountsByType())
+                .containsEntry(DeviceType.ACCESS_POINT, 5);
+        assertThat(deviceService.getDeviceStats("sw2").getDescendantCount()).isEqualTo(1);
+
+        topologyIndex.put("ap20", "sw2", DeviceType.SWITCH);
+        assertThat(deviceService.getDeviceStats("gw").getDescendantCountsByType())
+                .containsEntry(DeviceType.SWITCH, 4)
+                .containsEntry(DeviceType.ACCESS_POINT, 4);
+
+        topologyIndex.put("gw2", null, DeviceType.GATEWAY);
+        topologyIndex.put("sw0", "gw2", DeviceType.SWITCH);
+        assertThat(deviceService.getDeviceStats("gw").getDescendantCount()).isEqualTo(5);
+        assertThat(deviceService.getDeviceStats("gw2").getDescendantCountsByType())
+                .containsEntry(DeviceType.SWITCH, 1)
+                .containsEntry(DeviceType.ACCESS_POINT, 2);
+    }
+
+    @Test
+    void getDeviceStats_shouldCountSubtreeWhenIndexDisabled() {
+        deviceService = serviceWith(new TopologyIndex(false, 3));
+        when(deviceRepository.findSubtree("sw")).thenReturn(List.of(
+                topologyView("sw", "gw", DeviceType.SWITCH),
+                topologyView("sw2", "sw", DeviceType.SWITCH),
+                topologyView("ap", "sw2", DeviceType.ACCESS_POINT)));
+
+        DeviceStatsDto stats = deviceService.getDeviceStats("sw");
+
+        assertThat(stats.getDescendantCount()).isEqualTo(2);
+        assertThat(stats.getDescendantCountsByType()).containsExactly(
+                entry(DeviceType.GATEWAY, 0), entry(DeviceType.SWITCH, 1), entry(DeviceType.ACCESS_POINT, 1));
+        assertThatThrownBy(() -> deviceService.getDeviceStats("macX"))
+                .isInstanceOf(EntityNotFoundException.class);
+    }
+
+    @Test
+    void writeFlatTopology_shouldWriteParallelArraysInPreOrder() throws Exception {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        topologyIndex.put("gw2", null, DeviceType.GATEWAY);
+
+        JsonNode flat = new ObjectMapper().readTree(writeJson(deviceService::writeFlatTopology));
+
+        assertThat(flat.get("version").asLong()).isEqualTo(topologyIndex.getVersion());
+        assertThat(flat.get("macAddresses")).extracting(JsonNode::asText)
+                .containsExactly("gw", "sw0", "ap00", "ap01", "sw1", "ap10", "ap11", "sw2", "gw2");
+        assertThat(flat.get("deviceTypes")).extracting(JsonNode::asText)
+                .containsExactly("GATEWAY", "SWITCH", "ACCESS_POINT", "ACCESS_POINT", "SWITCH", "ACCESS_POINT",
+                        "ACCESS_POINT", "SWITCH", "GATEWAY");
+        assertThat(flat.get("parentIndices")).extracting(JsonNode::asInt)
+                .containsExactly(-1, 0, 1, 1, 0, 4, 4, 0, -1);
+    }
+
+    @Test
+    void writeFlatTopology_shouldWriteSameArraysWhenIndexDisabled() throws Exception {
+        stubDevices(wideTopology());
+        deviceService.rebuildTopologyIndex();
+        String indexed = writeJson(deviceService::writeFlatTopology);
+
+        DeviceServiceImpl databaseService = serviceWith(new TopologyIndex(false, 3));
+        JsonNode fromDatabase = new ObjectMapper().readTree(writeJson(databaseService::writeFlatTopology));
+        JsonNode fromIndex = new ObjectMapper().readTree(indexed);
+
+        assertThat(fromDatabase.get("macAddresses")).isEqualTo(fromIndex.get("macAddresses"));
+        assertThat(fromDatabase.get("deviceTypes")).isEqualTo(fromIndex.get("deviceTypes"));
+        assertThat(fromDatabase.get("parentIndices")).isEqualTo(fromIndex.get("parentIndices"));
+    }
+
+    @Test
+    void writeFlatTopology_shouldWriteVeryDeepChain() throws Exception {
+        int depth = 100_000;
+        when(deviceRepository.findAllTopologyViews()).thenReturn(chain(depth));
+        deviceService.rebuildTopologyIndex();
+
+        JsonNode flat = new ObjectMapper().readTree(writeJson(deviceService::writeFlatTopology));
+
+        assertThat(flat.get("macAddresses")).hasSize(depth);
+        assertThat(flat.get("macAddresses").get(depth - 1).asText()).isEqualTo("mac" + (depth - 1));
+        assertThat(flat.get("parentIndices").get(depth - 1).asInt()).isEqualTo(depth - 2);
+    }
+
+    /**
+     * Rows of a daisy chain {@code mac0 <- mac1 <- ...}, each device uplinked to the previous one.
+     */
+    private static List<DeviceTopologyView> chain(int depth) {
+        List<DeviceTopologyView> rows = new ArrayList<>(depth);
+        for (int i = 0; i < depth; i++) {
+            rows.add(topologyView("mac" + i, i == 0 ? null : "mac" + (i - 1), DeviceType.SWITCH));
+        }
+        return rows;
+    }
+
+    /**
+     * Walks the JSON tokens of a written chain and checks that each node nests the next one.
+     */
+    private static void assertChain(String json, int depth) throws IOException {
+        int nodes = 0;
+        try (JsonParser parser = JSON.createParser(json)) {
+            for (JsonToken token = parser.nextToken(); token != null; token = parser.nextToken()) {
+                if (token == JsonToken.FIELD_NAME && parser.currentName().equals("macAddress")) {
+                    assertThat(parser.nextTextValue()).isEqualTo("mac" + nodes);
+                    assertThat(parser.getParsingContext().getNestingDepth()).isGreaterThan(2 * nodes);
+                    nodes++;
+                }
+            }
+        }
+        assertThat(nodes).isEqualTo(depth);
+    }
+
+    private interface TopologyWrite {
+        void writeTo(JsonGenerator generator) throws IOException;
+    }
+
+    private static String writeJson(TopologyWrite write) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator generator = JSON.createGenerator(out)) {
+            write.writeTo(generator);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Gateway with three switches, the first two with two access points each.
+     */
+    private static List<Device> wideTopology() {
+        List<Device> devices = new ArrayList<>();
+        Device gateway = new Device();
+        gateway.setMacAddress("gw");
+        gateway.setDeviceType(DeviceType.GATEWAY);
+        devices.add(gateway);
+        for (int i = 0; i < 3; i++) {
+            Device sw = new Device();
+            sw.setMacAddress("sw" + i);
+            sw.setDeviceType(DeviceType.SWITCH);
+            sw.setUplink(gateway);
+            devices.add(sw);
+            for (int j = 0; i < 2 && j < 2; j++) {
+                Device ap = new Device();
+                ap.setMacAddress("ap" + i + j);
+                ap.setDeviceType(DeviceType.ACCESS_POINT);
+                ap.setUplink(sw);
+                devices.add(ap);
+            }
+        }
+        return devices;
+    }
+
+}
@@ -0,0 +1,215 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import cz.jbenes.ubiquity.device_api.dto.DeviceRequestDto;
+import cz.jbenes.ubiquity.device_api.dto.DeviceResponseDto;
+import cz.jbenes.ubiquity.device_api.dto.RegistrationStatusDto;
+import cz.jbenes.ubiquity.device_api.dto.RegistrationStatusDto.State;
+import cz.jbenes.ubiquity.device_api.model.DeviceType;
+import jakarta.persistence.EntityNotFoundException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+class RegistrationPipelineTest {
+
+    private DeviceService deviceService;
+    private RegistrationPipeline pipeline;
+
+    @BeforeEach
+    void setUp() {
+        deviceService = mock(DeviceService.class);
+        when(deviceService.registerDevices(anyList())).thenAnswer(invocation -> {
+            List<DeviceRequestDto> requests = invocation.getArgument(0);
+            return requests.stream().map(r -> new DeviceResponseDto(r.getMacAddress(), r.getDeviceType())).toList();
+        });
+        when(deviceService.registerDevice(any())).thenAnswer(invocation -> {
+            DeviceRequestDto request = invocation.getArgument(0);
+            return new DeviceResponseDto(request.getMacAddress(), request.getDeviceType());
+        });
+        pipeline = new RegistrationPipeline(deviceService, true, 4, 100, 0, 2, 100, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.stop();
+    }
+
+    @Test
+    void register_shouldWriteInCallingThreadWhenDisabled() {
+        RegistrationPipeline disabled = new RegistrationPipeline(deviceService, false, 4, 100, 0, 2, 100, false);
+        DeviceRequestDto request = new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:01", null);
+
+        DeviceResponseDto response = disabled.register(request);
+
+        assertThat(response).isEqualTo(new DeviceResponseDto("aa:00:00:00:00:01", DeviceType.GATEWAY));
+        verify(deviceService).registerDevice(request);
+        verify(deviceService, never()).registerDevices(anyList());
+    }
+
+    @Test
+    void submit_shouldCommitQueuedRegistrationsAsOneCoalescedBatch() {
+        DeviceRequestDto first = new DeviceRequestDto(DeviceType.SWITCH, "aa:00:00:00:00:01", null);
+        DeviceRequestDto child = new DeviceRequestDto(DeviceType.ACCESS_POINT, "aa:00:00:00:00:02", "aa:00:00:00:00:01");
+        DeviceRequestDto again = new DeviceRequestDto(DeviceType.GATEWAY, "AA-00-00-00-00-01", null);
+        RegistrationStatusDto firstStatus = pipeline.submit(first);
+        RegistrationStatusDto childStatus = pipeline.submit(child);
+        RegistrationStatusDto againStatus = pipeline.submit(again);
+        assertThat(firstStatus.getState()).isEqualTo(State.PENDING);
+        assertThat(pipeline.getQueueLength()).isEqualTo(3);
+
+        pipeline.start();
+        awaitCompletion(againStatus.getToken());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<DeviceRequestDto>> batch = ArgumentCaptor.forClass(List.class);
+        verify(deviceService).registerDevices(batch.capture());
+        assertThat(batch.getValue()).containsExactly(again, child);
+        assertThat(pipeline.getStatus(firstStatus.getToken()).getDevice())
+                .isEqualTo(new DeviceResponseDto("AA-00-00-00-00-01", DeviceType.GATEWAY));
+        assertThat(pipeline.getStatus(childStatus.getToken()).getState()).isEqualTo(State.COMPLETED);
+        verify(deviceService, never()).registerDevice(any());
+    }
+
+    @Test
+    void submit_shouldRetryFailedBatchOneByOne() {
+        DeviceRequestDto valid = new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:01", null);
+        DeviceRequestDto orphan = new DeviceRequestDto(DeviceType.SWITCH, "aa:00:00:00:00:02", "aa:00:00:00:00:99");
+        when(deviceService.registerDevices(anyList()))
+                .thenThrow(new EntityNotFoundException("Uplink device not found: aa:00:00:00:00:99"));
+        when(deviceService.registerDevice(orphan))
+                .thenThrow(new EntityNotFoundException("Uplink device not found: aa:00:00:00:00:99"));
+        RegistrationStatusDto validStatus = pipeline.submit(valid);
+        RegistrationStatusDto orphanStatus = pipeline.submit(orphan);
+
+        pipeline.start();
+        awaitCompletion(orphanStatus.getToken());
+
+        assertThat(pipeline.getStatus(validStatus.getToken()).getState()).isEqualTo(State.COMPLETED);
+        assertThat(pipeline.getStatus(orphanStatus.getToken()))
+                .returns(State.FAILED, RegistrationStatusDto::getState)
+                .returns("Uplink device not found: aa:00:00:00:00:99", RegistrationStatusDto::getError);
+        verify(deviceService).registerDevice(valid);
+    }
+
+    @Test
+    void submit_shouldRetryFailedBatchUplinksFirstAndOncePerDevice() {
+        DeviceRequestDto child = new DeviceRequestDto(DeviceType.SWITCH, "aa:00:00:00:00:02", "aa:00:00:00:00:01");
+        DeviceRequestDto uplink = new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:01", null);
+        DeviceRequestDto orphan = new DeviceRequestDto(DeviceType.SWITCH, "aa:00:00:00:00:03", "aa:00:00:00:00:99");
+        DeviceRequestDto childAgain = new DeviceRequestDto(DeviceType.ACCESS_POINT, "AA-00-00-00-00-02", "aa:00:00:00:00:01");
+        when(deviceService.registerDevices(anyList())).thenThrow(new EntityNotFoundException("batch"));
+        when(deviceService.registerDevice(orphan)).thenThrow(new EntityNotFoundException("Uplink device not found"));
+        RegistrationStatusDto childStatus = pipeline.submit(child);
+        pipeline.submit(uplink);
+        pipeline.submit(orphan);
+        RegistrationStatusDto childAgainStatus = pipeline.submit(childAgain);
+
+        pipeline.start();
+        awaitCompletion(childStatus.getToken());
+
+        InOrder retries = inOrder(deviceService);
+        retries.verify(deviceService).registerDevice(uplink);
+        retries.verify(deviceService).registerDevice(childAgain);
+        retries.verify(deviceService).registerDevice(orphan);
+        verify(deviceService, never()).registerDevice(child);
+        assertThat(pipeline.getStatus(childStatus.getToken()).getDevice())
+                .isEqualTo(new DeviceResponseDto("AA-00-00-00-00-02", DeviceType.ACCESS_POINT))
+                .isEqualTo(pipeline.getStatus(childAgainStatus.getToken()).getDevice());
+    }
+
+    @Test
+    void register_shouldRethrowFailureOfRegistration() {
+        DeviceRequestDto orphan = new DeviceRequestDto(DeviceType.SWITCH, "aa:00:00:00:00:02", "aa:00:00:00:00:99");
+        when(deviceService.registerDevices(anyList())).thenThrow(new EntityNotFoundException("batch"));
+        when(deviceService.registerDevice(orphan)).thenThrow(new EntityNotFoundException("Uplink device not found"));
+        pipeline.start();
+
+        assertThatThrownBy(() -> pipeline.register(orphan))
+                .isInstanceOf(EntityNotFoundException.class)
+                .hasMessage("Uplink device not found");
+    }
+
+    @Test
+    void register_shouldWaitForCommit() {
+        pipeline.start();
+
+        DeviceResponseDto response = pipeline.register(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:01", null));
+
+        assertThat(response).isEqualTo(new DeviceResponseDto("aa:00:00:00:00:01", DeviceType.GATEWAY));
+        verify(deviceService).registerDevices(anyList());
+    }
+
+    @Test
+    void start_shouldRunWriterOnVirtualThreadInVirtualMode() {
+        RegistrationPipeline virtual = new RegistrationPipeline(deviceService, true, 4, 100, 0, 2, 100, true);
+        boolean[] writtenOnVirtualThread = new boolean[1];
+        when(deviceService.registerDevices(anyList())).thenAnswer(invocation -> {
+            writtenOnVirtualThread[0] = Thread.currentThread().isVirtual();
+            return List.of(new DeviceResponseDto("aa:00:00:00:00:01", DeviceType.GATEWAY));
+        });
+        virtual.start();
+        try {
+            virtual.register(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:01", null));
+        } finally {
+            virtual.stop();
+        }
+
+        assertThat(writtenOnVirtualThread[0]).isTrue();
+    }
+
+    @Test
+    void submit_shouldRefuseWhenQueueIsFull() {
+        for (int i = 0; i < 4; i++) {
+            pipeline.submit(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:0" + i, null));
+        }
+
+        assertThatThrownBy(() -> pipeline.submit(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:09", null)))
+                .isInstanceOf(ServiceOverloadedException.class)
+                .extracting(e -> ((ServiceOverloadedException) e).getRetryAfter())
+                .isEqualTo(Duration.ofSeconds(2));
+    }
+
+    @Test
+    void stop_shouldWriteAcceptedRegistrations() {
+        RegistrationStatusDto status = pipeline.submit(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:01", null));
+        pipeline.start();
+
+        pipeline.stop();
+
+        assertThat(pipeline.getStatus(status.getToken()).getState()).isEqualTo(State.COMPLETED);
+        assertThatThrownBy(() -> pipeline.register(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:02", null)))
+                .isInstanceOf(ServiceOverloadedException.class);
+    }
+
+    @Test
+    void getStatus_shouldForgetOldestTokens() {
+        RegistrationPipeline disabled = new RegistrationPipeline(deviceService, false, 4, 100, 0, 2, 2, false);
+        String oldest = disabled.submit(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:01", null)).getToken();
+        disabled.submit(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:02", null));
+        String latest = disabled.submit(new DeviceRequestDto(DeviceType.GATEWAY, "aa:00:00:00:00:03", null)).getToken();
+
+        assertThat(disabled.getStatus(latest).getState()).isEqualTo(State.COMPLETED);
+        assertThatThrownBy(() -> disabled.getStatus(oldest)).isInstanceOf(EntityNotFoundException.class);
+    }
+
+    private void awaitCompletion(String token) {
+        await(() -> pipeline.getStatus(token).getState() != State.PENDING);
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("condition met in time").isLessThan(deadline);
+            Thread.onSpinWait();
+        }
+    }
+}
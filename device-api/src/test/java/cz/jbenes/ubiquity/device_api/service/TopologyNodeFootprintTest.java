@@ -0,0 +1,101 @@
+package cz.jbenes.ubiquity.device_api.service;
+
+import cz.jbenes.ubiquity.device_api.util.TopologyNode;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the retained heap per device of a 1M-device topology forest built with eagerly
+ * allocated child lists, as before, and by {@link TopologyTrees#build}.
+ * <p>
+ * Excluded from the default build, run with {@code mvn test -Pbenchmark}.
+ * </p>
+ */
+@Tag("benchmark")
+class TopologyNodeFootprintTest {
+
+    private static final int GATEWAYS = 100;
+    private static final int SWITCHES_PER_GATEWAY = 100;
+    private static final int ACCESS_POINTS_PER_SWITCH = 99;
+
+    @Test
+    void compactTreesShouldTakeLessHeapPerDevice() {
+        List<String> roots = new ArrayList<>();
+        Map<String, List<String>> childrenByMac = new HashMap<>();
+        int devices = 0;
+        for (int g = 0; g < GATEWAYS; g++) {
+            String gateway = "gw" + g;
+            roots.add(gateway);
+            List<String> switches = new ArrayList<>();
+            childrenByMac.put(gateway, switches);
+            for (int s = 0; s < SWITCHES_PER_GATEWAY; s++) {
+                String sw = gateway + "-sw" + s;
+                switches.add(sw);
+                List<String> accessPoints = new ArrayList<>();
+                childrenByMac.put(sw, accessPoints);
+                for (int a = 0; a < ACCESS_POINTS_PER_SWITCH; a++) {
+                    accessPoints.add(sw + "-ap" + a);
+                }
+                devices += 1 + ACCESS_POINTS_PER_SWITCH;
+            }
+            devices++;
+        }
+
+        // MAC strings are shared with the adjacency in both cases, only the nodes are measured
+        double before = bytesPerDevice(devices, () -> {
+            List<TopologyNode> forest = new ArrayList<>();
+            for (String root : roots) {
+                forest.add(eagerTree(root, childrenByMac));
+            }
+            return forest;
+        });
+        TopologyTrees.Forest<String> adjacency = TopologyTrees.forestOf(childrenByMac::get, mac -> null);
+        double after = bytesPerDevice(devices, () -> {
+            List<TopologyNode> forest = new ArrayList<>();
+            for (String root : roots) {
+                forest.add(TopologyTrees.build(adjacency, root, TopologyTrees.UNLIMITED, TopologyTrees.UNLIMITED, null));
+            }
+            return forest;
+        });
+
+        System.out.printf("%d devices: %.1f bytes per device before, %.1f after%n", devices, before, after);
+        assertThat(after).isLessThan(before);
+    }
+
+    /**
+     * Builds a tree the way nodes used to be built, every node with its own growable child list.
+     */
+    private static TopologyNode eagerTree(String root, Map<String, List<String>> childrenByMac) {
+        TopologyNode node = new TopologyNode(root);
+        node.setChildren(new ArrayList<>());
+        for (String child : childrenByMac.getOrDefault(root, List.of())) {
+            node.addChild(eagerTree(child, childrenByMac));
+        }
+        return node;
+    }
+
+    private static double bytesPerDevice(int devices, Supplier<Object> forest) {
+        long baseline = usedHeap();
+        Object retained = forest.get();
+        long used = usedHeap() - baseline;
+        assertThat(retained).isNotNull();
+        return (double) used / devices;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,49 @@
+package cz.jbenes.ubiquity.device_api.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MacAddressTest {
+
+    private static final long VALUE = 0xAABBCCDDEE0FL;
+
+    @Test
+    void parse_shouldAcceptAllNotationsInEitherCase() {
+        assertThat(MacAddress.parse("aa:bb:cc:dd:ee:0f")).isEqualTo(VALUE);
+        assertThat(MacAddress.parse("AA:BB:CC:DD:EE:0F")).isEqualTo(VALUE);
+        assertThat(MacAddress.parse("aa-bb-cc-dd-ee-0f")).isEqualTo(VALUE);
+        assertThat(MacAddress.parse("AABB.CCDD.EE0F")).isEqualTo(VALUE);
+        assertThat(MacAddress.parse("aabbccddee0f")).isEqualTo(VALUE);
+        assertThat(MacAddress.parse("ff:ff:ff:ff:ff:ff")).isEqualTo(0xFFFFFFFFFFFFL);
+        assertThat(MacAddress.parse("00:00:00:00:00:00")).isZero();
+    }
+
+    @Test
+    void tryParse_shouldRejectOtherText() {
+        assertThat(MacAddress.tryParse(null)).isEqualTo(MacAddress.INVALID);
+        assertThat(MacAddress.tryParse("gw")).isEqualTo(MacAddress.INVALID);
+        assertThat(MacAddress.tryParse("aa:bb-cc:dd:ee:ff")).isEqualTo(MacAddress.INVALID);
+        assertThat(MacAddress.tryParse("aa:bb:cc:dd:ee:fg")).isEqualTo(MacAddress.INVALID);
+        assertThat(MacAddress.tryParse("aa:bb:cc:dd:ee:f")).isEqualTo(MacAddress.INVALID);
+        assertThat(MacAddress.tryParse("aabb:ccdd:eeff")).isEqualTo(MacAddress.INVALID);
+        assertThat(MacAddress.tryParse("aabbccddee١٢")).isEqualTo(MacAddress.INVALID);
+        assertThatThrownBy(() -> MacAddress.parse("gw"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("Invalid MAC address");
+    }
+
+    @Test
+    void format_shouldWriteLowercaseColonSeparated() {
+        assertThat(MacAddress.format(VALUE)).isEqualTo("aa:bb:cc:dd:ee:0f");
+        assertThat(MacAddress.format(0)).isEqualTo("00:00:00:00:00:00");
+    }
+
+    @Test
+    void canonicalize_shouldKeepIdentifiersThatAreNotMacAddresses() {
+        assertThat(MacAddress.canonicalize("AABB.CCDD.EE0F")).isEqualTo("aa:bb:cc:dd:ee:0f");
+        assertThat(MacAddress.canonicalize("gw")).isEqualTo("gw");
+        assertThat(MacAddress.canonicalize(null)).isNull();
+    }
+}
@@ -0,0 +1,82 @@
+package cz.jbenes.ubiquity.device_api.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SingleFlightTest {
+
+    @Test
+    void execute_shouldShareComputationWithConcurrentCallers() throws Exception {
+        SingleFlight<String, Object> flights = new SingleFlight<>();
+        AtomicInteger computations = new AtomicInteger();
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Object[] results = new Object[8];
+        Thread[] callers = new Thread[results.length];
+        for (int i = 0; i < callers.length; i++) {
+            int caller = i;
+            callers[i] = new Thread(() -> results[caller] = flights.execute("full", () -> {
+                computations.incrementAndGet();
+                entered.countDown();
+                await(release);
+                return new Object();
+            }));
+        }
+
+        callers[0].start();
+        entered.await();
+        for (int i = 1; i < callers.length; i++) {
+            callers[i].start();
+        }
+        // the followers park in the shared future, the leader in the latch
+        for (Thread caller : callers) {
+            while (caller.getState() != Thread.State.WAITING) {
+                Thread.onSpinWait();
+            }
+        }
+        release.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        assertThat(results).containsOnly(results[0]);
+        assertThat(results[0]).isNotNull();
+        assertThat(computations).hasValue(1);
+        assertThat(flights.size()).isZero();
+    }
+
+    @Test
+    void execute_shouldComputeAgainOnceFlightEnded() {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+        AtomicInteger computations = new AtomicInteger();
+
+        int first = flights.execute("full", computations::incrementAndGet);
+        int second = flights.execute("full", computations::incrementAndGet);
+
+        assertThat(first).isEqualTo(1);
+        assertThat(second).isEqualTo(2);
+    }
+
+    @Test
+    void execute_shouldPropagateFailureAndForgetIt() {
+        SingleFlight<String, Integer> flights = new SingleFlight<>();
+
+        assertThatThrownBy(() -> flights.execute("full", () -> {
+            throw new IllegalStateException("failed");
+        })).isInstanceOf(IllegalStateException.class).hasMessage("failed");
+        assertThat(flights.execute("full", () -> 1)).isEqualTo(1);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package cz.jbenes.ubiquity.device_api.util;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TopologyNodeTest {
+
+    // configured like the application's mapper, which ignores unknown properties
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    @Test
+    void freeze_shouldRejectChanges() {
+        TopologyNode node = new TopologyNode("aa:bb:cc:dd:ee:01");
+        node.freeze();
+
+        assertThatThrownBy(() -> node.setChildCursor("aa:bb:cc:dd:ee:02"))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThatThrownBy(() -> node.addChild(new TopologyNode("aa:bb:cc:dd:ee:02")))
+                .isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    void frozen_shouldNotBeClearableFromOutside() throws Exception {
+        assertThat(Arrays.stream(TopologyNode.class.getMethods())
+                .filter(method -> Modifier.isPublic(method.getModifiers()))
+                .map(Method::getName))
+                .doesNotContain("setFrozen", "isFrozen", "getFrozen");
+
+        TopologyNode node = new TopologyNode("aa:bb:cc:dd:ee:01");
+        node.freeze();
+        objectMapper.readerForUpdating(node).readValue("{\"frozen\":false}");
+
+        assertThatThrownBy(() -> node.setMacAddress("aa:bb:cc:dd:ee:02"))
+                .isInstanceOf(UnsupportedOperationException.class);
+        assertThat(objectMapper.writeValueAsString(node)).doesNotContain("frozen");
+    }
+}